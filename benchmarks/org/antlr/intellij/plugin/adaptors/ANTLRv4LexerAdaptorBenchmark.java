@@ -0,0 +1,115 @@
+package org.antlr.intellij.plugin.adaptors;
+
+import org.antlr.intellij.plugin.ANTLRv4Language;
+import org.antlr.intellij.plugin.parser.ANTLRv4Lexer;
+import org.antlr.v4.runtime.Lexer;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Tokens/sec lexing a grammar the way IntelliJ's highlighter does, asking
+ *  for the state at every token. Compares the adaptor's packed int states
+ *  with allocating a state object per token and interning it in a map,
+ *  which is how it worked before.
+ *
+ *  Run with a .g4 file name or with no args to lex a generated 10k-line
+ *  grammar.
+ */
+public class ANTLRv4LexerAdaptorBenchmark {
+	public static final int WARMUP_RUNS = 10;
+	public static final int RUNS = 20;
+
+	/** Tracks states the old way */
+	public static class StateObjectLexerAdaptor extends ANTLRv4LexerAdaptor {
+		protected final Map<ANTLRv4LexerState, Integer> stateNumbers = new HashMap<ANTLRv4LexerState, Integer>();
+
+		public StateObjectLexerAdaptor() {
+			super(ANTLRv4Language.INSTANCE, new ANTLRv4Lexer(null));
+		}
+
+		@Override
+		protected int getLexerStateNumber(Lexer lexer) {
+			ANTLRv4LexerState state = getLexerState(lexer);
+			Integer n = stateNumbers.get(state);
+			if ( n==null ) {
+				n = stateNumbers.size();
+				stateNumbers.put(state, n);
+			}
+			return n;
+		}
+	}
+
+	/** Keeps the JIT from dropping getState() calls */
+	public static int sink;
+
+	public static void main(String[] args) throws IOException {
+		String text;
+		if ( args.length>0 ) {
+			text = new String(Files.readAllBytes(Paths.get(args[0])), Charset.forName("UTF-8"));
+		}
+		else {
+			text = generateGrammar(10000);
+		}
+		ANTLRv4LexerAdaptor packed = new ANTLRv4LexerAdaptor(ANTLRv4Language.INSTANCE, new ANTLRv4Lexer(null));
+		ANTLRv4LexerAdaptor objects = new StateObjectLexerAdaptor();
+
+		for (int i = 0; i < WARMUP_RUNS; i++) {
+			lex(objects, text);
+			lex(packed, text);
+		}
+		report("state objects", objects, text);
+		report("packed states", packed, text);
+	}
+
+	public static void report(String name, ANTLRv4LexerAdaptor adaptor, String text) {
+		long numTokens = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < RUNS; i++) {
+			numTokens += lex(adaptor, text);
+		}
+		double secs = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%-14s %,12.0f tokens/sec (%,d tokens in %.3fs)%n",
+						  name, numTokens / secs, numTokens, secs);
+	}
+
+	public static long lex(ANTLRv4LexerAdaptor adaptor, CharSequence text) {
+		adaptor.start(text, 0, text.length(), 0);
+		long n = 0;
+		int states = 0;
+		while ( adaptor.getTokenType()!=null ) {
+			states += adaptor.getState();
+			adaptor.advance();
+			n++;
+		}
+		sink += states;
+		return n;
+	}
+
+	/** Parser and lexer rules with actions, arguments, options and char
+	 *  sets, so the lexer goes through all its modes.
+	 */
+	public static String generateGrammar(int numLines) {
+		StringBuilder buf = new StringBuilder();
+		buf.append("grammar Bench;\n");
+		buf.append("options { tokenVocab=BenchLexer; }\n");
+		buf.append("@members { int depth = 0; }\n");
+		// 10 lines per rule
+		for (int i = 0; i*10 < numLines; i++) {
+			buf.append("// rule ").append(i).append('\n');
+			buf.append("r").append(i).append("[int x, List<String> names] returns [int v]\n");
+			buf.append("    :   a=ID '=' e").append(i).append(" ';' {$v = $x + 1;}   # Assign").append(i).append('\n');
+			buf.append("    |   'if' '(' e").append(i).append(" ')' r").append(i+1).append("[$x, $names]*  # If").append(i).append('\n');
+			buf.append("    |   {depth > 0}? ID (',' ID)* -> channel(HIDDEN)\n");
+			buf.append("    ;\n");
+			buf.append("ID").append(i).append(" : [a-zA-Z_] [a-zA-Z_0-9]* ;\n");
+			buf.append("STR").append(i).append(" : '\"' (~[\"\\\\\\r\\n] | '\\\\' .)* '\"' ;\n");
+			buf.append("WS").append(i).append(" : [ \\t\\r\\n]+ -> skip ;\n");
+			buf.append('\n');
+		}
+		return buf.toString();
+	}
+}
@@ -0,0 +1,241 @@
+package org.antlr.intellij.plugin.adaptors;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.lang.PsiBuilder;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.IFileElementType;
+import org.antlr.intellij.adaptor.lexer.PsiTokenSource;
+import org.antlr.intellij.adaptor.lexer.TokenElementType;
+import org.antlr.intellij.plugin.ANTLRv4Language;
+import org.antlr.intellij.plugin.ANTLRv4TokenTypes;
+import org.antlr.intellij.plugin.parser.ANTLRv4Lexer;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.misc.Pair;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Bytes allocated per token parsing a grammar through ANTLRv4GrammarParser,
+ *  with tokens that copy their text out of the PsiBuilder and a new source
+ *  pair each, which is how PsiTokenSource worked before, and with the
+ *  offset-only tokens it makes now.
+ *
+ *  The PsiBuilder is a proxy over the tokens of ANTLRv4LexerAdaptor since
+ *  the real one needs a running IDE; the proxy boxes int results, which
+ *  counts the same against both. Needs a JVM with per-thread allocation
+ *  counts (HotSpot). Run with a .g4 file name or with no args to parse a
+ *  generated 10k-line grammar.
+ */
+public class ANTLRv4ParserAllocationBenchmark {
+	public static final int WARMUP_RUNS = 10;
+	public static final int RUNS = 20;
+
+	public static final IFileElementType FILE = new IFileElementType(ANTLRv4Language.INSTANCE);
+
+	/** Makes tokens the old way */
+	public static class TextCopyingTokenSource extends PsiTokenSource {
+		public TextCopyingTokenSource(PsiBuilder builder) {
+			super(builder);
+		}
+
+		@Override
+		public Token nextToken() {
+			TokenElementType ideaTType = (TokenElementType)builder.getTokenType();
+			int type = ideaTType==null ? Token.EOF : ideaTType.getType();
+			Pair<TokenSource, CharStream> source = new Pair<TokenSource, CharStream>(this, null);
+			String text = builder.getTokenText();
+			int start = builder.getCurrentOffset();
+			int length = text != null ? text.length() : 0;
+			Token t = factory.create(source, type, text, Token.DEFAULT_CHANNEL, start, start + length - 1, 0, 0);
+			builder.advanceLexer();
+			return t;
+		}
+	}
+
+	public static class TextCopyingGrammarParser extends ANTLRv4GrammarParser {
+		@Override
+		protected TokenStream createStreamingTokenStreamImpl(IElementType root, PsiBuilder builder) {
+			PsiBuilder.Marker rollbackMarker = builder.mark();
+			try {
+				CommonTokenStream tokenStream = new CommonTokenStream(new TextCopyingTokenSource(builder));
+				tokenStream.fill();
+				return tokenStream;
+			}
+			finally {
+				rollbackMarker.rollbackTo();
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		String text;
+		if ( args.length>0 ) {
+			text = new String(Files.readAllBytes(Paths.get(args[0])), Charset.forName("UTF-8"));
+		}
+		else {
+			text = ANTLRv4LexerAdaptorBenchmark.generateGrammar(10000);
+		}
+		LexedText lexed = new LexedText(text);
+		ANTLRv4GrammarParser copying = new TextCopyingGrammarParser();
+		ANTLRv4GrammarParser offsets = new ANTLRv4GrammarParser();
+
+		for (int i = 0; i < WARMUP_RUNS; i++) {
+			copying.parse(FILE, lexed.createBuilder());
+			offsets.parse(FILE, lexed.createBuilder());
+		}
+		report("copied text", copying, lexed);
+		report("offsets only", offsets, lexed);
+	}
+
+	public static void report(String name, ANTLRv4GrammarParser parser, LexedText lexed) {
+		com.sun.management.ThreadMXBean bean =
+			(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long numTokens = 0;
+		long start = System.nanoTime();
+		long bytes = bean.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < RUNS; i++) {
+			parser.parse(FILE, lexed.createBuilder());
+			numTokens += lexed.types.length;
+		}
+		bytes = bean.getThreadAllocatedBytes(thread) - bytes;
+		double secs = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%-13s %,8.1f bytes/token %,12.0f tokens/sec (%,d MB for %,d tokens)%n",
+						  name, bytes / (double)numTokens, numTokens / secs, bytes >> 20, numTokens);
+	}
+
+	/** The tokens of a grammar as ANTLRv4LexerAdaptor lexes it for IDEA */
+	public static class LexedText {
+		public final CharSequence text;
+		public final IElementType[] types;
+		public final int[] starts;
+
+		public LexedText(CharSequence text) {
+			this.text = text;
+			List<IElementType> types = new ArrayList<IElementType>();
+			List<Integer> starts = new ArrayList<Integer>();
+			ANTLRv4LexerAdaptor adaptor = new ANTLRv4LexerAdaptor(ANTLRv4Language.INSTANCE, new ANTLRv4Lexer(null));
+			adaptor.start(text, 0, text.length(), 0);
+			while ( adaptor.getTokenType()!=null ) {
+				types.add(adaptor.getTokenType());
+				starts.add(adaptor.getTokenStart());
+				adaptor.advance();
+			}
+			this.types = types.toArray(new IElementType[types.size()]);
+			this.starts = new int[starts.size()];
+			for (int i = 0; i < this.starts.length; i++) {
+				this.starts[i] = starts.get(i);
+			}
+		}
+
+		public PsiBuilder createBuilder() {
+			return (PsiBuilder)Proxy.newProxyInstance(PsiBuilder.class.getClassLoader(),
+													  new Class<?>[] {PsiBuilder.class},
+													  new TokenListBuilder(this));
+		}
+	}
+
+	/** Just enough of a PsiBuilder for AntlrParser: skips whitespace and
+	 *  comments like IDEA's, supports rolling back and ignores what the
+	 *  markers are done as.
+	 */
+	public static class TokenListBuilder implements InvocationHandler {
+		protected final LexedText lexed;
+		/** Index of the current raw token, whitespace and comments included */
+		protected int index;
+
+		public TokenListBuilder(LexedText lexed) {
+			this.lexed = lexed;
+			skipWhitespace();
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if ( name.equals("getTokenType") ) {
+				return index<lexed.types.length ? lexed.types[index] : null;
+			}
+			if ( name.equals("advanceLexer") ) {
+				if ( index<lexed.types.length ) {
+					index++;
+					skipWhitespace();
+				}
+				return null;
+			}
+			if ( name.equals("eof") ) return index>=lexed.types.length;
+			if ( name.equals("getCurrentOffset") ) return rawTokenStart(0);
+			if ( name.equals("rawTokenTypeStart") ) return rawTokenStart((Integer)args[0]);
+			if ( name.equals("getTokenText") ) {
+				if ( index>=lexed.types.length ) return null;
+				return lexed.text.subSequence(rawTokenStart(0), rawTokenStart(1)).toString();
+			}
+			if ( name.equals("getOriginalText") ) return lexed.text;
+			if ( name.equals("mark") ) return createMarker();
+			if ( name.equals("error") ) return null;
+			if ( name.equals("getTreeBuilt") ) {
+				InvocationHandler node = new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return handleObjectMethod(proxy, method, args);
+					}
+				};
+				return Proxy.newProxyInstance(ASTNode.class.getClassLoader(), new Class<?>[] {ASTNode.class}, node);
+			}
+			return handleObjectMethod(proxy, method, args);
+		}
+
+		protected int rawTokenStart(int steps) {
+			int i = index + steps;
+			return i<lexed.starts.length ? lexed.starts[i] : lexed.text.length();
+		}
+
+		protected void skipWhitespace() {
+			while ( index<lexed.types.length &&
+					(ANTLRv4TokenTypes.WHITESPACES.contains(lexed.types[index]) ||
+					 ANTLRv4TokenTypes.COMMENTS.contains(lexed.types[index])) )
+			{
+				index++;
+			}
+		}
+
+		protected PsiBuilder.Marker createMarker() {
+			final int markedIndex = index;
+			InvocationHandler marker = new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					String name = method.getName();
+					if ( name.equals("precede") ) return createMarker();
+					if ( name.equals("rollbackTo") ) {
+						index = markedIndex;
+						return null;
+					}
+					if ( method.getReturnType()==void.class ) return null; // done, drop, error, ...
+					return handleObjectMethod(proxy, method, args);
+				}
+			};
+			return (PsiBuilder.Marker)Proxy.newProxyInstance(PsiBuilder.Marker.class.getClassLoader(),
+															 new Class<?>[] {PsiBuilder.Marker.class},
+															 marker);
+		}
+
+		protected static Object handleObjectMethod(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if ( name.equals("hashCode") ) return System.identityHashCode(proxy);
+			if ( name.equals("equals") ) return proxy==args[0];
+			if ( name.equals("toString") ) return "TokenListBuilder proxy";
+			throw new UnsupportedOperationException(method.toString());
+		}
+	}
+}
@@ -6,6 +6,7 @@ import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.IntStream;
 import org.antlr.v4.runtime.Lexer;
 import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.misc.IntegerStack;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
@@ -20,9 +21,70 @@ import java.util.Map;
  * <p>For lexers which do not store custom state information, the default implementation {@link SimpleAntlrAdapter} can
  * be used.</p>
  *
+ * <p>IntelliJ asks for the lexer state at every token, so the common states are packed straight into the {@code int}
+ * returned by {@link #getState} without allocating anything: a mode, a mode stack of at most
+ * {@link #MAX_PACKED_STACK_DEPTH} modes, all below 256, and a few bits of state the subclass keeps for its lexer, see
+ * {@link #getExtraState}. Any other state is described by a {@code State} object from {@link #getLexerState} and
+ * interned.</p>
+ *
+ * <p>IntelliJ's highlighter only restarts lexing after an edit at a token whose state is 0, so the initial state, the
+ * default mode with an empty stack and no extra state, is always 0 whether it is packed or not. The highlighter keeps
+ * the numbers it was given across edits, so interned states are never dropped or renumbered: a number, once handed
+ * out, means the same state for the life of the adapter. Past {@link #MAX_INTERNED_STATES} interned states, new ones
+ * all get one overflow number, which restarts in the initial state. Subclasses can leave parts of the state out of the
+ * number where they don't affect how the rest of the input lexes, see {@link #getRestartStateComponents}, which turns
+ * more tokens into restart points.</p>
+ *
  * @author Sam Harwell
  */
 public abstract class AntlrLexerAdapter<State extends AntlrLexerState> extends com.intellij.lexer.LexerBase {
+	/**
+	 * Modes deeper than this on the mode stack make a state too big to pack.
+	 */
+	public static final int MAX_PACKED_STACK_DEPTH = 2;
+	/**
+	 * The largest value {@link #getExtraState} can return for a state to be packed.
+	 */
+	public static final int MAX_PACKED_EXTRA_STATE = 15;
+	/**
+	 * The most states that are interned. Further states that can't be packed get {@link #OVERFLOW_STATE}.
+	 */
+	public static final int MAX_INTERNED_STATES = 1 << 16;
+
+	/**
+	 * The lexer's current mode, a component of the state for {@link #getRestartStateComponents}.
+	 */
+	public static final int STATE_MODE = 1;
+	/**
+	 * The lexer's mode stack, a component of the state for {@link #getRestartStateComponents}.
+	 */
+	public static final int STATE_MODE_STACK = 2;
+	/**
+	 * The state from {@link #getExtraState}, a component of the state for {@link #getRestartStateComponents}.
+	 */
+	public static final int STATE_EXTRA = 4;
+	/**
+	 * All components of the state.
+	 */
+	public static final int STATE_ALL = STATE_MODE | STATE_MODE_STACK | STATE_EXTRA;
+
+	/*
+	 * Packed state layout, low bits first: mode (8), stack depth (2), stack modes bottom up (8 each), extra state (4).
+	 * Interned states have INTERNED_STATE_FLAG set and the index into stateCache below it.
+	 */
+	private static final int MODE_BITS = 8;
+	private static final int MODE_MASK = (1 << MODE_BITS) - 1;
+	private static final int DEPTH_SHIFT = MODE_BITS;
+	private static final int DEPTH_MASK = 3;
+	private static final int STACK_SHIFT = DEPTH_SHIFT + 2;
+	private static final int EXTRA_SHIFT = STACK_SHIFT + MAX_PACKED_STACK_DEPTH * MODE_BITS;
+	private static final int INTERNED_STATE_FLAG = 1 << 30;
+	/*
+	 * The number of every state met once the intern table is full. It is never 0, so IntelliJ doesn't restart there,
+	 * and if a lexer is started in it anyway it starts over in the initial state.
+	 */
+	private static final int OVERFLOW_STATE = INTERNED_STATE_FLAG | MAX_INTERNED_STATES;
+
 	/**
 	 * Gets the {@link Language} supported by this lexer. This value is passed to {@link ElementTypeFactory} to ensure
 	 * the correct collection of {@link IElementType} is used for assigning element types to tokens in
@@ -40,12 +102,12 @@ public abstract class AntlrLexerAdapter<State extends AntlrLexerState> extends c
 	private final Lexer lexer;
 
 	/**
-	 * Provides a map from a {@code State} object &rarr; state index tracked by IntelliJ. This field provides for an
-	 * efficient implementation of {@link #getState}.
+	 * Provides a map from an interned {@code State} object &rarr; its index in {@link #stateCache}. Only states that
+	 * can't be packed are interned.
 	 */
 	private final Map<State, Integer> stateCacheMap = new HashMap<State, Integer>();
 	/**
-	 * Provides a map from a state index tracked by IntelliJ &rarr; {@code State} object describing the ANTLR lexer
+	 * Provides a map from the index of an interned state &rarr; {@code State} object describing the ANTLR lexer
 	 * state. This field provides for an efficient implementation of {@link #toLexerState}.
 	 */
 	private final List<State> stateCache = new ArrayList<State>();
@@ -72,7 +134,7 @@ public abstract class AntlrLexerAdapter<State extends AntlrLexerState> extends c
 	 * state <em>before</em> the current token, after which {@link Lexer#nextToken} can be called to obtain
 	 * {@link #currentToken}.</p>
 	 */
-	private State currentState;
+	private int currentState;
 	/**
 	 * This field tracks the "exposed" lexer token. This is the result of the most recent call to
 	 * {@link Lexer#nextToken} on the underlying ANTLR lexer, and is the source of information for
@@ -122,14 +184,12 @@ public abstract class AntlrLexerAdapter<State extends AntlrLexerState> extends c
 		CharStream in = new CharSequenceCharStream(buffer, endOffset, IntStream.UNKNOWN_SOURCE_NAME);
 		in.seek(startOffset);
 
-		State state;
-		if (startOffset == 0 && initialState == 0) {
-			state = getInitialState();
+		if (initialState == 0 || initialState == OVERFLOW_STATE) {
+			applyLexerState(in, getInitialState());
 		} else {
-			state = toLexerState(initialState);
+			applyLexerState(in, initialState);
 		}
 
-		applyLexerState(in, state);
 		advance();
 	}
 
@@ -147,21 +207,13 @@ public abstract class AntlrLexerAdapter<State extends AntlrLexerState> extends c
 
 	@Override
 	public void advance() {
-		currentState = getLexerState(lexer);
+		currentState = getLexerStateNumber(lexer);
 		currentToken = lexer.nextToken();
 	}
 
 	@Override
 	public int getState() {
-		State state = currentState != null ? currentState : getInitialState();
-		Integer existing = stateCacheMap.get(state);
-		if (existing == null) {
-			existing = stateCache.size();
-			stateCache.add(state);
-			stateCacheMap.put(state, existing);
-		}
-
-		return existing;
+		return currentState;
 	}
 
 	@Override
@@ -199,6 +251,104 @@ public abstract class AntlrLexerAdapter<State extends AntlrLexerState> extends c
 		state.apply(lexer);
 	}
 
+	/**
+	 * Update the current lexer to use the specified {@code input} stream starting in the state IntelliJ knows as
+	 * {@code state}, a value returned by {@link #getState}.
+	 *
+	 * @param input The new input stream for the lexer.
+	 * @param state The lexer state provided by IntelliJ.
+	 */
+	protected void applyLexerState(CharStream input, int state) {
+		if (state == OVERFLOW_STATE) {
+			applyLexerState(input, getInitialState());
+			return;
+		}
+
+		if ((state & INTERNED_STATE_FLAG) != 0) {
+			applyLexerState(input, toLexerState(state));
+			return;
+		}
+
+		lexer.setInputStream(input);
+		lexer._mode = state & MODE_MASK;
+		lexer._modeStack.clear();
+		int depth = (state >>> DEPTH_SHIFT) & DEPTH_MASK;
+		for (int i = 0; i < depth; i++) {
+			lexer._modeStack.push((state >>> (STACK_SHIFT + i * MODE_BITS)) & MODE_MASK);
+		}
+
+		applyExtraState(lexer, state >>> EXTRA_SHIFT);
+	}
+
+	/**
+	 * Gets the state number IntelliJ tracks for the current state of the specified lexer. States that fit are packed
+	 * into the number itself, leaving out the components {@link #getRestartStateComponents} says don't matter; others
+	 * are interned whole. The initial state is always 0.
+	 *
+	 * @param lexer The lexer.
+	 * @return The state number to return from {@link #getState}.
+	 */
+	protected int getLexerStateNumber(Lexer lexer) {
+		int state = packLexerState(lexer, getRestartStateComponents(lexer));
+		if (state >= 0) {
+			return state;
+		}
+
+		return internLexerState(getLexerState(lexer));
+	}
+
+	/**
+	 * Packs the specified {@code components} of the state of {@code lexer} into an {@code int}, without allocating.
+	 * Components left out are packed as their initial values.
+	 *
+	 * @return The packed state, or -1 if the state doesn't fit.
+	 */
+	private int packLexerState(Lexer lexer, int components) {
+		int mode = (components & STATE_MODE) != 0 ? lexer._mode : Lexer.DEFAULT_MODE;
+		IntegerStack modeStack = lexer._modeStack;
+		int depth = (components & STATE_MODE_STACK) != 0 ? modeStack.size() : 0;
+		if (mode < 0 || mode > MODE_MASK || depth > MAX_PACKED_STACK_DEPTH) {
+			return -1;
+		}
+
+		int extra = (components & STATE_EXTRA) != 0 ? getExtraState(lexer) : 0;
+		if (extra < 0 || extra > MAX_PACKED_EXTRA_STATE) {
+			return -1;
+		}
+
+		int state = mode | (depth << DEPTH_SHIFT) | (extra << EXTRA_SHIFT);
+		for (int i = 0; i < depth; i++) {
+			int stackedMode = modeStack.get(i);
+			if (stackedMode < 0 || stackedMode > MODE_MASK) {
+				return -1;
+			}
+
+			state |= stackedMode << (STACK_SHIFT + i * MODE_BITS);
+		}
+
+		return state;
+	}
+
+	private int internLexerState(State state) {
+		if (state.equals(getInitialState())) {
+			// IntelliJ restarts at 0, so the initial state keeps that number even when it can't be packed
+			return 0;
+		}
+
+		Integer existing = stateCacheMap.get(state);
+		if (existing == null) {
+			if (stateCache.size() >= MAX_INTERNED_STATES) {
+				return OVERFLOW_STATE;
+			}
+
+			existing = stateCache.size();
+			stateCache.add(state);
+			stateCacheMap.put(state, existing);
+		}
+
+		return INTERNED_STATE_FLAG | existing;
+	}
+
 	/**
 	 * Get the initial {@code State} of the lexer.
 	 *
@@ -207,7 +357,8 @@ public abstract class AntlrLexerAdapter<State extends AntlrLexerState> extends c
 	protected abstract State getInitialState();
 
 	/**
-	 * Get a {@code State} instance representing the current state of the specified lexer.
+	 * Get a {@code State} instance representing the current state of the specified lexer. This is only called for
+	 * states that can't be packed into an {@code int}.
 	 *
 	 * @param lexer The lexer.
 	 * @return A {@code State} instance containing the current state of the lexer.
@@ -215,12 +366,57 @@ public abstract class AntlrLexerAdapter<State extends AntlrLexerState> extends c
 	protected abstract State getLexerState(Lexer lexer);
 
 	/**
-	 * Gets the {@code State} corresponding to the specified IntelliJ {@code state}.
+	 * Gets the state the specified lexer keeps beyond its mode and mode stack, such as fields used by actions and
+	 * predicates, as a number from 0 to {@link #MAX_PACKED_EXTRA_STATE}. The lexer's initial extra state must be 0.
+	 *
+	 * <p>The default implementation returns -1, meaning the extra state is unknown, so every state goes through
+	 * {@link #getLexerState}. Subclasses whose lexers keep no extra state should return 0; those that override this
+	 * must override {@link #applyExtraState} too.</p>
+	 *
+	 * @param lexer The lexer.
+	 * @return The extra state, or -1 if it doesn't fit.
+	 */
+	protected int getExtraState(Lexer lexer) {
+		return -1;
+	}
+
+	/**
+	 * Gets the components of the specified lexer's state that decide how the input from its current position on is
+	 * lexed. The result is any combination of {@link #STATE_MODE}, {@link #STATE_MODE_STACK} and {@link #STATE_EXTRA}.
+	 *
+	 * <p>IntelliJ's highlighter can only restart lexing after an edit at a token whose state is 0, so it re-lexes from
+	 * the nearest such token before the edit. Components left out of the result are replaced by their initial values
+	 * in the number returned by {@link #getState}; if that makes the number 0, the current token becomes a restart
+	 * point. When lexing restarts there, the left-out components start out at their initial values, so a component
+	 * may only be left out if the lexer produces the same tokens either way, for example state that the lexer
+	 * recomputes from the input before it is next used.</p>
+	 *
+	 * <p>The default implementation returns {@link #STATE_ALL}. Left-out components only apply to states that can be
+	 * packed; other states are always interned in full.</p>
+	 *
+	 * @param lexer The lexer.
+	 * @return The components of the state that matter for restarting at the current position.
+	 */
+	protected int getRestartStateComponents(Lexer lexer) {
+		return STATE_ALL;
+	}
+
+	/**
+	 * Restores the extra state returned by {@link #getExtraState} to the specified lexer.
+	 *
+	 * @param lexer The lexer.
+	 * @param extraState The extra state.
+	 */
+	protected void applyExtraState(Lexer lexer, int extraState) {
+	}
+
+	/**
+	 * Gets the {@code State} corresponding to the specified IntelliJ {@code state}, which must be an interned state.
 	 *
 	 * @param state The lexer state provided by IntelliJ.
 	 * @return The {@code State} instance corresponding to the specified state.
 	 */
 	protected State toLexerState(int state) {
-		return stateCache.get(state);
+		return stateCache.get(state & ~INTERNED_STATE_FLAG);
 	}
 }
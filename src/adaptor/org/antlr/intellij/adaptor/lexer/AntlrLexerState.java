@@ -4,10 +4,11 @@ import net.jcip.annotations.Immutable;
 import org.antlr.v4.runtime.Lexer;
 import org.antlr.v4.runtime.misc.IntegerStack;
 import org.antlr.v4.runtime.misc.MurmurHash;
-import org.antlr.v4.runtime.misc.ObjectEqualityComparator;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Arrays;
+
 /**
  * This class stores the state of an ANTLR lexer, such that it can be applied back to the lexer instance at a later
  * time.
@@ -108,13 +109,13 @@ public class AntlrLexerState {
 
 		AntlrLexerState other = (AntlrLexerState)obj;
 		return this.mode == other.mode
-			&& ObjectEqualityComparator.INSTANCE.equals(this.modeStack, other.modeStack);
+			&& Arrays.equals(this.modeStack, other.modeStack);
 	}
 
 	protected int hashCodeImpl() {
 		int hash = MurmurHash.initialize();
 		hash = MurmurHash.update(hash, mode);
-		hash = MurmurHash.update(hash, modeStack);
+		hash = MurmurHash.update(hash, Arrays.hashCode(modeStack)); // by value, an int[] only has identity hashCode
 		return MurmurHash.finish(hash, 2);
 	}
 }
@@ -8,12 +8,23 @@ import org.antlr.v4.runtime.TokenFactory;
 import org.antlr.v4.runtime.TokenSource;
 import org.antlr.v4.runtime.misc.Pair;
 
+/** Feeds the tokens of a PsiBuilder to an ANTLR parser.
+ *
+ *  Tokens only hold their offsets into the builder's original text; every
+ *  token shares one source pair whose char stream reads that text, so a
+ *  token's text is only copied out if something asks for it, like an error
+ *  message. This is the hottest path in parsing, so nothing else is
+ *  allocated per token either.
+ */
 public class PsiTokenSource implements TokenSource {
 	protected PsiBuilder builder;
 	protected TokenFactory factory = CommonTokenFactory.DEFAULT;
+	protected final Pair<TokenSource, CharStream> source;
 
 	public PsiTokenSource(PsiBuilder builder) {
 		this.builder = builder;
+		CharStream input = new CharSequenceCharStream(builder.getOriginalText(), -1, getSourceName());
+		this.source = new Pair<TokenSource, CharStream>(this, input);
 	}
 
 	/* Colin: "the parsing lexer still has to return tokens that completely
@@ -37,15 +48,14 @@ public class PsiTokenSource implements TokenSource {
 		}
 
 		int channel = Token.DEFAULT_CHANNEL;
-		Pair<TokenSource, CharStream> source = new Pair<TokenSource, CharStream>(this, null);
-		String text = builder.getTokenText();
 		int start = builder.getCurrentOffset();
-		int length = text != null ? text.length() : 0;
-		int stop = start + length - 1;
+		// the next raw token, skipped or not, starts where this one ends
+		int stop = ideaTType != null ? builder.rawTokenTypeStart(1) - 1 : start - 1;
 		// PsiBuilder doesn't provide line, column info
 		int line = 0;
 		int charPositionInLine = 0;
-		Token t = factory.create(source, type, text, channel, start, stop, line, charPositionInLine);
+		// no text; the token gets it from the input stream when asked
+		Token t = factory.create(source, type, null, channel, start, stop, line, charPositionInLine);
 		builder.advanceLexer();
 //		System.out.println("TOKEN: "+t);
 		return t;
@@ -63,7 +73,7 @@ public class PsiTokenSource implements TokenSource {
 
 	@Override
 	public CharStream getInputStream() {
-		return null;
+		return source.b;
 	}
 
 	@Override
@@ -28,4 +28,9 @@ public class SimpleAntlrAdapter extends AntlrLexerAdapter<AntlrLexerState> {
 		return new AntlrLexerState(lexer._mode, lexer._modeStack);
 	}
 
+	@Override
+	protected int getExtraState(Lexer lexer) {
+		return 0;
+	}
+
 }
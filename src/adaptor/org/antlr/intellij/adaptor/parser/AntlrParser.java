@@ -29,6 +29,11 @@ public abstract class AntlrParser<TParser extends Parser> implements PsiParser {
 	@NotNull
 	@Override
 	public ASTNode parse(IElementType root, PsiBuilder builder) {
+		if (isStreaming(root, builder)) {
+			parseStreaming(root, builder);
+			return builder.getTreeBuilt();
+		}
+
 		TParser parser = createParser(root, builder);
 		ParseTree parseTree = parse(parser, root, builder);
 		AstBuilderListener listener = createListener(parser, root, builder);
@@ -61,7 +66,52 @@ public abstract class AntlrParser<TParser extends Parser> implements PsiParser {
 	protected abstract ParseTree parseImpl(TParser parser, IElementType root, PsiBuilder builder);
 
 	protected AstBuilderListener createListener(TParser parser, IElementType root, PsiBuilder builder) {
-		return new AstBuilderListener(language, parser, builder);
+		return new AstBuilderListener(language, parser, builder, root);
+	}
+
+	/** Whether to build the PSI tree while parsing rather than from a
+	 *  parse tree afterwards; see {@link #parseStreaming}. Off by default.
+	 */
+	protected boolean isStreaming(IElementType root, PsiBuilder builder) {
+		return false;
+	}
+
+	/** Parse with parse tree building off and a {@link StreamingAstBuilderListener}
+	 *  attached to the parser, so PSI markers are placed as rules are entered
+	 *  and exited and no ANTLR parse tree is kept. The parser sees tokens
+	 *  buffered up front since it looks ahead of where the listener has moved
+	 *  the builder.
+	 */
+	protected void parseStreaming(IElementType root, PsiBuilder builder) {
+		TokenStream tokenStream = createStreamingTokenStreamImpl(root, builder);
+		TParser parser = createParserImpl(tokenStream, root, builder);
+		parser.setBuildParseTree(false);
+		StreamingAstBuilderListener listener = createStreamingListener(parser, root, builder);
+		parser.addParseListener(listener);
+
+		PsiBuilder.Marker rootMarker = builder.mark();
+		parseImpl(parser, root, builder);
+		listener.finishParse();
+		rootMarker.done(root);
+	}
+
+	/** All the tokens from the builder, read ahead and rolled back so the
+	 *  builder is still at the start.
+	 */
+	protected TokenStream createStreamingTokenStreamImpl(IElementType root, PsiBuilder builder) {
+		PsiBuilder.Marker rollbackMarker = builder.mark();
+		try {
+			CommonTokenStream tokenStream = new CommonTokenStream(new PsiTokenSource(builder));
+			tokenStream.fill();
+			return tokenStream;
+		}
+		finally {
+			rollbackMarker.rollbackTo();
+		}
+	}
+
+	protected StreamingAstBuilderListener createStreamingListener(TParser parser, IElementType root, PsiBuilder builder) {
+		return new StreamingAstBuilderListener(language, parser, builder, root);
 	}
 
 	/** Convert ANTLR parse tree to PSI tree. */
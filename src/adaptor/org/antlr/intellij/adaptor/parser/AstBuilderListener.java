@@ -2,6 +2,7 @@ package org.antlr.intellij.adaptor.parser;
 
 import com.intellij.lang.Language;
 import com.intellij.lang.PsiBuilder;
+import com.intellij.psi.tree.IElementType;
 import org.antlr.intellij.adaptor.lexer.ElementTypeFactory;
 import org.antlr.intellij.adaptor.lexer.RuleElementType;
 import org.antlr.intellij.adaptor.lexer.TokenElementType;
@@ -24,10 +25,13 @@ import java.util.List;
 /** This is how we build an intellij PSI parse tree (which they erroneously call
  *  an AST).  We let the ANTLR parser build its kind of ParseTree and then
  *  we convert to a PSI tree in one go using a standard ANTLR ParseTreeListener.
+ *  See {@link StreamingAstBuilderListener} to build the PSI tree while parsing
+ *  instead.
  */
 public class AstBuilderListener implements ParseTreeListener {
 	private final Language language;
 	private final PsiBuilder builder;
+	private final IElementType root;
 	private final List<SyntaxError> syntaxErrors = new ArrayList<SyntaxError>();
 	private final Deque<PsiBuilder.Marker> markers = new ArrayDeque<PsiBuilder.Marker>();
 
@@ -37,25 +41,26 @@ public class AstBuilderListener implements ParseTreeListener {
 	private int nextSyntaxError;
 
 	public AstBuilderListener(Language language, Parser parser, PsiBuilder builder) {
+		this(language, parser, builder, null);
+	}
+
+	/** If the outermost rule's node would have the type of {@code root},
+	 *  as when a reparseable element is reparsed starting from its rule, the
+	 *  root node stands for it and it gets no node of its own.
+	 */
+	public AstBuilderListener(Language language, Parser parser, PsiBuilder builder, IElementType root) {
 		this.language = language;
 		this.builder = builder;
+		this.root = root;
 
 		this.tokenElementTypes = ElementTypeFactory.getTokenElementTypes(language, Arrays.asList(parser.getTokenNames()));
 		this.ruleElementTypes = ElementTypeFactory.getRuleElementTypes(language, Arrays.asList(parser.getRuleNames()));
 
 		for (ANTLRErrorListener listener : parser.getErrorListeners()) {
 			if (listener instanceof SyntaxErrorListener) {
-				syntaxErrors.addAll(((SyntaxErrorListener)listener).getSyntaxErrors());
+				addSyntaxErrors(((SyntaxErrorListener)listener).getSyntaxErrors());
 			}
 		}
-
-		Collections.sort(syntaxErrors, new Comparator<SyntaxError>() {
-
-			@Override
-			public int compare(SyntaxError o1, SyntaxError o2) {
-				return Integer.valueOf(getStart(o1)).compareTo(getStart(o2));
-			}
-		});
 	}
 
 	protected final Language getLanguage() {
@@ -78,6 +83,23 @@ public class AstBuilderListener implements ParseTreeListener {
 		return ruleElementTypes;
 	}
 
+	/**
+	 * Adds syntax errors to mark in the PSI tree. Errors are marked at the first token the builder reaches at or after
+	 * the offending symbol, so errors must be added before the builder moves past their offending symbols.
+	 *
+	 * @param errors The syntax errors.
+	 */
+	protected final void addSyntaxErrors(List<SyntaxError> errors) {
+		syntaxErrors.addAll(errors);
+		Collections.sort(syntaxErrors.subList(nextSyntaxError, syntaxErrors.size()), new Comparator<SyntaxError>() {
+
+			@Override
+			public int compare(SyntaxError o1, SyntaxError o2) {
+				return Integer.valueOf(getStart(o1)).compareTo(getStart(o2));
+			}
+		});
+	}
+
 	@Override
 	public void visitTerminal(TerminalNode node) {
 		visitTerminalImpl(node);
@@ -96,7 +118,25 @@ public class AstBuilderListener implements ParseTreeListener {
 	@Override
 	public void exitEveryRule(ParserRuleContext ctx) {
 		PsiBuilder.Marker marker = markers.pop();
-		marker.done(getRuleElementTypes().get(ctx.getRuleIndex()));
+		IElementType type = getRuleElementType(ctx.getRuleIndex());
+		if (ctx.getParent() == null && type == root) {
+			marker.drop();
+		}
+		else {
+			marker.done(type);
+		}
+	}
+
+	/**
+	 * Gets the element type of the PSI nodes for the rule with the specified index. The default implementation returns
+	 * the {@link RuleElementType} from {@link #getRuleElementTypes}; override this to give some rules element types of
+	 * their own, such as reparseable ones.
+	 *
+	 * @param ruleIndex The rule index.
+	 * @return The element type.
+	 */
+	protected IElementType getRuleElementType(int ruleIndex) {
+		return ruleElementTypes.get(ruleIndex);
 	}
 
 	protected void visitTerminalImpl(TerminalNode node) {
@@ -104,8 +144,18 @@ public class AstBuilderListener implements ParseTreeListener {
 			return;
 		}
 
+		advanceLexerPast(node.getSymbol().getStartIndex());
+	}
+
+	/**
+	 * Advances the builder past the token starting at {@code offset}, marking the syntax errors at the tokens it moves
+	 * over.
+	 *
+	 * @param offset The start offset of the token.
+	 */
+	protected final void advanceLexerPast(int offset) {
 		// properly recovers from parse tree alterations due to error recovery efforts
-		while (builder.getCurrentOffset() <= node.getSymbol().getStartIndex()) {
+		while (!builder.eof() && builder.getCurrentOffset() <= offset) {
 			PsiBuilder.Marker errorMarker = null;
 			if (nextSyntaxError < syntaxErrors.size() && builder.getCurrentOffset() >= getStart(syntaxErrors.get(nextSyntaxError))) {
 				errorMarker = builder.mark();
@@ -113,17 +163,31 @@ public class AstBuilderListener implements ParseTreeListener {
 
 			builder.advanceLexer();
 			if (errorMarker != null) {
-				StringBuilder message = new StringBuilder();
-				while (nextSyntaxError < syntaxErrors.size() && builder.getCurrentOffset() >= getStart(syntaxErrors.get(nextSyntaxError))) {
-					message.append(String.format("%s%n", syntaxErrors.get(nextSyntaxError).getMessage()));
-					nextSyntaxError++;
-				}
-
-				errorMarker.error(message.toString());
+				errorMarker.error(nextSyntaxErrorMessages(builder.getCurrentOffset()));
 			}
 		}
 	}
 
+	/**
+	 * Marks the syntax errors not marked yet, such as a token missing at the end of the input, with an empty error
+	 * element at the builder's position.
+	 */
+	protected final void markRemainingSyntaxErrors() {
+		if (nextSyntaxError < syntaxErrors.size()) {
+			builder.mark().error(nextSyntaxErrorMessages(Integer.MAX_VALUE));
+		}
+	}
+
+	private String nextSyntaxErrorMessages(int offset) {
+		StringBuilder message = new StringBuilder();
+		while (nextSyntaxError < syntaxErrors.size() && offset >= getStart(syntaxErrors.get(nextSyntaxError))) {
+			message.append(String.format("%s%n", syntaxErrors.get(nextSyntaxError).getMessage()));
+			nextSyntaxError++;
+		}
+
+		return message.toString();
+	}
+
 	private static int getStart(SyntaxError syntaxError) {
 		if (syntaxError.getOffendingSymbol() instanceof Token) {
 			return ((Token)syntaxError.getOffendingSymbol()).getStartIndex();
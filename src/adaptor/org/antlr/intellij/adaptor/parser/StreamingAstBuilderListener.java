@@ -0,0 +1,116 @@
+package org.antlr.intellij.adaptor.parser;
+
+import com.intellij.lang.Language;
+import com.intellij.lang.PsiBuilder;
+import com.intellij.psi.tree.IElementType;
+import org.antlr.v4.runtime.ANTLRErrorListener;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the PSI tree while the ANTLR parser runs, as a parse listener added with {@link Parser#addParseListener},
+ * so the parser doesn't have to build a parse tree first. See {@link AntlrParser#isStreaming}.
+ *
+ * <p>The events from a parse listener differ from those of a parse tree walk in two ways, which this class handles:</p>
+ *
+ * <ul>
+ * <li>Syntax errors are reported during the parse, so they are picked up from the parser's
+ * {@link SyntaxErrorListener}s as tokens are consumed, always before the builder moves past the offending token.</li>
+ * <li>When a left-recursive rule loops, the generated code exits the context matched so far and
+ * {@link Parser#pushNewRecursionContext} makes it the first child of a new context, which is entered after its first
+ * child is already done. The new context's marker is placed before the old one with
+ * {@link PsiBuilder.Marker#precede}.</li>
+ * </ul>
+ */
+public class StreamingAstBuilderListener extends AstBuilderListener {
+	/**
+	 * The most recently exited context, which becomes the first child of the next context entered if that is a new
+	 * recursion context.
+	 */
+	private ParserRuleContext exitedContext;
+	/**
+	 * The completed marker of {@link #exitedContext}.
+	 */
+	private PsiBuilder.Marker exitedMarker;
+	/**
+	 * The parser's syntax error listeners.
+	 */
+	private final List<SyntaxErrorListener> syntaxErrorListeners = new ArrayList<SyntaxErrorListener>();
+	/**
+	 * The number of errors from each of {@link #syntaxErrorListeners} already passed to {@link #addSyntaxErrors}.
+	 */
+	private final int[] syntaxErrorCounts;
+
+	public StreamingAstBuilderListener(Language language, Parser parser, PsiBuilder builder) {
+		this(language, parser, builder, null);
+	}
+
+	public StreamingAstBuilderListener(Language language, Parser parser, PsiBuilder builder, IElementType root) {
+		super(language, parser, builder, root);
+
+		for (ANTLRErrorListener listener : parser.getErrorListeners()) {
+			if (listener instanceof SyntaxErrorListener) {
+				syntaxErrorListeners.add((SyntaxErrorListener)listener);
+			}
+		}
+
+		// the base class has taken any errors reported so far
+		syntaxErrorCounts = new int[syntaxErrorListeners.size()];
+		for (int i = 0; i < syntaxErrorCounts.length; i++) {
+			syntaxErrorCounts[i] = syntaxErrorListeners.get(i).getSyntaxErrors().size();
+		}
+	}
+
+	@Override
+	public void enterEveryRule(ParserRuleContext ctx) {
+		if (exitedContext != null && exitedContext.getParent() == ctx) {
+			// a left-recursive rule looped; what it matched so far is the first child of ctx
+			getMarkers().push(exitedMarker.precede());
+		} else {
+			super.enterEveryRule(ctx);
+		}
+
+		exitedContext = null;
+		exitedMarker = null;
+	}
+
+	@Override
+	public void exitEveryRule(ParserRuleContext ctx) {
+		exitedMarker = getMarkers().peek();
+		exitedContext = ctx;
+		super.exitEveryRule(ctx);
+	}
+
+	@Override
+	protected void visitTerminalImpl(TerminalNode node) {
+		addReportedSyntaxErrors();
+		super.visitTerminalImpl(node);
+	}
+
+	/**
+	 * Called after the parse to move the builder to the end of the input, past any tokens the parser didn't consume,
+	 * and mark the syntax errors reported after the last token it did consume, such as a missing ';' at the end.
+	 */
+	public void finishParse() {
+		addReportedSyntaxErrors();
+		advanceLexerPast(Integer.MAX_VALUE);
+		markRemainingSyntaxErrors();
+	}
+
+	/**
+	 * Passes the syntax errors reported since the last call to {@link #addSyntaxErrors}.
+	 */
+	protected void addReportedSyntaxErrors() {
+		for (int i = 0; i < syntaxErrorCounts.length; i++) {
+			List<SyntaxError> errors = syntaxErrorListeners.get(i).getSyntaxErrors();
+			if (errors.size() > syntaxErrorCounts[i]) {
+				addSyntaxErrors(errors.subList(syntaxErrorCounts[i], errors.size()));
+				syntaxErrorCounts[i] = errors.size();
+			}
+		}
+	}
+}
@@ -47,6 +47,10 @@ tokens {
 	 *
 	 *  This is not perfect logic but works. For example, "grammar T;" means
 	 *  that we start and stop a lexical rule for the "T;". Dangerous but works.
+	 *  Named actions and tokens {...} don't end in ';', so between rules '@'
+	 *  and 'tokens {' set _currentRuleType to AT and TOKENS until the action
+	 *  or '}' that ends them; otherwise their ids would look like the start of
+	 *  a rule that runs on into the next one.
 	 *
 	 *  The whole point of this state information is to distinguish
 	 *  between [..arg actions..] and [charsets]. Char sets can only occur in
@@ -90,6 +94,14 @@ tokens {
 		else if (_type == SEMI) {                  // exit rule def
 			_currentRuleType = Token.INVALID_TYPE;
 		}
+		else if ((_type == AT || _type == TOKENS) && _currentRuleType == Token.INVALID_TYPE) {
+			_currentRuleType = _type;              // named action or tokens {...} between rules
+		}
+		else if ((_type == ACTION && _currentRuleType == AT) ||
+				 (_type == RBRACE && _currentRuleType == TOKENS))
+		{
+			_currentRuleType = Token.INVALID_TYPE;
+		}
 
 		return super.emit();
 	}
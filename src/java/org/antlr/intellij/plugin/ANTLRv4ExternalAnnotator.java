@@ -7,27 +7,23 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.TextRange;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiFile;
-import org.antlr.intellij.plugin.parsing.RunANTLROnGrammarFile;
+import org.antlr.intellij.plugin.parsing.GrammarCompilationCache;
 import org.antlr.intellij.plugin.psi.MyPsiUtils;
-import org.antlr.runtime.ANTLRReaderStream;
 import org.antlr.runtime.CommonToken;
 import org.antlr.runtime.Token;
 import org.antlr.v4.Tool;
 import org.antlr.v4.tool.ANTLRMessage;
-import org.antlr.v4.tool.Grammar;
 import org.antlr.v4.tool.GrammarSemanticsMessage;
 import org.antlr.v4.tool.GrammarSyntaxMessage;
 import org.antlr.v4.tool.LeftRecursionCyclesMessage;
 import org.antlr.v4.tool.Rule;
 import org.antlr.v4.tool.ToolMessage;
 import org.antlr.v4.tool.ast.GrammarAST;
-import org.antlr.v4.tool.ast.GrammarRootAST;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.stringtemplate.v4.ST;
 
 import java.io.File;
-import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -52,59 +48,36 @@ public class ANTLRv4ExternalAnnotator extends ExternalAnnotator<PsiFile, List<AN
 		return file;
 	}
 
-	/** Called 2nd; run antlr on file */
+	/** Called 2nd; run antlr on file, or rather get the compilation of its
+	 *  current text from the project's {@link GrammarCompilationCache},
+	 *  which the preview and code generation share.
+	 */
 	@Nullable
 	@Override
 	public List<ANTLRv4ExternalAnnotator.Issue> doAnnotate(final PsiFile file) {
-		String grammarFileName = file.getVirtualFile().getPath();
+		VirtualFile vfile = file.getVirtualFile();
+		if ( vfile==null ) {
+			LOG.error("doAnnotate no virtual file for "+file);
+			return Collections.emptyList();
+		}
+		String grammarFileName = vfile.getPath();
 		LOG.info("doAnnotate "+grammarFileName);
 		String fileContents = file.getText();
-		List<String> args = RunANTLROnGrammarFile.getANTLRArgsAsList(file.getProject(), file.getVirtualFile());
-		final Tool antlr = new Tool(args.toArray(new String[args.size()]));
-		if ( !args.contains("-lib") ) {
-			// getContainingDirectory() must be identified as a read operation on file system
-			ApplicationManager.getApplication().runReadAction(new Runnable() {
-				@Override
-				public void run() {
-					antlr.libDirectory = file.getContainingDirectory().toString();
-				}
-			});
-		}
-
-		antlr.removeListeners();
-        AnnotatorToolListener listener = new AnnotatorToolListener();
-        antlr.addListener(listener);
+		List<Issue> issues = new ArrayList<Issue>();
 		try {
-			StringReader sr = new StringReader(fileContents);
-			ANTLRReaderStream in = new ANTLRReaderStream(sr);
-			in.name = file.getName();
-			GrammarRootAST ast = antlr.parse(file.getName(), in);
-			if ( ast==null || ast.hasErrors ) return Collections.emptyList();
-			Grammar g = antlr.createGrammar(ast);
-			g.fileName = grammarFileName;
-
-			String vocabName = g.getOptionString("tokenVocab");
-			if ( vocabName!=null ) { // import vocab to avoid spurious warnings
-				LOG.info("token vocab file "+vocabName);
-				g.importTokensFromTokensFile();
-			}
-
-			VirtualFile vfile = file.getVirtualFile();
-			if ( vfile==null ) {
-				LOG.error("doAnnotate no virtual file for "+file);
-				return listener.issues;
-			}
-			g.fileName = vfile.getPath();
-			antlr.process(g, false);
-
-			for (Issue issue : listener.issues) {
+			GrammarCompilationCache.Compilation c =
+				GrammarCompilationCache.getInstance(file.getProject()).getCompilation(grammarFileName, fileContents);
+			if ( c.g==null ) return Collections.emptyList(); // syntax errors show up as error nodes in the PSI
+			for (ANTLRMessage msg : c.messages) {
+				Issue issue = new Issue(msg);
 				processIssue(file, issue);
+				issues.add(issue);
 			}
 		}
 		catch (Exception e) {
 			LOG.error("antlr can't process "+file.getName(), e);
 		}
-		return listener.issues;
+		return issues;
 	}
 
 	/** Called 3rd */
@@ -4,11 +4,14 @@ import com.intellij.extapi.psi.PsiFileBase;
 import com.intellij.openapi.fileTypes.FileType;
 import com.intellij.psi.FileViewProvider;
 import com.intellij.psi.PsiElement;
+import org.antlr.intellij.plugin.psi.GrammarHeader;
 import org.jetbrains.annotations.NotNull;
 
 import javax.swing.*;
 
 public class ANTLRv4FileRoot extends PsiFileBase {
+	private volatile GrammarHeader header;
+
     public ANTLRv4FileRoot(@NotNull FileViewProvider viewProvider) {
         super(viewProvider, ANTLRv4Language.INSTANCE);
     }
@@ -29,6 +32,15 @@ public class ANTLRv4FileRoot extends PsiFileBase {
 		return Icons.FILE;
     }
 
+	/** The grammar's type, name, options, imports and tokens; only edits
+	 *  before the rules make this look at the tree again.
+	 */
+	public GrammarHeader getGrammarHeader() {
+		GrammarHeader h = GrammarHeader.getHeader(this, header);
+		header = h;
+		return h;
+	}
+
 	@NotNull
 	@Override
 	public PsiElement[] getChildren() {
@@ -1,9 +1,12 @@
 package org.antlr.intellij.plugin;
 
+import com.intellij.lang.cacheBuilder.DefaultWordsScanner;
 import com.intellij.lang.cacheBuilder.WordsScanner;
 import com.intellij.lang.findUsages.FindUsagesProvider;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.util.PsiTreeUtil;
+import org.antlr.intellij.plugin.adaptors.ANTLRv4LexerAdaptor;
+import org.antlr.intellij.plugin.parser.ANTLRv4Lexer;
 import org.antlr.intellij.plugin.psi.LexerRuleRefNode;
 import org.antlr.intellij.plugin.psi.LexerRuleSpecNode;
 import org.antlr.intellij.plugin.psi.ParserRuleRefNode;
@@ -20,25 +23,18 @@ public class ANTLRv4FindUsagesProvider implements FindUsagesProvider {
 //		return psiElement instanceof PsiNamedElement;
 	}
 
+	/** Lets the word index find the grammars that mention a rule name, so
+	 *  usage searches and rename only look at those. A new scanner each
+	 *  time since it holds a lexer.
+	 */
 	@Nullable
 	@Override
 	public WordsScanner getWordsScanner() {
-		return null; // seems ok as JavaFindUsagesProvider does same thing
-//		System.out.println("getWordsScanner()");
-//		final ANTLRv4Lexer lexer = new ANTLRv4Lexer(null);
-//
-//		LexerATNSimulator sim =
-//			ANTLRUtils.getLexerATNSimulator(lexer, ANTLRv4Lexer._ATN, lexer.getInterpreter().decisionToDFA,
-//											lexer.getInterpreter().getSharedContextCache());
-//		lexer.setInterpreter(sim);
-//		WordsScanner scanner =
-//			new DefaultWordsScanner(new LexerAdaptor(lexer),
-//									TokenSet.create(ANTLRv4TokenTypes.RULE_REF,
-//													ANTLRv4TokenTypes.TOKEN_REF),
-//									ANTLRv4TokenTypes.COMMENTS,
-//									TokenSet.create(ANTLRv4TokenTypes.STRING_LITERAL)
-//			);
-//		return scanner;
+		ANTLRv4Lexer lexer = new ANTLRv4Lexer(null);
+		return new DefaultWordsScanner(new ANTLRv4LexerAdaptor(ANTLRv4Language.INSTANCE, lexer),
+									   ANTLRv4TokenTypes.IDENTIFIERS,
+									   ANTLRv4TokenTypes.COMMENTS,
+									   ANTLRv4TokenTypes.STRINGS);
 	}
 
 	@Nullable
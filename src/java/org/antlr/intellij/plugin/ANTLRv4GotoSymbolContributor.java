@@ -0,0 +1,30 @@
+package org.antlr.intellij.plugin;
+
+import com.intellij.navigation.ChooseByNameContributor;
+import com.intellij.navigation.NavigationItem;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.ArrayUtil;
+import org.antlr.intellij.plugin.psi.RuleNameIndex;
+import org.antlr.intellij.plugin.psi.RuleSpecNode;
+
+import java.util.Collection;
+import java.util.List;
+
+/** Go to Symbol for parser and lexer rules in all grammars, from RuleNameIndex */
+public class ANTLRv4GotoSymbolContributor implements ChooseByNameContributor {
+	@Override
+	public String[] getNames(Project project, boolean includeNonProjectItems) {
+		Collection<String> names = RuleNameIndex.getAllRuleNames(project);
+		return ArrayUtil.toStringArray(names);
+	}
+
+	@Override
+	public NavigationItem[] getItemsByName(String name, String pattern, Project project, boolean includeNonProjectItems) {
+		GlobalSearchScope scope = includeNonProjectItems ?
+			GlobalSearchScope.allScope(project) :
+			GlobalSearchScope.projectScope(project);
+		List<RuleSpecNode> specs = RuleNameIndex.findRuleSpecs(project, name, scope);
+		return specs.toArray(new NavigationItem[specs.size()]);
+	}
+}
@@ -1,39 +1,43 @@
 package org.antlr.intellij.plugin;
 
 import com.intellij.codeHighlighting.Pass;
-import com.intellij.codeInsight.daemon.GutterIconNavigationHandler;
 import com.intellij.codeInsight.daemon.LineMarkerInfo;
 import com.intellij.codeInsight.daemon.LineMarkerProvider;
 import com.intellij.openapi.editor.markup.GutterIconRenderer;
 import com.intellij.psi.PsiElement;
+import org.antlr.intellij.plugin.psi.GrammarOutline;
 import org.antlr.intellij.plugin.psi.RuleSpecNode;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.awt.event.MouseEvent;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
+/** Marks rule definitions in the gutter with their lexer or parser rule
+ *  icon. Rather than asking about every element, the markers come from the
+ *  file's GrammarOutline, which already lists them.
+ */
 public class ANTLRv4LineMarkerProvider implements LineMarkerProvider {
 	@Nullable
 	@Override
 	public LineMarkerInfo getLineMarkerInfo(@NotNull PsiElement element) {
-		final GutterIconNavigationHandler<PsiElement> navHandler =
-			new GutterIconNavigationHandler<PsiElement>() {
-				@Override
-				public void navigate(MouseEvent e, PsiElement elt) {
-					System.out.println("don't click on me");
-				}
-			};
-		if ( element instanceof RuleSpecNode ) {
-			return new LineMarkerInfo<PsiElement>(element, element.getTextRange(), Icons.FILE,
-												  Pass.UPDATE_ALL, null, navHandler,
-												  GutterIconRenderer.Alignment.LEFT);
-		}
 		return null;
 	}
 
 	@Override
 	public void collectSlowLineMarkers(@NotNull List<PsiElement> elements, @NotNull Collection<LineMarkerInfo> result) {
+		if ( elements.isEmpty() ) return;
+		// elements is just the part of the file being highlighted
+		Set<PsiElement> inRange = new HashSet<PsiElement>(elements);
+		GrammarOutline outline = GrammarOutline.getOutline(elements.get(0).getContainingFile());
+		for (RuleSpecNode spec : outline.ruleSpecs) {
+			if ( inRange.contains(spec) ) {
+				result.add(new LineMarkerInfo<PsiElement>(spec, spec.getTextRange(), spec.getIcon(0),
+														  Pass.UPDATE_ALL, null, null,
+														  GutterIconRenderer.Alignment.LEFT));
+			}
+		}
 	}
 }
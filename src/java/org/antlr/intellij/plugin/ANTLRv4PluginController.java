@@ -36,7 +36,8 @@ import com.intellij.openapi.wm.ToolWindowManager;
 import com.intellij.ui.content.Content;
 import com.intellij.ui.content.ContentFactory;
 import com.intellij.util.messages.MessageBusConnection;
-import org.antlr.intellij.adaptor.parser.SyntaxErrorListener;
+import org.antlr.intellij.plugin.parsing.CompiledRecognizerCache;
+import org.antlr.intellij.plugin.parsing.GrammarCompilationCache;
 import org.antlr.intellij.plugin.parsing.ParsingResult;
 import org.antlr.intellij.plugin.parsing.ParsingUtils;
 import org.antlr.intellij.plugin.parsing.RunANTLROnGrammarFile;
@@ -87,11 +88,20 @@ public class ANTLRv4PluginController implements ProjectComponent {
 	public ToolWindow previewWindow;	// same for all grammar editor
 	public PreviewPanel previewPanel;	// same for all grammar editor
 
+	/** Compiled grammars shared by the annotator, preview and code generation */
+	public final GrammarCompilationCache compilationCache;
+	public final GrammarReloadScheduler reloadScheduler;
+	/** Generated recognizers the preview runs instead of the interpreters if asked to */
+	public final CompiledRecognizerCache compiledRecognizers;
+
 	public MyVirtualFileAdapter myVirtualFileAdapter = new MyVirtualFileAdapter();
 	public MyFileEditorManagerAdapter myFileEditorManagerAdapter = new MyFileEditorManagerAdapter();
 
 	public ANTLRv4PluginController(Project project) {
 		this.project = project;
+		this.compilationCache = new GrammarCompilationCache(project);
+		this.reloadScheduler = new GrammarReloadScheduler(this);
+		this.compiledRecognizers = new CompiledRecognizerCache(project);
 	}
 
 	public static ANTLRv4PluginController getInstance(Project project) {
@@ -177,6 +187,11 @@ public class ANTLRv4PluginController implements ProjectComponent {
 
 		console.dispose();
 
+		previewPanel.parseScheduler.cancel();
+		reloadScheduler.cancel();
+		compilationCache.clear();
+		compiledRecognizers.clear();
+
 		for (PreviewState it : grammarToPreviewState.values()) {
 			previewPanel.inputPanel.releaseEditor(it);
 		}
@@ -269,12 +284,19 @@ public class ANTLRv4PluginController implements ProjectComponent {
 
 	public void grammarFileSavedEvent(VirtualFile grammarFile) {
 		LOG.info("grammarFileSavedEvent "+grammarFile.getPath()+" "+project.getName());
-		updateGrammarObjectsFromFile(grammarFile); // force reload
+		reloadScheduler.schedule(grammarFile); // force reload, off the save path
+	}
+
+	/** The reload scheduled by {@link #grammarFileSavedEvent} is done and
+	 *  the new grammars are in grammarFile's preview state. On the EDT.
+	 */
+	public void grammarFileReloaded(VirtualFile grammarFile) {
+		LOG.info("grammarFileReloaded "+grammarFile.getPath()+" "+project.getName());
 		if ( previewPanel!=null ) {
 			previewPanel.grammarFileSaved(grammarFile);
 		}
 		else {
-			LOG.error("grammarFileSavedEvent called before preview panel created");
+			LOG.error("grammarFileReloaded called before preview panel created");
 		}
 		runANTLRTool(grammarFile);
 	}
@@ -338,7 +360,7 @@ public class ANTLRv4PluginController implements ProjectComponent {
 		previewWindow.hide(null);
 	}
 
-	/** Make sure to run after updating grammars in previewState */
+	/** Grammars come from the compilation cache, same as for the preview */
 	public void runANTLRTool(final VirtualFile grammarFile) {
 		String title = "ANTLR Code Generation";
 		boolean canBeCancelled = true;
@@ -374,15 +396,24 @@ public class ANTLRv4PluginController implements ProjectComponent {
 
 	public String updateGrammarObjectsFromFile_(VirtualFile grammarFile) {
 		String grammarFileName = grammarFile.getPath();
-		PreviewState previewState = getPreviewState(grammarFile);
 		Grammar[] grammars = ParsingUtils.loadGrammars(grammarFileName, project);
+		setGrammars(grammarFile, grammars);
+		return grammarFileName;
+	}
+
+	/** Swap in grammars loaded for grammarFile, if any */
+	public void setGrammars(VirtualFile grammarFile, Grammar[] grammars) {
+		PreviewState previewState = getPreviewState(grammarFile);
 		if (grammars != null) {
 			synchronized (previewState) { // build atomically
-				previewState.lg = grammars[0];
-				previewState.g = grammars[1];
+				if ( previewState.lg!=grammars[0] || previewState.g!=grammars[1] ) {
+					previewState.lg = grammars[0];
+					previewState.g = grammars[1];
+					previewState.invalidateInterpreterCache(); // ATNs etc. are for the old grammars
+				}
+				// else the compilation cache handed back the same grammars; keep the warm DFA
 			}
 		}
-		return grammarFileName;
 	}
 
 	public PreviewState getAssociatedParserIfLexer(String grammarFileName) {
@@ -401,7 +432,12 @@ public class ANTLRv4PluginController implements ProjectComponent {
 		return null;
 	}
 
-	public ParsingResult parseText(final VirtualFile grammarFile, String inputText) throws IOException {
+	/** Parse inputText, version inputVersion of the preview input (see
+	 *  {@link PreviewState#inputEdits}), with the grammar(s) for grammarFile.
+	 *  This runs on a pooled thread (see {@link org.antlr.intellij.plugin.preview.PreviewParseScheduler})
+	 *  so it must not touch the UI; the caller publishes the result on the EDT.
+	 */
+	public ParsingResult parseText(final VirtualFile grammarFile, String inputText, long inputVersion, boolean profile) throws IOException {
 		String grammarFileName = grammarFile.getPath();
 		final PreviewState previewState = getPreviewState(grammarFile);
 		if (!new File(grammarFileName).exists()) {
@@ -409,24 +445,21 @@ public class ANTLRv4PluginController implements ProjectComponent {
 			return null;
 		}
 
-		// Wipes out the console and also any error annotations
-		previewPanel.inputPanel.clearParseErrors(grammarFile);
+		return ParsingUtils.parseText(previewState, previewPanel, grammarFile, inputText, inputVersion, profile);
+	}
 
-		long start = System.nanoTime();
-		previewState.parsingResult = ParsingUtils.parseText(previewState, previewPanel, grammarFile, inputText);
-		if ( previewState.parsingResult==null ) {
+	/** Like {@link #parseText} but reads inputFile straight from disk
+	 *  instead of from a String; see {@link ParsingUtils#parseFile}.
+	 */
+	public ParsingResult parseFile(final VirtualFile grammarFile, File inputFile, boolean profile) throws IOException {
+		String grammarFileName = grammarFile.getPath();
+		final PreviewState previewState = getPreviewState(grammarFile);
+		if (!new File(grammarFileName).exists()) {
+			LOG.error("parseFile grammar doesn't exist " + grammarFileName);
 			return null;
 		}
-		long stop = System.nanoTime();
-
-		previewPanel.profilerPanel.setProfilerData(previewState, stop-start);
-
-		SyntaxErrorListener syntaxErrorListener = previewState.parsingResult.syntaxErrorListener;
-		previewPanel.inputPanel.showParseErrors(grammarFile, syntaxErrorListener.getSyntaxErrors());
-
-		previewPanel.getProfilerPanel().tagAmbiguousDecisionsInGrammar(previewState);
 
-		return previewState.parsingResult;
+		return ParsingUtils.parseFile(previewState, previewPanel, grammarFile, inputFile, profile);
 	}
 
 	public PreviewPanel getPreviewPanel() {
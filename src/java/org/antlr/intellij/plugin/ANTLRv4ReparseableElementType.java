@@ -0,0 +1,120 @@
+package org.antlr.intellij.plugin;
+
+import com.intellij.lang.ASTFactory;
+import com.intellij.lang.ASTNode;
+import com.intellij.lang.Language;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.IReparseableElementType;
+import org.antlr.intellij.plugin.parser.ANTLRv4Lexer;
+import org.antlr.intellij.plugin.parser.ANTLRv4Parser;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.BufferedTokenStream;
+import org.antlr.v4.runtime.ListTokenSource;
+import org.antlr.v4.runtime.Token;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Node type for a rule spec or @action that IDEA can reparse on its own
+ *  when an edit stays inside it, instead of reparsing the whole file. The
+ *  reparse starts at the ANTLRv4Parser rule with the same index; see
+ *  ANTLRv4GrammarParser.parseImpl().
+ *
+ *  isParsable() only accepts text that lexes into tokens that don't run
+ *  past its end and parses cleanly as that one rule, so the element's
+ *  boundaries in the file don't move and the partial reparse can't differ
+ *  from a full one. Once a rule has syntax errors, recovery in a full parse
+ *  can run into the next rule, so those edits reparse the whole file.
+ *
+ *  The text is lexed from the lexer's initial state, but in the file '['
+ *  lexes as a char set or an arg action depending on the rule type the
+ *  lexer carries in from before the element, which isParsable() can't see.
+ *  So text with any [...] in it isn't reparsed on its own either.
+ */
+public class ANTLRv4ReparseableElementType extends IReparseableElementType {
+	public final int ruleIndex;
+
+	public ANTLRv4ReparseableElementType(int ruleIndex) {
+		super(ANTLRv4Parser.ruleNames[ruleIndex], ANTLRv4Language.INSTANCE);
+		this.ruleIndex = ruleIndex;
+	}
+
+	public int getRuleIndex() {
+		return ruleIndex;
+	}
+
+	/** The chameleon IDEA swaps in for the old element; its contents are
+	 *  parsed by ANTLRv4GrammarParser when first asked for.
+	 */
+	@Override
+	public ASTNode createNode(CharSequence text) {
+		return ASTFactory.lazy(this, text);
+	}
+
+	@Override
+	public boolean isParsable(CharSequence buffer, Language fileLanguage, Project project) {
+		List<Token> tokens = getSignificantTokens(buffer);
+		if ( tokens==null || tokens.isEmpty() ) return false;
+
+		// the parser sees every token PsiBuilder doesn't skip, like in the file
+
+		ANTLRv4Parser parser = new ANTLRv4Parser(new BufferedTokenStream(new ListTokenSource(tokens)));
+		parser.removeErrorListeners();
+		parser.setBuildParseTree(false);
+		switch ( ruleIndex ) {
+			case ANTLRv4Parser.RULE_parserRuleSpec :
+				parser.parserRuleSpec();
+				break;
+			case ANTLRv4Parser.RULE_lexerRule :
+				parser.lexerRule();
+				break;
+			case ANTLRv4Parser.RULE_action :
+				parser.action();
+				break;
+			default :
+				return false;
+		}
+		return parser.getNumberOfSyntaxErrors()==0 &&
+			   parser.getInputStream().LA(1)==Token.EOF;
+	}
+
+	/** Lex buffer the way it lexes in the file and return the tokens the
+	 *  parser sees, or null if buffer starts or ends with whitespace or a
+	 *  comment, which would belong to the parent, its last token could
+	 *  run on past the end, like an action missing its '}', or it has a
+	 *  [...] that might lex differently in the file.
+	 */
+	protected static List<Token> getSignificantTokens(CharSequence buffer) {
+		// one char past the end shows whether the last token was done
+		ANTLRv4Lexer lexer = new ANTLRv4Lexer(new ANTLRInputStream(buffer.toString()+"\n"));
+		lexer.removeErrorListeners();
+		List<Token> tokens = new ArrayList<Token>();
+		int end = buffer.length();
+		for (Token t = lexer.nextToken(); t.getType()!=Token.EOF; t = lexer.nextToken()) {
+			if ( t.getStartIndex()>=end ) break;
+			IElementType type = ANTLRv4TokenTypes.getTokenElementType(t.getType());
+			boolean significant = !ANTLRv4TokenTypes.WHITESPACES.contains(type) &&
+								  !ANTLRv4TokenTypes.COMMENTS.contains(type);
+			if ( t.getStopIndex()>=end || (!significant && (t.getStartIndex()==0 || t.getStopIndex()==end-1)) ) {
+				return null;
+			}
+			if ( isBracketed(t.getType()) ) return null;
+			if ( significant ) tokens.add(t);
+		}
+		return tokens;
+	}
+
+	/** Tokens that start with '[', whose lexing depends on the rule type */
+	protected static boolean isBracketed(int tokenType) {
+		switch ( tokenType ) {
+			case ANTLRv4Lexer.ARG_ACTION :
+			case ANTLRv4Lexer.UNTERMINATED_ARG_ACTION :
+			case ANTLRv4Lexer.LEXER_CHAR_SET :
+			case ANTLRv4Lexer.UNTERMINATED_CHAR_SET :
+				return true;
+			default :
+				return false;
+		}
+	}
+}
@@ -22,6 +22,14 @@ public class ANTLRv4TokenTypes {
 		ElementTypeFactory.getRuleElementTypes(ANTLRv4Language.INSTANCE,
 											   Arrays.asList(ANTLRv4Parser.ruleNames));
 
+	/** Rule specs and @actions get node types IDEA can reparse on their own */
+	public static final ANTLRv4ReparseableElementType PARSER_RULE_SPEC =
+		new ANTLRv4ReparseableElementType(ANTLRv4Parser.RULE_parserRuleSpec);
+	public static final ANTLRv4ReparseableElementType LEXER_RULE =
+		new ANTLRv4ReparseableElementType(ANTLRv4Parser.RULE_lexerRule);
+	public static final ANTLRv4ReparseableElementType AT_ACTION =
+		new ANTLRv4ReparseableElementType(ANTLRv4Parser.RULE_action);
+
     public static final TokenSet COMMENTS =
 		ElementTypeFactory.createTokenSet(
 			ANTLRv4Language.INSTANCE,
@@ -36,6 +44,20 @@ public class ANTLRv4TokenTypes {
 			Arrays.asList(ANTLRv4Lexer.tokenNames),
 			ANTLRv4Lexer.WS);
 
+	/** Rule and token names, for the word index */
+	public static final TokenSet IDENTIFIERS =
+		ElementTypeFactory.createTokenSet(
+			ANTLRv4Language.INSTANCE,
+			Arrays.asList(ANTLRv4Lexer.tokenNames),
+			ANTLRv4Lexer.RULE_REF,
+			ANTLRv4Lexer.TOKEN_REF);
+
+	public static final TokenSet STRINGS =
+		ElementTypeFactory.createTokenSet(
+			ANTLRv4Language.INSTANCE,
+			Arrays.asList(ANTLRv4Lexer.tokenNames),
+			ANTLRv4Lexer.STRING_LITERAL);
+
 	public static final TokenSet KEYWORDS =
 		ElementTypeFactory.createTokenSet(
 			ANTLRv4Language.INSTANCE,
@@ -48,6 +70,21 @@ public class ANTLRv4TokenTypes {
     public static RuleElementType getRuleElementType(@MagicConstant(valuesFromClass = ANTLRv4Parser.class)int ruleIndex){
         return RULE_ELEMENT_TYPES.get(ruleIndex);
     }
+	/** The type of PSI nodes built for a rule; the reparseable type for
+	 *  rule specs and @actions, else the rule's RuleElementType.
+	 */
+	public static IElementType getRuleNodeType(@MagicConstant(valuesFromClass = ANTLRv4Parser.class)int ruleIndex) {
+		switch ( ruleIndex ) {
+			case ANTLRv4Parser.RULE_parserRuleSpec :
+				return PARSER_RULE_SPEC;
+			case ANTLRv4Parser.RULE_lexerRule :
+				return LEXER_RULE;
+			case ANTLRv4Parser.RULE_action :
+				return AT_ACTION;
+			default :
+				return RULE_ELEMENT_TYPES.get(ruleIndex);
+		}
+	}
     public static TokenElementType getTokenElementType(@MagicConstant(valuesFromClass = ANTLRv4Lexer.class)int ruleIndex){
         return TOKEN_ELEMENT_TYPES.get(ruleIndex);
     }
@@ -0,0 +1,147 @@
+package org.antlr.intellij.plugin;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.progress.impl.BackgroundableProcessIndicator;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.Alarm;
+import org.antlr.intellij.plugin.parsing.ParsingUtils;
+import org.antlr.intellij.plugin.preview.PreviewState;
+import org.antlr.v4.tool.Grammar;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Reloads grammars after a save in a background task rather than on the
+ *  save path, which stalled the IDE for big grammars.
+ *
+ *  Saves within {@link #COALESCE_DELAY_MS} of each other, such as a save
+ *  all or auto-save while typing, become one reload of every file saved.
+ *  A save while a reload is running cancels it; nothing from a canceled or
+ *  superseded reload is used. Once the grammars are compiled, the task's
+ *  success callback swaps them into each {@link PreviewState} on the EDT
+ *  and tells the controller, so the preview never sees a half-loaded pair.
+ *
+ *  The ANTLR tool doesn't check for cancellation, so a compile in progress
+ *  runs to completion; we check between grammars.
+ */
+public class GrammarReloadScheduler {
+	public static final Logger LOG = Logger.getInstance("ANTLR GrammarReloadScheduler");
+
+	/** How long to wait for more saves before reloading */
+	public static final int COALESCE_DELAY_MS = 300;
+
+	protected final ANTLRv4PluginController controller;
+	protected final Alarm alarm;
+
+	/** Saved grammars not reloaded yet; only touched on the EDT */
+	protected final Set<VirtualFile> savedFiles = new LinkedHashSet<VirtualFile>();
+
+	/** Bumped for each save; a reload is only used if its revision is still current */
+	protected long revision;
+
+	protected ProgressIndicator inFlight;
+
+	public GrammarReloadScheduler(ANTLRv4PluginController controller) {
+		this.controller = controller;
+		this.alarm = new Alarm(Alarm.ThreadToUse.SWING_THREAD, controller.project);
+	}
+
+	/** Request a reload of grammarFile, just saved. Must be called from the EDT. */
+	public void schedule(VirtualFile grammarFile) {
+		savedFiles.add(grammarFile);
+		final long rev = ++revision;
+		alarm.cancelAllRequests();
+		cancelInFlight();
+		alarm.addRequest(
+			new Runnable() {
+				@Override
+				public void run() {
+					reload(rev);
+				}
+			},
+			COALESCE_DELAY_MS
+		);
+	}
+
+	/** Drop any pending or running reload */
+	public void cancel() {
+		revision++;
+		savedFiles.clear();
+		alarm.cancelAllRequests();
+		cancelInFlight();
+	}
+
+	protected void cancelInFlight() {
+		if ( inFlight!=null ) {
+			inFlight.cancel();
+			inFlight = null;
+		}
+	}
+
+	/** On the EDT; decide what to reload, then compile in the background */
+	protected void reload(final long rev) {
+		if ( rev!=revision || controller.projectIsClosed ) {
+			return;
+		}
+		final List<VirtualFile> saved = new ArrayList<VirtualFile>(savedFiles);
+		// if a grammar is a separate lexer, its parser must pick up the new tokens
+		final Set<VirtualFile> toLoad = new LinkedHashSet<VirtualFile>(saved);
+		for (VirtualFile grammarFile : saved) {
+			PreviewState s = controller.getAssociatedParserIfLexer(grammarFile.getPath());
+			if ( s!=null ) {
+				toLoad.add(s.grammarFile);
+			}
+		}
+
+		String title = saved.size()==1 ? "Reloading "+saved.get(0).getName() : "Reloading grammars";
+		Task.Backgroundable task = new Task.Backgroundable(controller.project, title, true) {
+			final Map<VirtualFile, Grammar[]> loaded = new LinkedHashMap<VirtualFile, Grammar[]>();
+
+			@Override
+			public void run(@NotNull ProgressIndicator indicator) {
+				for (VirtualFile grammarFile : toLoad) {
+					indicator.checkCanceled();
+					indicator.setText2(grammarFile.getName());
+					loaded.put(grammarFile, ParsingUtils.loadGrammars(grammarFile.getPath(), controller.project));
+				}
+				indicator.checkCanceled();
+			}
+
+			@Override
+			public void onSuccess() {
+				if ( rev!=revision || controller.projectIsClosed ) {
+					return; // a newer save will reload again
+				}
+				inFlight = null;
+				savedFiles.removeAll(saved);
+				for (Map.Entry<VirtualFile, Grammar[]> entry : loaded.entrySet()) {
+					controller.setGrammars(entry.getKey(), entry.getValue());
+				}
+				for (VirtualFile grammarFile : saved) {
+					controller.grammarFileReloaded(grammarFile);
+				}
+			}
+
+			@Override
+			public void onCancel() {
+				if ( rev==revision ) { // canceled from the status bar; wait for the next save
+					inFlight = null;
+					savedFiles.removeAll(saved);
+				}
+			}
+		};
+		LOG.info("reload "+toLoad);
+		// shows in the status bar like any background task, where it can be canceled too
+		ProgressIndicator indicator = new BackgroundableProcessIndicator(task);
+		inFlight = indicator;
+		ProgressManager.getInstance().runProcessWithProgressAsynchronously(task, indicator);
+	}
+}
@@ -10,11 +10,14 @@ public class PluginIgnoreMissingTokensFileErrorManager extends ErrorManager {
 		super(tool);
 	}
 
+	public static boolean isIgnored(ErrorType etype) {
+		return etype==ErrorType.CANNOT_FIND_TOKENS_FILE_REFD_IN_GRAMMAR ||
+			   etype==ErrorType.CANNOT_FIND_TOKENS_FILE_GIVEN_ON_CMDLINE;
+	}
+
 	@Override
 	public void emit(ErrorType etype, ANTLRMessage msg) {
-		if ( etype==ErrorType.CANNOT_FIND_TOKENS_FILE_REFD_IN_GRAMMAR ||
-			 etype==ErrorType.CANNOT_FIND_TOKENS_FILE_GIVEN_ON_CMDLINE )
-		{
+		if ( isIgnored(etype) ) {
 			return; // ignore these
 		}
 		super.emit(etype, msg);
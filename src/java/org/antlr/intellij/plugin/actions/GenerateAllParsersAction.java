@@ -0,0 +1,40 @@
+package org.antlr.intellij.plugin.actions;
+
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.DumbAware;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.antlr.intellij.plugin.parsing.ProjectCodeGenerator;
+
+import java.util.List;
+
+/** Generate recognizers for every grammar in the project, in the
+ *  background and in parallel where tokenVocab dependencies allow.
+ */
+public class GenerateAllParsersAction extends AnAction implements DumbAware {
+	public static final Logger LOG = Logger.getInstance("ANTLR GenerateAllAction");
+
+	@Override
+	public void update(AnActionEvent e) {
+		e.getPresentation().setEnabled(e.getProject()!=null);
+	}
+
+	@Override
+	public void actionPerformed(AnActionEvent e) {
+		Project project = e.getProject();
+		if ( project==null ) {
+			LOG.error("actionPerformed no project for "+e);
+			return; // whoa!
+		}
+		// generate from what's in the editors
+		FileDocumentManager.getInstance().saveAllDocuments();
+		List<VirtualFile> grammarFiles = ProjectCodeGenerator.findGrammarFiles(project);
+		LOG.info("actionPerformed "+grammarFiles.size()+" grammars");
+		if ( grammarFiles.isEmpty() ) return;
+		ProgressManager.getInstance().run(new ProjectCodeGenerator(project, grammarFiles));
+	}
+}
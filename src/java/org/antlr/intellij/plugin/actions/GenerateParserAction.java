@@ -1,8 +1,5 @@
 package org.antlr.intellij.plugin.actions;
 
-import com.intellij.notification.Notification;
-import com.intellij.notification.NotificationType;
-import com.intellij.notification.Notifications;
 import com.intellij.openapi.actionSystem.AnAction;
 import com.intellij.openapi.actionSystem.AnActionEvent;
 import com.intellij.openapi.actionSystem.PlatformDataKeys;
@@ -12,16 +9,11 @@ import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.DumbAware;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiDocumentManager;
 import org.antlr.intellij.plugin.configdialogs.ConfigANTLRPerGrammar;
 import org.antlr.intellij.plugin.parsing.RunANTLROnGrammarFile;
 
-import java.io.File;
-import java.util.HashSet;
-import java.util.Set;
-
 /** Generate parser from ANTLR grammar;
  *  learned how to do from Grammar-Kit by Gregory Shrago.
  */
@@ -76,19 +68,8 @@ public class GenerateParserAction extends AnAction implements DumbAware {
 			// if everything already saved (not stale) then run ANTLR
 			// if had to be saved and autogen NOT on, then run ANTLR
 			// Otherwise, the save file event will have or will run ANTLR.
-			ProgressManager.getInstance().run(gen); //, "Generating", canBeCancelled, e.getData(PlatformDataKeys.PROJECT));
-
-			// refresh from disk to see new files
-			Set<File> generatedFiles = new HashSet<File>();
-			generatedFiles.add(new File(gen.getOutputDirName()));
-			LocalFileSystem.getInstance().refreshIoFiles(generatedFiles, true, true, null);
-			// pop up a notification
-			Notification notification =
-				new Notification(RunANTLROnGrammarFile.groupDisplayId,
-								 "parser for " + grammarFile.getName() + " generated",
-								 "to " + gen.getOutputDirName(),
-								 NotificationType.INFORMATION);
-			Notifications.Bus.notify(notification, project);
+			// runs in the background; refreshes the output dir and says so when done
+			ProgressManager.getInstance().run(gen);
 		}
 	}
 }
@@ -4,9 +4,12 @@ import com.intellij.openapi.actionSystem.AnActionEvent;
 import com.intellij.openapi.actionSystem.LangDataKeys;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.LogicalPosition;
+import com.intellij.openapi.editor.ex.MarkupModelEx;
+import com.intellij.openapi.editor.ex.RangeHighlighterEx;
 import com.intellij.openapi.editor.markup.MarkupModel;
 import com.intellij.openapi.editor.markup.RangeHighlighter;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.Processor;
 import org.antlr.intellij.plugin.profiler.ProfilerPanel;
 import org.antlr.v4.runtime.atn.AmbiguityInfo;
 import org.antlr.v4.runtime.atn.DecisionEventInfo;
@@ -52,10 +55,26 @@ public class MyActionUtils {
 	}
 
 	@NotNull
-	public static List<RangeHighlighter> getRangeHighlightersAtOffset(Editor editor, int offset) {
+	public static List<RangeHighlighter> getRangeHighlightersAtOffset(Editor editor, final int offset) {
 		MarkupModel markupModel = editor.getMarkupModel();
 		// collect all highlighters and combine to make a single tool tip
-		List<RangeHighlighter> highlightersAtOffset = new ArrayList<RangeHighlighter>();
+		final List<RangeHighlighter> highlightersAtOffset = new ArrayList<RangeHighlighter>();
+		if ( markupModel instanceof MarkupModelEx ) {
+			// called on every mouse move; ask the markup model's interval tree
+			// rather than scan every highlighter
+			((MarkupModelEx)markupModel).processRangeHighlightersOverlappingWith(
+				offset, offset+1,
+				new Processor<RangeHighlighterEx>() {
+					@Override
+					public boolean process(RangeHighlighterEx r) {
+						if ( offset>=r.getStartOffset() && offset<r.getEndOffset() ) {
+							highlightersAtOffset.add(r);
+						}
+						return true;
+					}
+				});
+			return highlightersAtOffset;
+		}
 		for (RangeHighlighter r : markupModel.getAllHighlighters()) {
 			int a = r.getStartOffset();
 			int b = r.getEndOffset();
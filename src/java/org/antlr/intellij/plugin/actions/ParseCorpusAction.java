@@ -0,0 +1,106 @@
+package org.antlr.intellij.plugin.actions;
+
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.PlatformDataKeys;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileChooser.FileChooser;
+import com.intellij.openapi.fileChooser.FileChooserDescriptorFactory;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.DumbAware;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.wm.ToolWindow;
+import com.intellij.ui.content.Content;
+import com.intellij.ui.content.ContentFactory;
+import com.intellij.ui.content.ContentManager;
+import org.antlr.intellij.plugin.ANTLRv4PluginController;
+import org.antlr.intellij.plugin.parsing.CorpusParser;
+import org.antlr.intellij.plugin.preview.PreviewState;
+import org.antlr.intellij.plugin.profiler.CorpusPanel;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.List;
+
+/** Parse every file in a directory, recursively, with the grammar's
+ *  preview start rule and show time, token and error counts per file
+ *  in the tool output window. Runs in the background on all cores.
+ */
+public class ParseCorpusAction extends AnAction implements DumbAware {
+	public static final Logger LOG = Logger.getInstance("ANTLR ParseCorpusAction");
+
+	@Override
+	public void update(AnActionEvent e) {
+		MyActionUtils.selectedFileIsGrammar(e);
+	}
+
+	@Override
+	public void actionPerformed(final AnActionEvent e) {
+		final Project project = e.getData(PlatformDataKeys.PROJECT);
+		if ( project==null ) {
+			LOG.error("actionPerformed no project for "+e);
+			return; // whoa!
+		}
+		VirtualFile grammarFile = MyActionUtils.getGrammarFileFromEvent(e);
+		LOG.info("actionPerformed "+(grammarFile==null ? "NONE" : grammarFile));
+		if ( grammarFile==null ) return;
+
+		ANTLRv4PluginController controller = ANTLRv4PluginController.getInstance(project);
+		PreviewState previewState = controller.getPreviewState(grammarFile);
+		final CorpusParser corpusParser = CorpusParser.create(previewState, true);
+		if ( corpusParser==null ) {
+			Messages.showErrorDialog(project,
+									 "Fix any grammar errors and pick a start rule in the ANTLR Preview first",
+									 "Parse Corpus");
+			return;
+		}
+
+		VirtualFile dir = FileChooser.chooseFile(FileChooserDescriptorFactory.createSingleFolderDescriptor(),
+												 project, null);
+		if ( dir==null ) return;
+		final File corpusDir = VfsUtilCore.virtualToIoFile(dir);
+
+		final CorpusPanel panel = new CorpusPanel(project, corpusParser, corpusDir);
+		ToolWindow consoleWindow = controller.getConsoleWindow();
+		ContentManager contentManager = consoleWindow.getContentManager();
+		Content content = ContentFactory.SERVICE.getInstance().createContent(panel, "Corpus "+dir.getName(), false);
+		content.setCloseable(true);
+		contentManager.addContent(content);
+		contentManager.setSelectedContent(content);
+		consoleWindow.show(null);
+
+		Task.Backgroundable task = new Task.Backgroundable(project, "Parsing "+dir.getName(), true) {
+			boolean canceled = false;
+
+			@Override
+			public void run(@NotNull ProgressIndicator indicator) {
+				List<File> files = CorpusParser.collectFiles(corpusDir, new FileFilter() {
+					@Override
+					public boolean accept(File f) {
+						return !f.isHidden();
+					}
+				});
+				indicator.setText("Parsing "+files.size()+" files in "+corpusDir.getPath());
+				corpusParser.parse(files, panel, indicator);
+				canceled = indicator.isCanceled();
+			}
+
+			@Override
+			public void onSuccess() {
+				panel.finished(canceled);
+			}
+
+			@Override
+			public void onCancel() {
+				panel.finished(true);
+			}
+		};
+		ProgressManager.getInstance().run(task);
+	}
+}
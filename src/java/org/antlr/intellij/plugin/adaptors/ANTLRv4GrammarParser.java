@@ -4,8 +4,11 @@ import com.intellij.lang.PsiBuilder;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.psi.tree.IFileElementType;
 import org.antlr.intellij.adaptor.parser.AntlrParser;
+import org.antlr.intellij.adaptor.parser.AstBuilderListener;
+import org.antlr.intellij.adaptor.parser.StreamingAstBuilderListener;
 import org.antlr.intellij.adaptor.parser.SyntaxErrorListener;
 import org.antlr.intellij.plugin.ANTLRv4Language;
+import org.antlr.intellij.plugin.ANTLRv4ReparseableElementType;
 import org.antlr.intellij.plugin.ANTLRv4TokenTypes;
 import org.antlr.intellij.plugin.parser.ANTLRv4Lexer;
 import org.antlr.intellij.plugin.parser.ANTLRv4Parser;
@@ -27,12 +30,44 @@ public class ANTLRv4GrammarParser extends AntlrParser<ANTLRv4Parser> {
 		return parser;
 	}
 
+	@Override
+	protected AstBuilderListener createListener(ANTLRv4Parser parser, IElementType root, PsiBuilder builder) {
+		return new AstBuilderListener(ANTLRv4Language.INSTANCE, parser, builder, root) {
+			@Override
+			protected IElementType getRuleElementType(int ruleIndex) {
+				return ANTLRv4TokenTypes.getRuleNodeType(ruleIndex);
+			}
+		};
+	}
+
+	@Override
+	protected StreamingAstBuilderListener createStreamingListener(ANTLRv4Parser parser, IElementType root, PsiBuilder builder) {
+		return new StreamingAstBuilderListener(ANTLRv4Language.INSTANCE, parser, builder, root) {
+			@Override
+			protected IElementType getRuleElementType(int ruleIndex) {
+				return ANTLRv4TokenTypes.getRuleNodeType(ruleIndex);
+			}
+		};
+	}
+
+	/** Build the PSI tree as we parse; no need for an ANTLR parse tree of
+	 *  every grammar file too.
+	 */
+	@Override
+	protected boolean isStreaming(IElementType root, PsiBuilder builder) {
+		return true;
+	}
+
 	@Override
 	protected ParseTree parseImpl(ANTLRv4Parser parser, IElementType root, PsiBuilder builder) {
 		int startRule;
 		if (root instanceof IFileElementType) {
 			startRule = ANTLRv4Parser.RULE_grammarSpec;
 		}
+		else if (root instanceof ANTLRv4ReparseableElementType) {
+			// reparsing just this rule spec or action
+			startRule = ((ANTLRv4ReparseableElementType)root).getRuleIndex();
+		}
 		else if (root == ANTLRv4TokenTypes.TOKEN_ELEMENT_TYPES.get(ANTLRv4Lexer.TOKEN_REF)
 			|| root == ANTLRv4TokenTypes.TOKEN_ELEMENT_TYPES.get(ANTLRv4Lexer.RULE_REF)) {
 			startRule = ANTLRv4Parser.RULE_atom;
@@ -48,6 +83,15 @@ public class ANTLRv4GrammarParser extends AntlrParser<ANTLRv4Parser> {
 		case ANTLRv4Parser.RULE_atom:
 			return parser.atom();
 
+		case ANTLRv4Parser.RULE_parserRuleSpec:
+			return parser.parserRuleSpec();
+
+		case ANTLRv4Parser.RULE_lexerRule:
+			return parser.lexerRule();
+
+		case ANTLRv4Parser.RULE_action:
+			return parser.action();
+
 		default:
 			String ruleName = ANTLRv4Parser.ruleNames[startRule];
 			throw new UnsupportedOperationException(String.format("cannot start parsing using root element %s", root));
@@ -4,8 +4,21 @@ import com.intellij.lang.Language;
 import org.antlr.intellij.adaptor.lexer.AntlrLexerAdapter;
 import org.antlr.intellij.plugin.parser.ANTLRv4Lexer;
 import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Token;
 
-/** Adapt ANTLR needs to intellij */
+/** Adapt ANTLR needs to intellij. Besides its modes, our lexer tracks
+ *  whether it's in a lexer rule, a parser rule, a named action or tokens
+ *  {...} header, or none of them; that packs into the extra state so no
+ *  states are allocated while highlighting.
+ *
+ *  The rule type decides whether '[' starts a char set or an arg action,
+ *  which scan differently (e.g., ["] vs [a["b"]]), so it matters for
+ *  restarting anywhere inside a rule. After the ';' ending a rule, the
+ *  action ending a named action and the '}' ending tokens {...} it's back
+ *  to invalid and the state is 0, so the highlighter restarts at the start
+ *  of the rule being edited. Mode states never show up at token starts
+ *  since the ArgAction and LexerCharSet modes only emit at the closing ']'.
+ */
 public class ANTLRv4LexerAdaptor extends AntlrLexerAdapter<ANTLRv4LexerState> {
 	private static final ANTLRv4LexerState INITIAL_STATE = new ANTLRv4LexerState(Lexer.DEFAULT_MODE, null, 0);
 
@@ -26,4 +39,45 @@ public class ANTLRv4LexerAdaptor extends AntlrLexerAdapter<ANTLRv4LexerState> {
 
 		return new ANTLRv4LexerState(lexer._mode, lexer._modeStack, ((ANTLRv4Lexer)lexer).getCurrentRuleType());
 	}
+
+	@Override
+	protected int getExtraState(Lexer lexer) {
+		switch (((ANTLRv4Lexer)lexer).getCurrentRuleType()) {
+			case Token.INVALID_TYPE:
+				return 0;
+			case ANTLRv4Lexer.TOKEN_REF:
+				return 1;
+			case ANTLRv4Lexer.RULE_REF:
+				return 2;
+			case ANTLRv4Lexer.AT:
+				return 3;
+			case ANTLRv4Lexer.TOKENS:
+				return 4;
+			default:
+				return -1;
+		}
+	}
+
+	@Override
+	protected void applyExtraState(Lexer lexer, int extraState) {
+		int ruleType;
+		switch (extraState) {
+			case 1:
+				ruleType = ANTLRv4Lexer.TOKEN_REF;
+				break;
+			case 2:
+				ruleType = ANTLRv4Lexer.RULE_REF;
+				break;
+			case 3:
+				ruleType = ANTLRv4Lexer.AT;
+				break;
+			case 4:
+				ruleType = ANTLRv4Lexer.TOKENS;
+				break;
+			default:
+				ruleType = Token.INVALID_TYPE;
+				break;
+		}
+		((ANTLRv4Lexer)lexer).setCurrentRuleType(ruleType);
+	}
 }
@@ -6,6 +6,8 @@ import org.antlr.v4.runtime.Lexer;
 import org.antlr.v4.runtime.misc.IntegerStack;
 import org.antlr.v4.runtime.misc.MurmurHash;
 
+import java.util.Arrays;
+
 public class ANTLRv4LexerState extends AntlrLexerState {
 	/** Tracks whether we are in a lexer rule, a parser rule or neither;
 	 *  managed by the ANTLRv4Lexer grammar.
@@ -33,7 +35,7 @@ public class ANTLRv4LexerState extends AntlrLexerState {
 	protected int hashCodeImpl() {
 		int hash = MurmurHash.initialize();
 		hash = MurmurHash.update(hash, getMode());
-		hash = MurmurHash.update(hash, getModeStack());
+		hash = MurmurHash.update(hash, Arrays.hashCode(getModeStack()));
 		hash = MurmurHash.update(hash, getCurrentRuleType());
 		return MurmurHash.finish(hash, 3);
 	}
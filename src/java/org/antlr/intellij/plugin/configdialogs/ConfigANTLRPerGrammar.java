@@ -31,6 +31,10 @@ public class ConfigANTLRPerGrammar extends DialogWrapper {
 	public static final String PROP_LANGUAGE = "language";
 	public static final String PROP_GEN_LISTENER = "gen-listener";
 	public static final String PROP_GEN_VISITOR = "gen-visitor";
+	/** Not set in the dialog; hash of the inputs last generated from, see
+	 *  {@link RunANTLROnGrammarFile#isGrammarStale()}
+	 */
+	public static final String PROP_INPUT_HASH = "input-hash";
 	private JPanel dialogContents;
 	private JCheckBox generateParseTreeListenerCheckBox;
 	private JCheckBox generateParseTreeVisitorCheckBox;
@@ -79,6 +83,11 @@ public class ConfigANTLRPerGrammar extends DialogWrapper {
 		return props.getBoolean(getPropNameForFile(qualFileName, name), defaultValue);
 	}
 
+	public static void setProp(Project project, String qualFileName, String name, String value) {
+		PropertiesComponent props = PropertiesComponent.getInstance(project);
+		props.setValue(getPropNameForFile(qualFileName, name), value);
+	}
+
 	public static String getParentDir(VirtualFile vfile) {
 		return vfile.getParent().getPath();
 	}
@@ -22,7 +22,7 @@ import org.antlr.intellij.plugin.parser.ANTLRv4Lexer;
 import org.antlr.intellij.plugin.parser.ANTLRv4Parser;
 import org.antlr.intellij.plugin.psi.AtAction;
 import org.antlr.intellij.plugin.psi.GrammarElementRefNode;
-import org.antlr.intellij.plugin.psi.MyPsiUtils;
+import org.antlr.intellij.plugin.psi.GrammarOutline;
 import org.antlr.intellij.plugin.psi.RuleSpecNode;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -43,7 +43,6 @@ public class ANTLRv4FoldingBuilder extends CustomFoldingBuilder {
     private static final TokenElementType BLOCK_COMMENT_TOKEN = ANTLRv4TokenTypes.getTokenElementType(ANTLRv4Lexer.BLOCK_COMMENT);
     private static final TokenElementType LINE_COMMENT_TOKEN = ANTLRv4TokenTypes.getTokenElementType(ANTLRv4Lexer.LINE_COMMENT);
 
-    private static final RuleElementType OPTIONSSPEC = ANTLRv4TokenTypes.getRuleElementType(ANTLRv4Parser.RULE_optionsSpec);
     private static final TokenElementType OPTIONS = ANTLRv4TokenTypes.getTokenElementType(ANTLRv4Lexer.OPTIONS);
 
     private static final RuleElementType TOKENSSPEC = ANTLRv4TokenTypes.getRuleElementType(ANTLRv4Parser.RULE_tokensSpec);
@@ -65,23 +64,26 @@ public class ANTLRv4FoldingBuilder extends CustomFoldingBuilder {
                                             boolean quick) {
         if (!(root instanceof ANTLRv4FileRoot)) return;
 
-        addRuleRefFoldingDescriptors(descriptors, root);
+        // everything but the header comes from one cached walk of the file
+        GrammarOutline outline = GrammarOutline.getOutline((ANTLRv4FileRoot) root);
 
-        addActionFoldingDescriptors(descriptors, root);
+        addRuleRefFoldingDescriptors(descriptors, outline);
+
+        addActionFoldingDescriptors(descriptors, outline);
 
         addHeaderFoldingDescriptor(descriptors, root, document);
 
-        addCommentDescriptors(descriptors, root);
+        addCommentDescriptors(descriptors, outline);
 
-        addOptionsFoldingDescriptor(descriptors, root);
+        addOptionsFoldingDescriptor(descriptors, outline);
 
-        addTokensFoldingDescriptor(descriptors, root);
+        addTokensFoldingDescriptor(descriptors, outline);
 
 
     }
 
-    private static void addTokensFoldingDescriptor(List<FoldingDescriptor> descriptors, PsiElement root) {
-        PsiElement tokensSpec = MyPsiUtils.findFirstChildOfType(root, TOKENSSPEC);
+    private static void addTokensFoldingDescriptor(List<FoldingDescriptor> descriptors, GrammarOutline outline) {
+        PsiElement tokensSpec = outline.tokensSpec;
         if (tokensSpec != null) {
             PsiElement tokens = tokensSpec.getFirstChild();
             assert tokens.getNode().getElementType() == TOKENS;
@@ -92,8 +94,8 @@ public class ANTLRv4FoldingBuilder extends CustomFoldingBuilder {
         }
     }
 
-    private static void addOptionsFoldingDescriptor(List<FoldingDescriptor> descriptors, PsiElement root) {
-        PsiElement optionsSpec = MyPsiUtils.findFirstChildOfType(root, OPTIONSSPEC);
+    private static void addOptionsFoldingDescriptor(List<FoldingDescriptor> descriptors, GrammarOutline outline) {
+        PsiElement optionsSpec = outline.optionsSpec;
         if (optionsSpec != null) {
             PsiElement options = optionsSpec.getFirstChild();
             assert options.getNode().getElementType() == OPTIONS;
@@ -111,9 +113,9 @@ public class ANTLRv4FoldingBuilder extends CustomFoldingBuilder {
         }
     }
 
-    private static void addCommentDescriptors(List<FoldingDescriptor> descriptors, PsiElement root) {
+    private static void addCommentDescriptors(List<FoldingDescriptor> descriptors, GrammarOutline outline) {
         Set<PsiElement> processedComments = new HashSet<PsiElement>();
-        for (PsiElement comment : MyPsiUtils.findChildrenOfType(root, ANTLRv4TokenTypes.COMMENTS)) {
+        for (PsiElement comment : outline.comments) {
             IElementType type = comment.getNode().getElementType();
             if (processedComments.contains(comment)) continue;
             if (type == DOC_COMMENT_TOKEN || type == BLOCK_COMMENT_TOKEN) {
@@ -124,16 +126,16 @@ public class ANTLRv4FoldingBuilder extends CustomFoldingBuilder {
 
     }
 
-    private static void addActionFoldingDescriptors(List<FoldingDescriptor> descriptors, PsiElement root) {
-        for (AtAction atAction : PsiTreeUtil.findChildrenOfType(root, AtAction.class)) {
+    private static void addActionFoldingDescriptors(List<FoldingDescriptor> descriptors, GrammarOutline outline) {
+        for (AtAction atAction : outline.atActions) {
             PsiElement action = atAction.getLastChild();
             descriptors.add(new FoldingDescriptor(atAction, action.getTextRange()));
         }
     }
 
     @SuppressWarnings("unchecked")
-    private static void addRuleRefFoldingDescriptors(List<FoldingDescriptor> descriptors, PsiElement root) {
-        for (RuleSpecNode specNode : PsiTreeUtil.findChildrenOfType(root, RuleSpecNode.class)) {
+    private static void addRuleRefFoldingDescriptors(List<FoldingDescriptor> descriptors, GrammarOutline outline) {
+        for (RuleSpecNode specNode : outline.ruleSpecs) {
             GrammarElementRefNode refNode = PsiTreeUtil.findChildOfAnyType(specNode, GrammarElementRefNode.class);
             if (refNode == null) continue;
             PsiElement nextSibling = refNode.getNextSibling();
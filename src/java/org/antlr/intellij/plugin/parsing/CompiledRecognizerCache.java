@@ -0,0 +1,386 @@
+package org.antlr.intellij.plugin.parsing;
+
+import com.intellij.execution.ui.ConsoleView;
+import com.intellij.execution.ui.ConsoleViewContentType;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.OrderEnumerator;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.antlr.intellij.plugin.ANTLRv4PluginController;
+import org.antlr.intellij.plugin.configdialogs.ConfigANTLRPerGrammar;
+import org.antlr.v4.codegen.CodeGenerator;
+import org.antlr.v4.parse.ANTLRParser;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.tool.Grammar;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Generated Java recognizers, compiled in-process so the preview can run
+ *  the real lexer and parser, actions and predicates included, instead of
+ *  the interpreters.
+ *
+ *  We compile the .java files that code generation left in the grammar's
+ *  output directory, so they have to be up to date: the input hash recorded
+ *  when they were generated must match the grammar's current
+ *  {@link GrammarCompilationCache} compilation, for its lexer too. Each
+ *  version is compiled into its own temp dir and loaded by its own class
+ *  loader, which the preview reuses until the grammar's input hash changes.
+ *  Parses still running with the old classes keep their loader alive.
+ *
+ *  Classes load parent-first, so generated code sees the same ANTLR runtime
+ *  as the plugin even if the module depends on another copy. The module's
+ *  classpath is there for actions that use the project's own classes.
+ */
+public class CompiledRecognizerCache {
+	public static final Logger LOG = Logger.getInstance("ANTLR CompiledRecognizerCache");
+
+	public static class Recognizers {
+		public final String grammarFileName;
+		/** {@link GrammarCompilationCache.Compilation#getInputHash()} of the grammar compiled */
+		public final String inputHash;
+		public final ClassLoader loader;
+		protected final Constructor<? extends Lexer> lexerCtor;
+		protected final Constructor<? extends Parser> parserCtor;
+
+		public Recognizers(String grammarFileName, String inputHash, ClassLoader loader,
+						   Constructor<? extends Lexer> lexerCtor,
+						   Constructor<? extends Parser> parserCtor)
+		{
+			this.grammarFileName = grammarFileName;
+			this.inputHash = inputHash;
+			this.loader = loader;
+			this.lexerCtor = lexerCtor;
+			this.parserCtor = parserCtor;
+		}
+
+		public Lexer createLexer(CharStream input) {
+			return newInstance(lexerCtor, input);
+		}
+
+		public Parser createParser(TokenStream tokens) {
+			return newInstance(parserCtor, tokens);
+		}
+
+		protected static <T> T newInstance(Constructor<T> ctor, Object arg) {
+			try {
+				return ctor.newInstance(arg);
+			}
+			catch (InvocationTargetException ite) {
+				if ( ite.getCause() instanceof RuntimeException ) {
+					throw (RuntimeException)ite.getCause();
+				}
+				throw new IllegalStateException("can't create "+ctor.getDeclaringClass().getName(), ite.getCause());
+			}
+			catch (ReflectiveOperationException roe) {
+				throw new IllegalStateException("can't create "+ctor.getDeclaringClass().getName(), roe);
+			}
+		}
+	}
+
+	/** Why the generated code can't be used; shown in the console */
+	public static class CompileException extends Exception {
+		public CompileException(String message) {
+			super(message);
+		}
+	}
+
+	protected final Project project;
+
+	/** Latest compiled version of each grammar file */
+	protected final Map<String, Recognizers> recognizers = new HashMap<String, Recognizers>();
+
+	/** Input hashes of each grammar whose last compile failed and of the
+	 *  code we tried, so we report that once and don't try again until the
+	 *  grammar changes or is generated again.
+	 */
+	protected final Map<String, String> failures = new HashMap<String, String>();
+
+	/** Holds a subdir of classes per compiled version; deleted by {@link #clear()} */
+	protected File classesRoot;
+
+	public CompiledRecognizerCache(Project project) {
+		this.project = project;
+	}
+
+	public static CompiledRecognizerCache getInstance(Project project) {
+		return ANTLRv4PluginController.getInstance(project).compiledRecognizers;
+	}
+
+	/** Lexer and parser compiled from the code generated for
+	 *  grammarFileName, a parser or combined grammar. Null if the generated
+	 *  code is missing, out of date or doesn't compile; the first time, we
+	 *  say why in the console.
+	 */
+	public synchronized Recognizers getRecognizers(String grammarFileName) {
+		GrammarCompilationCache.Compilation c =
+			GrammarCompilationCache.getInstance(project).getCompilation(grammarFileName);
+		if ( c==null || c.g==null || !c.getBlockingErrors().isEmpty() ) {
+			return null; // the interpreter can't run it either
+		}
+		String inputHash = c.getInputHash();
+		Recognizers r = recognizers.get(grammarFileName);
+		if ( r!=null && r.inputHash.equals(inputHash) ) {
+			return r;
+		}
+		String version = inputHash+"/"+getGeneratedFrom(c);
+		if ( version.equals(failures.get(grammarFileName)) ) {
+			return null;
+		}
+		try {
+			long start = System.nanoTime();
+			r = compile(c, inputHash);
+			LOG.info("compiled "+grammarFileName+" in "+(System.nanoTime()-start)/(1000*1000)+"ms");
+			recognizers.put(grammarFileName, r);
+			failures.remove(grammarFileName);
+			return r;
+		}
+		catch (CompileException ce) {
+			failures.put(grammarFileName, version);
+			ConsoleView console = ANTLRv4PluginController.getInstance(project).getConsole();
+			console.print("can't run compiled parser for "+new File(grammarFileName).getName()+
+						  "; previewing with the interpreter: "+ce.getMessage()+"\n",
+						  ConsoleViewContentType.ERROR_OUTPUT);
+			return null;
+		}
+	}
+
+	/** Input hashes recorded when the code for c and its lexer was generated */
+	protected String getGeneratedFrom(GrammarCompilationCache.Compilation c) {
+		String generatedFrom =
+			ConfigANTLRPerGrammar.getProp(project, c.grammarFileName,
+										  ConfigANTLRPerGrammar.PROP_INPUT_HASH,
+										  RunANTLROnGrammarFile.MISSING);
+		if ( c.lexerCompilation!=null ) {
+			generatedFrom += "/"+getGeneratedFrom(c.lexerCompilation);
+		}
+		return generatedFrom;
+	}
+
+	public synchronized void clear() {
+		recognizers.clear();
+		failures.clear();
+		if ( classesRoot!=null ) {
+			FileUtil.delete(classesRoot);
+			classesRoot = null;
+		}
+	}
+
+	protected Recognizers compile(GrammarCompilationCache.Compilation c, String inputHash) throws CompileException {
+		Grammar g = c.g;
+		if ( g.getType()==ANTLRParser.LEXER ) {
+			throw new CompileException("not a parser grammar");
+		}
+		String language = g.getOptionString(ConfigANTLRPerGrammar.PROP_LANGUAGE);
+		if ( language!=null && !language.equals("Java") ) {
+			throw new CompileException("generated code is "+language+", not Java");
+		}
+
+		List<File> sources = new ArrayList<File>();
+		String parserClassName = addGeneratedSources(c, g, sources);
+		String lexerClassName;
+		if ( g.getType()==ANTLRParser.COMBINED ) {
+			if ( g.getImplicitLexer()==null ) {
+				throw new CompileException(g.name+" has no lexer rules");
+			}
+			// generated along with the parser, from the same file
+			lexerClassName = addGeneratedSources(c, g.getImplicitLexer(), sources);
+		}
+		else {
+			GrammarCompilationCache.Compilation lc = c.lexerCompilation;
+			if ( lc==null || lc.g==null ) {
+				throw new CompileException("can't find lexer for "+g.name);
+			}
+			lexerClassName = addGeneratedSources(lc, lc.g, sources);
+		}
+
+		File classesDir = createClassesDir(g.name);
+		VirtualFile grammarFile = LocalFileSystem.getInstance().findFileByPath(c.grammarFileName);
+		List<File> classpath = getModuleClasspath(grammarFile);
+		javac(sources, classesDir, classpath, c.tool.grammarEncoding);
+
+		List<URL> urls = new ArrayList<URL>();
+		try {
+			urls.add(classesDir.toURI().toURL());
+			for (File f : classpath) {
+				urls.add(f.toURI().toURL());
+			}
+		}
+		catch (IOException ioe) {
+			throw new CompileException(ioe.toString());
+		}
+		ClassLoader loader = new URLClassLoader(urls.toArray(new URL[urls.size()]), getClass().getClassLoader());
+		try {
+			Class<? extends Lexer> lexerClass = loader.loadClass(lexerClassName).asSubclass(Lexer.class);
+			Class<? extends Parser> parserClass = loader.loadClass(parserClassName).asSubclass(Parser.class);
+			return new Recognizers(c.grammarFileName, inputHash, loader,
+								   lexerClass.getConstructor(CharStream.class),
+								   parserClass.getConstructor(TokenStream.class));
+		}
+		catch (ReflectiveOperationException roe) {
+			throw new CompileException(roe.toString());
+		}
+		catch (ClassCastException cce) {
+			throw new CompileException(cce.toString());
+		}
+	}
+
+	/** Add the Java files generated for grammar g, compiled as c, to sources
+	 *  and return the fully qualified name of its recognizer class.
+	 */
+	protected String addGeneratedSources(GrammarCompilationCache.Compilation c, Grammar g, List<File> sources)
+		throws CompileException
+	{
+		String fileName = new File(c.grammarFileName).getName();
+		VirtualFile grammarFile = LocalFileSystem.getInstance().findFileByPath(c.grammarFileName);
+		if ( grammarFile==null ) {
+			throw new CompileException("can't find "+fileName);
+		}
+		String generatedFrom =
+			ConfigANTLRPerGrammar.getProp(project, c.grammarFileName,
+										  ConfigANTLRPerGrammar.PROP_INPUT_HASH,
+										  RunANTLROnGrammarFile.MISSING);
+		if ( !c.getInputHash().equals(generatedFrom) ) {
+			throw new CompileException("code generated for "+fileName+" is missing or out of date; generate it first");
+		}
+		Map<String, String> args = RunANTLROnGrammarFile.getANTLRArgs(project, grammarFile);
+		File outputDir = new File(args.get("-o"));
+
+		CodeGenerator gen = new CodeGenerator(null, g, "Java");
+		List<String> names = new ArrayList<String>();
+		names.add(gen.getRecognizerFileName());
+		if ( g.getType()!=ANTLRParser.LEXER ) {
+			// generated contexts refer to the listener and visitor, if any
+			names.addAll(Arrays.asList(gen.getListenerFileName(), gen.getBaseListenerFileName(),
+									   gen.getVisitorFileName(), gen.getBaseVisitorFileName()));
+		}
+		for (String name : names) {
+			File f = new File(outputDir, name);
+			if ( f.exists() ) {
+				sources.add(f);
+			}
+			else if ( name.equals(gen.getRecognizerFileName()) ) {
+				throw new CompileException("can't find "+f.getPath()+"; generate it first");
+			}
+		}
+
+		String package_ = args.get("-package");
+		String className = g.getRecognizerName();
+		return package_!=null ? package_+"."+className : className;
+	}
+
+	protected File createClassesDir(String grammarName) throws CompileException {
+		try {
+			if ( classesRoot==null ) {
+				classesRoot = FileUtil.createTempDirectory("antlr-preview", "", true);
+			}
+			return FileUtil.createTempDirectory(classesRoot, grammarName, "", true);
+		}
+		catch (IOException ioe) {
+			throw new CompileException("can't create dir for classes: "+ioe);
+		}
+	}
+
+	/** The ANTLR runtime we load generated code against, then the classpath of
+	 *  grammarFile's module, if any.
+	 */
+	protected List<File> getModuleClasspath(final VirtualFile grammarFile) {
+		List<File> classpath = new ArrayList<File>();
+		classpath.add(new File(PathManager.getJarPathForClass(Parser.class)));
+		if ( grammarFile==null ) {
+			return classpath;
+		}
+		List<String> paths = ApplicationManager.getApplication().runReadAction(
+			new Computable<List<String>>() {
+				@Override
+				public List<String> compute() {
+					if ( project.isDisposed() ) {
+						return Collections.emptyList();
+					}
+					Module module = ProjectRootManager.getInstance(project).getFileIndex().getModuleForFile(grammarFile);
+					if ( module==null ) {
+						return Collections.emptyList();
+					}
+					return OrderEnumerator.orderEntries(module).recursively().getPathsList().getPathList();
+				}
+			}
+		);
+		for (String path : paths) {
+			classpath.add(new File(path));
+		}
+		return classpath;
+	}
+
+	protected void javac(List<File> sources, File classesDir, List<File> classpath, String encoding)
+		throws CompileException
+	{
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if ( compiler==null ) {
+			throw new CompileException("no Java compiler in this JRE");
+		}
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+		Charset charset = encoding!=null ? Charset.forName(encoding) : null;
+		StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, charset);
+		try {
+			List<String> options = new ArrayList<String>();
+			options.add("-d");
+			options.add(classesDir.getPath());
+			options.add("-classpath");
+			StringBuilder buf = new StringBuilder();
+			for (File f : classpath) {
+				if ( buf.length()>0 ) buf.append(File.pathSeparatorChar);
+				buf.append(f.getPath());
+			}
+			options.add(buf.toString());
+			options.add("-g");
+			options.add("-nowarn");
+			Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(sources);
+			boolean ok = compiler.getTask(null, fileManager, diagnostics, options, null, units).call();
+			if ( !ok ) {
+				StringBuilder msgs = new StringBuilder();
+				for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+					if ( d.getKind()==Diagnostic.Kind.ERROR ) {
+						String where = d.getSource()!=null ? new File(d.getSource().toUri()).getName()+":"+d.getLineNumber()+": " : "";
+						msgs.append('\n').append(where).append(d.getMessage(null));
+					}
+				}
+				throw new CompileException("generated code doesn't compile:"+msgs);
+			}
+		}
+		finally {
+			try {
+				fileManager.close();
+			}
+			catch (IOException ioe) {
+				LOG.info("can't close file manager: "+ioe);
+			}
+		}
+	}
+}
@@ -0,0 +1,313 @@
+package org.antlr.intellij.plugin.parsing;
+
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import org.antlr.intellij.adaptor.parser.SyntaxError;
+import org.antlr.intellij.adaptor.parser.SyntaxErrorListener;
+import org.antlr.intellij.plugin.preview.PreviewState;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.LexerInterpreter;
+import org.antlr.v4.runtime.atn.DecisionInfo;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.tool.Rule;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Parse a whole directory of input files with the preview grammars, for
+ *  checking a grammar against a corpus rather than one input at a time.
+ *
+ *  Files are split among fork/join workers. All of them share the ATNs and
+ *  DFA from one {@link PreviewInterpreterCache}, so the DFA warms up across
+ *  the corpus, but each worker thread has its own lexer and parser that it
+ *  reuses from file to file. Trees are thrown away as soon as a file is
+ *  done; we only keep timing, token and error counts per file and, when
+ *  profiling, prediction stats summed over all files per decision.
+ *
+ *  Nothing here touches the UI so it works headless too.
+ */
+public class CorpusParser {
+	public interface Listener {
+		/** Called on a worker thread as each file is done */
+		void fileParsed(FileResult result);
+	}
+
+	public static class FileResult {
+		public final File file;
+		/** Lex plus parse time */
+		public final long parseTime_ns;
+		public final int numTokens;
+		public final int numErrors;
+		/** "line:col msg" of the first syntax error or null */
+		public final String firstError;
+		/** Set if we couldn't read or parse the file at all */
+		public final String failure;
+
+		public FileResult(File file, long parseTime_ns, int numTokens,
+						  int numErrors, String firstError, String failure)
+		{
+			this.file = file;
+			this.parseTime_ns = parseTime_ns;
+			this.numTokens = numTokens;
+			this.numErrors = numErrors;
+			this.firstError = firstError;
+			this.failure = failure;
+		}
+	}
+
+	/** Per-thread lexer and parser, created for the first file a thread parses */
+	protected static class Worker {
+		public final LexerInterpreter lexer;
+		public final PreviewParser parser;
+
+		public Worker(LexerInterpreter lexer, PreviewParser parser) {
+			this.lexer = lexer;
+			this.parser = parser;
+		}
+	}
+
+	protected class ParseFiles extends RecursiveAction {
+		protected final List<File> files;
+		protected final int from;
+		protected final int to;
+
+		public ParseFiles(List<File> files, int from, int to) {
+			this.files = files;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if ( to-from>1 ) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new ParseFiles(files, from, mid), new ParseFiles(files, mid, to));
+				return;
+			}
+			if ( indicator.isCanceled() ) {
+				return;
+			}
+			final File file = files.get(from);
+			final FileResult[] result = new FileResult[1];
+			try {
+				// so PreviewParser's checkCanceled() sees our indicator
+				ProgressManager.getInstance().executeProcessUnderProgress(new Runnable() {
+					@Override
+					public void run() {
+						result[0] = parseFile(file);
+					}
+				}, indicator);
+			}
+			catch (ProcessCanceledException pce) {
+				return;
+			}
+			listener.fileParsed(result[0]);
+			indicator.setFraction(done.incrementAndGet() / (double)files.size());
+		}
+	}
+
+	public final PreviewInterpreterCache cache;
+	public final int startRuleIndex;
+	/** Collect prediction stats; slower as we profile and predict with full LL */
+	public final boolean profile;
+
+	protected final ThreadLocal<Worker> workers = new ThreadLocal<Worker>();
+
+	/** Summed over all files parsed; only with profile set */
+	protected final DecisionInfo[] decisionInfo;
+	protected final long[] ambiguities;
+	protected final long[] contextSensitivities;
+
+	protected Listener listener;
+	protected ProgressIndicator indicator;
+	protected final AtomicInteger done = new AtomicInteger();
+
+	public CorpusParser(PreviewInterpreterCache cache, int startRuleIndex, boolean profile) {
+		this.cache = cache;
+		this.startRuleIndex = startRuleIndex;
+		this.profile = profile;
+		int n = cache.getParserATN().getNumberOfDecisions();
+		decisionInfo = new DecisionInfo[n];
+		for (int i = 0; i < n; i++) {
+			decisionInfo[i] = new DecisionInfo(i);
+		}
+		ambiguities = new long[n];
+		contextSensitivities = new long[n];
+	}
+
+	/** A corpus parser for previewState's current grammars and start rule,
+	 *  or null if they aren't loaded or are broken.
+	 */
+	public static CorpusParser create(PreviewState previewState, boolean profile) {
+		PreviewInterpreterCache cache;
+		String startRuleName;
+		synchronized (previewState) {
+			if ( previewState.g==null || previewState.lg==null ||
+				 previewState.g==ParsingUtils.BAD_PARSER_GRAMMAR ||
+				 previewState.lg==ParsingUtils.BAD_LEXER_GRAMMAR )
+			{
+				return null;
+			}
+			cache = previewState.getInterpreterCache();
+			startRuleName = previewState.startRuleName;
+		}
+		if ( startRuleName==null ) {
+			return null;
+		}
+		Rule start = cache.g.getRule(startRuleName);
+		if ( start==null ) {
+			return null;
+		}
+		return new CorpusParser(cache, start.index, profile);
+	}
+
+	/** All files under dir accepted by filter, in a stable order */
+	public static List<File> collectFiles(File dir, FileFilter filter) {
+		List<File> files = new ArrayList<File>();
+		collectFiles(dir, filter, files);
+		return files;
+	}
+
+	protected static void collectFiles(File dir, FileFilter filter, List<File> files) {
+		File[] children = dir.listFiles();
+		if ( children==null ) {
+			return;
+		}
+		Arrays.sort(children);
+		for (File f : children) {
+			if ( f.isDirectory() ) {
+				collectFiles(f, filter, files);
+			}
+			else if ( filter==null || filter.accept(f) ) {
+				files.add(f);
+			}
+		}
+	}
+
+	/** Parse files on all cores, telling listener about each as it's done.
+	 *  Blocks until all files are parsed or indicator is canceled.
+	 */
+	public void parse(List<File> files, Listener listener, ProgressIndicator indicator) {
+		if ( files.isEmpty() ) {
+			return;
+		}
+		this.listener = listener;
+		this.indicator = indicator;
+		done.set(0);
+		indicator.setIndeterminate(false);
+		ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		try {
+			pool.invoke(new ParseFiles(files, 0, files.size()));
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/** Parse one file with this thread's lexer and parser */
+	public FileResult parseFile(File file) {
+		long start = System.nanoTime();
+		SyntaxErrorListener syntaxErrorListener = new SyntaxErrorListener();
+		CommonTokenStream tokens;
+		MappedFileCharStream input = null;
+		try {
+			input = new MappedFileCharStream(file, ParsingUtils.getInputFileCharset(file));
+			Worker worker = workers.get();
+			LexerInterpreter lexer;
+			if ( worker==null ) {
+				lexer = cache.createLexerInterpreter(input, false);
+			}
+			else {
+				lexer = worker.lexer;
+				lexer.setInputStream(input);
+			}
+			lexer.removeErrorListeners();
+			lexer.addErrorListener(syntaxErrorListener);
+			tokens = new CommonTokenStream(lexer);
+			PreviewParser parser;
+			if ( worker==null ) {
+				parser = new PreviewParser(cache, tokens);
+				workers.set(new Worker(lexer, parser));
+			}
+			else {
+				parser = worker.parser;
+				parser.setInputStream(tokens);
+			}
+			if ( profile ) {
+				// start a fresh ParseInfo; the new simulator keeps the shared DFA
+				parser.setProfile(false);
+				parser.setProfile(true);
+				parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+				parser.setErrorHandler(new DefaultErrorStrategy());
+				parser.removeErrorListeners();
+				parser.addErrorListener(syntaxErrorListener);
+				parser.parse(startRuleIndex);
+				addDecisionInfo(parser.getParseInfo().getDecisionInfo());
+			}
+			else {
+				ParsingUtils.parseTwoStage(parser, startRuleIndex, syntaxErrorListener);
+			}
+			tokens.fill();
+		}
+		catch (ProcessCanceledException pce) {
+			throw pce;
+		}
+		catch (Exception e) {
+			return new FileResult(file, System.nanoTime()-start, 0, 0, null, e.toString());
+		}
+		finally {
+			if ( input!=null ) {
+				input.close(); // we only keep counts, not tokens
+			}
+		}
+		long time = System.nanoTime() - start;
+		List<SyntaxError> errors = syntaxErrorListener.getSyntaxErrors();
+		String firstError = null;
+		if ( !errors.isEmpty() ) {
+			SyntaxError e = errors.get(0);
+			firstError = e.getLine()+":"+e.getCharPositionInLine()+" "+e.getMessage();
+		}
+		return new FileResult(file, time, tokens.size(), errors.size(), firstError, null);
+	}
+
+	/** Only counts are kept; the event lists hold on to each file's tokens */
+	protected synchronized void addDecisionInfo(DecisionInfo[] fileInfo) {
+		for (DecisionInfo d : fileInfo) {
+			DecisionInfo sum = decisionInfo[d.decision];
+			sum.invocations += d.invocations;
+			sum.timeInPrediction += d.timeInPrediction;
+			sum.SLL_TotalLook += d.SLL_TotalLook;
+			sum.SLL_MaxLook = Math.max(sum.SLL_MaxLook, d.SLL_MaxLook);
+			sum.LL_TotalLook += d.LL_TotalLook;
+			sum.LL_MaxLook = Math.max(sum.LL_MaxLook, d.LL_MaxLook);
+			sum.SLL_ATNTransitions += d.SLL_ATNTransitions;
+			sum.SLL_DFATransitions += d.SLL_DFATransitions;
+			sum.LL_Fallback += d.LL_Fallback;
+			sum.LL_ATNTransitions += d.LL_ATNTransitions;
+			sum.LL_DFATransitions += d.LL_DFATransitions;
+			ambiguities[d.decision] += d.ambiguities.size();
+			contextSensitivities[d.decision] += d.contextSensitivities.size();
+		}
+	}
+
+	/** Prediction stats per decision summed over the files parsed so far */
+	public synchronized DecisionInfo[] getDecisionInfo() {
+		return decisionInfo.clone();
+	}
+
+	public synchronized long getAmbiguities(int decision) {
+		return ambiguities[decision];
+	}
+
+	public synchronized long getContextSensitivities(int decision) {
+		return contextSensitivities[decision];
+	}
+}
@@ -0,0 +1,380 @@
+package org.antlr.intellij.plugin.parsing;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.antlr.intellij.plugin.ANTLRv4PluginController;
+import org.antlr.intellij.plugin.PluginIgnoreMissingTokensFileErrorManager;
+import org.antlr.runtime.ANTLRStringStream;
+import org.antlr.v4.Tool;
+import org.antlr.v4.parse.ANTLRParser;
+import org.antlr.v4.parse.TokenVocabParser;
+import org.antlr.v4.tool.ANTLRMessage;
+import org.antlr.v4.tool.ANTLRToolListener;
+import org.antlr.v4.tool.Grammar;
+import org.antlr.v4.tool.LexerGrammar;
+import org.antlr.v4.tool.ast.GrammarRootAST;
+import org.stringtemplate.v4.ST;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Compiled grammars for a project, shared by the external annotator, the
+ *  preview and code generation so that a grammar is only run through the
+ *  ANTLR tool once per change instead of once per client.
+ *
+ *  Compilations are keyed by a hash of the grammar file name, the tool
+ *  arguments from the grammar's configuration and the grammar text. Each
+ *  also records a content hash of every file the tool read while compiling:
+ *  the lexer grammar found via tokenVocab or the XLexer.g4 naming convention,
+ *  the .tokens file when there's no such lexer, and imported grammars. A
+ *  cached compilation is only returned if none of those changed.
+ *
+ *  Grammar objects are never modified once compiled, so clients on
+ *  different threads can share them. Compiling is serialized; a client
+ *  asking for a grammar being compiled waits for it rather than compiling
+ *  it again.
+ */
+public class GrammarCompilationCache {
+	public static final Logger LOG = Logger.getInstance("ANTLR GrammarCompilationCache");
+
+	/** Compilations kept; text as typed in the editor and as saved on disk
+	 *  usually take one each for each grammar being worked on.
+	 */
+	public static final int MAX_COMPILATIONS = 32;
+
+	/** Hash recorded for a dependency that doesn't exist */
+	protected static final String MISSING_FILE = "";
+
+	public static class Compilation {
+		public final String grammarFileName;
+		/** The tool that compiled g; renders its messages */
+		public final Tool tool;
+		/** Null if the grammar text didn't parse */
+		public final Grammar g;
+		/** For a parser grammar, its separate lexer if that compiled without
+		 *  errors; for a combined grammar, the implicit lexer; for a lexer
+		 *  grammar, g itself. Can be null.
+		 */
+		public final LexerGrammar lg;
+		/** How we got a separate lexer for a parser grammar, if we did */
+		public final Compilation lexerCompilation;
+		/** Errors and warnings in the order the tool reported them */
+		public final List<ANTLRMessage> messages;
+		public final List<ANTLRMessage> errors;
+
+		protected final String key;
+		/** File name to content hash of each file read while compiling */
+		protected final Map<String, String> dependencies;
+
+		public Compilation(String grammarFileName, Tool tool, Grammar g, LexerGrammar lg,
+						   Compilation lexerCompilation,
+						   List<ANTLRMessage> messages, List<ANTLRMessage> errors,
+						   String key, Map<String, String> dependencies)
+		{
+			this.grammarFileName = grammarFileName;
+			this.tool = tool;
+			this.g = g;
+			this.lg = lg;
+			this.lexerCompilation = lexerCompilation;
+			this.messages = Collections.unmodifiableList(messages);
+			this.errors = Collections.unmodifiableList(errors);
+			this.key = key;
+			this.dependencies = dependencies;
+		}
+
+		/** Errors that should stop us from using the grammar; a missing
+		 *  .tokens file doesn't count as we'll have imported the vocab from
+		 *  the lexer grammar if there is one.
+		 */
+		public List<ANTLRMessage> getBlockingErrors() {
+			List<ANTLRMessage> blocking = new ArrayList<ANTLRMessage>();
+			for (ANTLRMessage msg : errors) {
+				if ( !PluginIgnoreMissingTokensFileErrorManager.isIgnored(msg.getErrorType()) ) {
+					blocking.add(msg);
+				}
+			}
+			return blocking;
+		}
+
+		/** Hash of everything code generation reads for this grammar: its
+		 *  text and tool arguments, the files it depends on, the same for its
+		 *  lexer and the tool version.
+		 */
+		public String getInputHash() {
+			MessageDigest digest = newDigest();
+			Charset utf8 = Charset.forName("UTF-8");
+			digest.update(Tool.VERSION.getBytes(utf8));
+			digest.update(key.getBytes(utf8));
+			for (Map.Entry<String, String> dep : dependencies.entrySet()) {
+				digest.update(dep.getKey().getBytes(utf8));
+				digest.update(dep.getValue().getBytes(utf8));
+			}
+			if ( lexerCompilation!=null ) {
+				digest.update(lexerCompilation.getInputHash().getBytes(utf8));
+			}
+			return toHex(digest.digest());
+		}
+
+		public String render(ANTLRMessage msg) {
+			ST msgST = tool.errMgr.getMessageTemplate(msg);
+			String s = msgST.render();
+			if ( tool.errMgr.formatWantsSingleLineMessage() ) {
+				s = s.replace('\n', ' ');
+			}
+			return s;
+		}
+	}
+
+	/** Keeps the messages from one compile */
+	protected static class CollectingToolListener implements ANTLRToolListener {
+		public final List<ANTLRMessage> messages = new ArrayList<ANTLRMessage>();
+		public final List<ANTLRMessage> errors = new ArrayList<ANTLRMessage>();
+
+		@Override
+		public void info(String msg) {
+		}
+
+		@Override
+		public void error(ANTLRMessage msg) {
+			messages.add(msg);
+			errors.add(msg);
+		}
+
+		@Override
+		public void warning(ANTLRMessage msg) {
+			messages.add(msg);
+		}
+	}
+
+	public final Project project;
+
+	/** Access order so the least recently used compilation goes first */
+	protected final Map<String, Compilation> compilations =
+		new LinkedHashMap<String, Compilation>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Compilation> eldest) {
+				return size()>MAX_COMPILATIONS;
+			}
+		};
+
+	/** Grammars being compiled; stops tokenVocab cycles among parser grammars */
+	protected final Set<String> compiling = new HashSet<String>();
+
+	public GrammarCompilationCache(Project project) {
+		this.project = project;
+	}
+
+	public static GrammarCompilationCache getInstance(Project project) {
+		return ANTLRv4PluginController.getInstance(project).compilationCache;
+	}
+
+	/** The compilation of grammarFileName as saved on disk or null if we
+	 *  can't read it.
+	 */
+	public Compilation getCompilation(String grammarFileName) {
+		List<String> args = getArgs(grammarFileName);
+		String text;
+		try {
+			text = readText(grammarFileName, getEncoding(args));
+		}
+		catch (IOException ioe) {
+			LOG.info("can't read "+grammarFileName+": "+ioe);
+			return null;
+		}
+		return getCompilation(grammarFileName, text, args);
+	}
+
+	/** The compilation of grammar text that will be saved as grammarFileName,
+	 *  such as the contents of an editor.
+	 */
+	public Compilation getCompilation(String grammarFileName, String text) {
+		return getCompilation(grammarFileName, text, getArgs(grammarFileName));
+	}
+
+	protected synchronized Compilation getCompilation(String grammarFileName, String text, List<String> args) {
+		String key = computeKey(grammarFileName, args, text);
+		Compilation c = compilations.get(key);
+		if ( c!=null && dependenciesUnchanged(c) ) {
+			return c;
+		}
+		long start = System.nanoTime();
+		compiling.add(grammarFileName);
+		try {
+			c = compile(grammarFileName, text, args, key);
+		}
+		finally {
+			compiling.remove(grammarFileName);
+		}
+		LOG.info("compiled "+grammarFileName+" in "+(System.nanoTime()-start)/(1000*1000)+"ms");
+		compilations.put(key, c);
+		return c;
+	}
+
+	public synchronized void clear() {
+		compilations.clear();
+	}
+
+	protected Compilation compile(String grammarFileName, String text, List<String> args, String key) {
+		Tool antlr = new Tool(args.toArray(new String[args.size()]));
+		if ( antlr.libDirectory==null || antlr.libDirectory.equals(".") ) {
+			antlr.libDirectory = new File(grammarFileName).getParent();
+		}
+		antlr.errMgr.setFormat("antlr");
+		antlr.removeListeners();
+		CollectingToolListener listener = new CollectingToolListener();
+		antlr.addListener(listener);
+
+		Map<String, String> dependencies = new LinkedHashMap<String, String>();
+		ANTLRStringStream in = new ANTLRStringStream(text);
+		in.name = grammarFileName;
+		GrammarRootAST ast = antlr.parse(grammarFileName, in);
+		if ( ast==null || ast.hasErrors ) {
+			return new Compilation(grammarFileName, antlr, null, null, null,
+								   listener.messages, listener.errors, key, dependencies);
+		}
+		Grammar g = antlr.createGrammar(ast);
+		g.fileName = grammarFileName;
+
+		LexerGrammar lg = null;
+		Compilation lexerCompilation = null;
+		if ( g.getType()==ANTLRParser.PARSER ) {
+			// see if a lexer is hanging around somewhere; don't want implicit token defs to make us bail
+			String lexerGrammarFileName = ParsingUtils.getLexerGrammarFileNameFor(g);
+			dependencies.put(lexerGrammarFileName, hashFile(lexerGrammarFileName));
+			if ( new File(lexerGrammarFileName).exists() && !compiling.contains(lexerGrammarFileName) ) {
+				Compilation lc = getCompilation(lexerGrammarFileName);
+				if ( lc!=null && lc.g instanceof LexerGrammar ) {
+					lexerCompilation = lc;
+					if ( lc.getBlockingErrors().isEmpty() ) {
+						lg = (LexerGrammar)lc.g;
+						g.importVocab(lg);
+					}
+				}
+			}
+			if ( lg==null && g.getOptionString("tokenVocab")!=null ) {
+				// import vocab to avoid spurious warnings
+				File tokensFile = new TokenVocabParser(g).getImportedVocabFile();
+				dependencies.put(tokensFile.getPath(), hashFile(tokensFile.getPath()));
+				g.importTokensFromTokensFile();
+			}
+		}
+
+		try {
+			antlr.process(g, false);
+		}
+		catch (RuntimeException e) {
+			LOG.error("antlr can't process "+grammarFileName, e);
+		}
+
+		List<Grammar> imports = g.getAllImportedGrammars();
+		if ( imports!=null ) {
+			for (Grammar imported : imports) {
+				if ( imported.fileName!=null ) {
+					dependencies.put(imported.fileName, hashFile(imported.fileName));
+				}
+			}
+		}
+
+		if ( g.getType()==ANTLRParser.LEXER ) {
+			lg = (LexerGrammar)g;
+		}
+		else if ( g.getType()==ANTLRParser.COMBINED ) {
+			lg = g.getImplicitLexer();
+		}
+		return new Compilation(grammarFileName, antlr, g, lg, lexerCompilation,
+							   listener.messages, listener.errors, key, dependencies);
+	}
+
+	protected boolean dependenciesUnchanged(Compilation c) {
+		for (Map.Entry<String, String> dep : c.dependencies.entrySet()) {
+			if ( !hashFile(dep.getKey()).equals(dep.getValue()) ) {
+				return false;
+			}
+		}
+		// lexer might be unchanged but see a changed import
+		return c.lexerCompilation==null ||
+			   getCompilation(c.lexerCompilation.grammarFileName)==c.lexerCompilation;
+	}
+
+	/** Same arguments as code generation so we see the same lib dir, options
+	 *  and encoding.
+	 */
+	protected List<String> getArgs(String grammarFileName) {
+		VirtualFile vfile = LocalFileSystem.getInstance().findFileByPath(grammarFileName);
+		if ( vfile==null || project.isDisposed() ) {
+			return new ArrayList<String>();
+		}
+		return RunANTLROnGrammarFile.getANTLRArgsAsList(project, vfile);
+	}
+
+	protected static String getEncoding(List<String> args) {
+		int i = args.indexOf("-encoding");
+		if ( i>=0 && i+1<args.size() ) {
+			return args.get(i+1);
+		}
+		return null;
+	}
+
+	protected static String readText(String fileName, String encoding) throws IOException {
+		byte[] bytes = Files.readAllBytes(new File(fileName).toPath());
+		Charset charset = encoding!=null ? Charset.forName(encoding) : Charset.defaultCharset();
+		return new String(bytes, charset);
+	}
+
+	protected static String computeKey(String grammarFileName, List<String> args, String text) {
+		MessageDigest digest = newDigest();
+		Charset utf8 = Charset.forName("UTF-8");
+		digest.update(grammarFileName.getBytes(utf8));
+		for (String arg : args) {
+			digest.update((byte)0);
+			digest.update(arg.getBytes(utf8));
+		}
+		digest.update((byte)0);
+		digest.update(text.getBytes(utf8));
+		return toHex(digest.digest());
+	}
+
+	protected static String hashFile(String fileName) {
+		File f = new File(fileName);
+		if ( !f.isFile() ) {
+			return MISSING_FILE;
+		}
+		try {
+			return toHex(newDigest().digest(Files.readAllBytes(f.toPath())));
+		}
+		catch (IOException ioe) {
+			return MISSING_FILE;
+		}
+	}
+
+	protected static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException(nsae); // every JRE has SHA-1
+		}
+	}
+
+	protected static String toHex(byte[] bytes) {
+		StringBuilder buf = new StringBuilder(bytes.length*2);
+		for (byte b : bytes) {
+			buf.append(Character.forDigit((b >> 4) & 0xF, 16));
+			buf.append(Character.forDigit(b & 0xF, 16));
+		}
+		return buf.toString();
+	}
+}
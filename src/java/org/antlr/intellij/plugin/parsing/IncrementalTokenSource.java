@@ -0,0 +1,479 @@
+package org.antlr.intellij.plugin.parsing;
+
+import org.antlr.intellij.adaptor.parser.SyntaxError;
+import org.antlr.intellij.adaptor.parser.SyntaxErrorListener;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.LexerInterpreter;
+import org.antlr.v4.runtime.LexerNoViableAltException;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenFactory;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.misc.Pair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** Feeds the preview parser tokens for new input text, relexing only what
+ *  the edit since the last parse could have changed.
+ *
+ *  While lexing we record, for each call to nextToken(), the lexer mode
+ *  state where it started, how far before its token that was, how far the
+ *  lexer looked and any errors. All but the errors are relative to the
+ *  token, so they stay right wherever the token moves. Next time, tokens
+ *  that never looked at a changed char are replayed as is; we restart the
+ *  lexer at the first token that did. Once we're past the edit and reach
+ *  an old token boundary in the same mode state, the lexer would repeat
+ *  itself, so the rest of the old tokens are replayed moved by the edit
+ *  (see {@link Shift}).
+ *
+ *  The edit comes from the {@link InputEditLog} when it has the changes
+ *  between the two texts; otherwise we compare them. Then what we do is
+ *  in proportion to the relexed text, except that each token after the
+ *  edit is copied: it must have its new position, and the tree on screen
+ *  still holds the old one while we parse.
+ *
+ *  Lexer errors are recorded and replayed along with their tokens.
+ */
+public class IncrementalTokenSource implements TokenSource {
+	public static final int[] EMPTY_MODE_STACK = new int[0];
+	public static final List<SyntaxError> NO_ERRORS = Collections.emptyList();
+
+	/** One call to nextToken(), relative to the token it returned */
+	public static class Entry {
+		/** Chars from where the call started to the token, e.g. skipped
+		 *  whitespace, and the newlines among them.
+		 */
+		public final int skipped;
+		public final int skippedLines;
+		/** From where the call started to the furthest char examined,
+		 *  possibly EOF at input size.
+		 */
+		public final int lookahead;
+		public final int mode;
+		public final int[] modeStack;
+		/** Positioned in the text of the snapshot holding this entry */
+		public final List<SyntaxError> errors;
+
+		public Entry(int skipped, int skippedLines, int lookahead,
+					 int mode, int[] modeStack, List<SyntaxError> errors)
+		{
+			this.skipped = skipped;
+			this.skippedLines = skippedLines;
+			this.lookahead = lookahead;
+			this.mode = mode;
+			this.modeStack = modeStack;
+			this.errors = errors;
+		}
+	}
+
+	/** Everything lexed from text, through EOF. Never modified once built. */
+	public static class Snapshot {
+		public final String text;
+		/** {@link InputEditLog} version of text or -1 if unknown */
+		public final long version;
+		public final List<Token> tokens;
+		public final List<Entry> entries;
+		/** No entry's lookahead is longer */
+		public final int maxLookahead;
+
+		public Snapshot(String text, long version, List<Token> tokens,
+						List<Entry> entries, int maxLookahead)
+		{
+			this.text = text;
+			this.version = version;
+			this.tokens = tokens;
+			this.entries = entries;
+			this.maxLookahead = maxLookahead;
+		}
+
+		/** Where the call to nextToken() for token i started */
+		public int getStart(int i) {
+			return tokens.get(i).getStartIndex() - entries.get(i).skipped;
+		}
+
+		public int getLookEnd(int i) {
+			return getStart(i) + entries.get(i).lookahead;
+		}
+	}
+
+	/** Where the old tokens after the edit end up: old token i from
+	 *  oldTokenStart on becomes new token i + tokenDelta, delta chars and
+	 *  lineDelta lines further on. Only those on the line where the first
+	 *  of them started, at line:charPositionInLine, move sideways.
+	 */
+	public static class Shift {
+		public final int oldTokenStart;
+		public final int tokenDelta;
+		public final int delta;
+		public final int lineDelta;
+		public final int line;
+		public final int charPositionInLine;
+		public final int columnDelta;
+
+		public Shift(int oldTokenStart, int tokenDelta, int delta, int lineDelta,
+					 int line, int charPositionInLine, int columnDelta)
+		{
+			this.oldTokenStart = oldTokenStart;
+			this.tokenDelta = tokenDelta;
+			this.delta = delta;
+			this.lineDelta = lineDelta;
+			this.line = line;
+			this.charPositionInLine = charPositionInLine;
+			this.columnDelta = columnDelta;
+		}
+
+		/** Whether old position line:charPositionInLine is among those that move */
+		public boolean isShifted(int line, int charPositionInLine) {
+			return line>this.line || line==this.line && charPositionInLine>=this.charPositionInLine;
+		}
+
+		public int getLine(int oldLine) {
+			return oldLine + lineDelta;
+		}
+
+		public int getCharPositionInLine(int oldLine, int oldCharPositionInLine) {
+			return oldLine==line ? oldCharPositionInLine + columnDelta : oldCharPositionInLine;
+		}
+	}
+
+	/** Tracks how far ahead the lexer looks so we know which tokens an edit can affect */
+	public static class LookaheadTrackingInputStream extends ANTLRInputStream {
+		public int maxLookIndex = -1;
+
+		public LookaheadTrackingInputStream(String input) {
+			super(input);
+		}
+
+		@Override
+		public int LA(int i) {
+			if ( i>0 ) {
+				int index = p + i - 1;
+				if ( index>maxLookIndex ) {
+					maxLookIndex = index;
+				}
+			}
+			return super.LA(i);
+		}
+	}
+
+	protected final LexerInterpreter lexer;
+	protected final LookaheadTrackingInputStream input;
+	protected final String text;
+	protected final long version;
+	protected final Snapshot old;
+
+	/** Where lexer errors end up; replayed errors are added here too */
+	protected final List<SyntaxError> errors;
+
+	/** Source of the tokens we move past the edit */
+	protected final Pair<TokenSource, CharStream> source;
+
+	protected final List<Token> tokens = new ArrayList<Token>();
+	protected final List<Entry> entries = new ArrayList<Entry>();
+	protected int maxLookahead;
+	protected Snapshot snapshot;
+
+	/** The edit: text[changeStart..newChangeEnd) replaced old.text[changeStart..newChangeEnd-delta) */
+	protected int changeStart;
+	protected int newChangeEnd;
+	protected int delta;
+
+	/** old tokens [0..reusablePrefix) are replayed as is */
+	protected int reusablePrefix;
+
+	protected int next = 0;
+	protected boolean lexing = false;
+
+	/** Set once we're back in step with the old tokens */
+	protected Shift shift;
+
+	/** Index of next old token to replay shifted */
+	protected int resynced;
+
+	/** Lex text, version {@link InputEditLog#getVersion} of the document
+	 *  edits records changes to, reusing what we can of old. version is -1
+	 *  and edits null if the text doesn't come from the document; old is
+	 *  null to lex everything.
+	 */
+	public IncrementalTokenSource(LexerInterpreter lexer,
+								  LookaheadTrackingInputStream input,
+								  String text,
+								  long version,
+								  InputEditLog edits,
+								  Snapshot old,
+								  SyntaxErrorListener errorListener)
+	{
+		this.lexer = lexer;
+		this.input = input;
+		this.text = text;
+		this.version = version;
+		this.old = old;
+		this.errors = errorListener.getSyntaxErrors();
+		this.source = new Pair<TokenSource, CharStream>(lexer, input);
+		if ( old!=null ) {
+			maxLookahead = old.maxLookahead;
+			computeEdit(edits);
+		}
+	}
+
+	/** The tokens lexed or replayed, once we've reached EOF; else null */
+	public Snapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/** The snapshot we started from, if any */
+	public Snapshot getOldSnapshot() {
+		return old;
+	}
+
+	/** How many tokens at the start are the very same objects as old's */
+	public int getReusedTokenCount() {
+		return reusablePrefix;
+	}
+
+	/** How the old tokens after the edit moved, once we've reached EOF;
+	 *  null if we relexed to the end.
+	 */
+	public Shift getShift() {
+		return shift;
+	}
+
+	protected void computeEdit(InputEditLog edits) {
+		int oldLen = old.text.length();
+		int newLen = text.length();
+		delta = newLen - oldLen;
+		InputEditLog.Edit edit = null;
+		if ( version>=0 && old.version>=0 && edits!=null ) {
+			if ( version==old.version && newLen==oldLen ) {
+				edit = new InputEditLog.Edit(newLen, 0, 0); // nothing changed
+			}
+			else {
+				edit = edits.getEdit(old.version, version);
+			}
+		}
+		if ( edit!=null && edit.offset+edit.oldLength<=oldLen &&
+			 edit.newLength-edit.oldLength==delta )
+		{
+			changeStart = edit.offset;
+			newChangeEnd = edit.offset + edit.newLength;
+		}
+		else {
+			compareTexts();
+		}
+		reusablePrefix = findFirstAffectedEntry();
+	}
+
+	/** Find the edit the hard way; used when the edit log can't tell us */
+	protected void compareTexts() {
+		String oldText = old.text;
+		int oldLen = oldText.length();
+		int newLen = text.length();
+		int n = Math.min(oldLen, newLen);
+		int prefix = 0;
+		while ( prefix<n && oldText.charAt(prefix)==text.charAt(prefix) ) {
+			prefix++;
+		}
+		int suffix = 0;
+		while ( suffix<n-prefix && oldText.charAt(oldLen-1-suffix)==text.charAt(newLen-1-suffix) ) {
+			suffix++;
+		}
+		changeStart = prefix;
+		newChangeEnd = newLen - suffix;
+	}
+
+	/** The first old entry that looked at changeStart or beyond. Those that
+	 *  start more than maxLookahead before it can't have, so look from the
+	 *  first that doesn't. EOF always looks at the end so there is one.
+	 */
+	protected int findFirstAffectedEntry() {
+		int i = findOldEntry(changeStart - old.maxLookahead, 0);
+		while ( old.getLookEnd(i)<changeStart ) {
+			i++;
+		}
+		return i;
+	}
+
+	@Override
+	public Token nextToken() {
+		if ( next<reusablePrefix ) {
+			int i = next++;
+			Entry e = old.entries.get(i);
+			errors.addAll(e.errors);
+			return record(old.tokens.get(i), e);
+		}
+		if ( shift!=null ) {
+			return replayShifted(resynced++);
+		}
+		if ( !lexing ) {
+			startLexing();
+		}
+		int pos = input.index();
+		if ( old!=null && pos>=newChangeEnd ) {
+			int j = findOldEntry(pos - delta, reusablePrefix);
+			if ( j<old.entries.size() && old.getStart(j)==pos - delta && isLexerInState(old.entries.get(j)) ) {
+				resync(j);
+				return replayShifted(resynced++);
+			}
+		}
+		return lex();
+	}
+
+	protected void startLexing() {
+		lexing = true;
+		if ( old==null || reusablePrefix>=old.entries.size() ) {
+			return;
+		}
+		// restart where the first affected token's call started; nothing changed before that
+		Entry restart = old.entries.get(reusablePrefix);
+		int start = old.getStart(reusablePrefix);
+		input.seek(start);
+		lexer.setLine(old.tokens.get(reusablePrefix).getLine() - restart.skippedLines);
+		lexer.setCharPositionInLine(start - (text.lastIndexOf('\n', start - 1) + 1));
+		lexer._mode = restart.mode;
+		lexer._modeStack.clear();
+		for (int m : restart.modeStack) {
+			lexer._modeStack.push(m);
+		}
+	}
+
+	protected Token lex() {
+		int start = input.index();
+		int line = lexer.getLine();
+		int mode = lexer._mode;
+		int[] modeStack = getModeStack();
+		int errorsBefore = errors.size();
+		input.maxLookIndex = start - 1;
+
+		Token t = lexer.nextToken();
+
+		List<SyntaxError> tokenErrors = NO_ERRORS;
+		if ( errors.size()>errorsBefore ) {
+			tokenErrors = new ArrayList<SyntaxError>(errors.subList(errorsBefore, errors.size()));
+		}
+		int lookahead = input.maxLookIndex - start;
+		if ( t.getType()==Token.EOF ) {
+			lookahead = Math.max(lookahead, text.length() - start); // anything appended changes EOF
+		}
+		maxLookahead = Math.max(maxLookahead, lookahead);
+		return record(t, new Entry(t.getStartIndex() - start, t.getLine() - line, lookahead,
+								   mode, modeStack, tokenErrors));
+	}
+
+	protected Token record(Token t, Entry e) {
+		tokens.add(t);
+		entries.add(e);
+		if ( t.getType()==Token.EOF ) {
+			snapshot = new Snapshot(text, version, tokens, entries, maxLookahead);
+		}
+		return t;
+	}
+
+	/** We're at old entry j's start, in the same state, past the edit. Work
+	 *  out how its tokens move from where the lexer is and where j was.
+	 */
+	protected void resync(int j) {
+		int oldStart = old.getStart(j);
+		int oldLine = old.tokens.get(j).getLine() - old.entries.get(j).skippedLines;
+		int oldCharPositionInLine = oldStart - (old.text.lastIndexOf('\n', oldStart - 1) + 1);
+		shift = new Shift(j, tokens.size() - j, delta,
+						  lexer.getLine() - oldLine,
+						  oldLine, oldCharPositionInLine,
+						  lexer.getCharPositionInLine() - oldCharPositionInLine);
+		resynced = j;
+	}
+
+	/** Move old token j past the edit to its place in the new text */
+	protected Token replayShifted(int j) {
+		Token t = old.tokens.get(j);
+		Entry e = old.entries.get(j);
+		CommonToken shifted =
+			new CommonToken(source, t.getType(), t.getChannel(),
+							t.getStartIndex() + delta, t.getStopIndex() + delta);
+		shifted.setLine(shift.getLine(t.getLine()));
+		shifted.setCharPositionInLine(shift.getCharPositionInLine(t.getLine(), t.getCharPositionInLine()));
+		if ( !e.errors.isEmpty() ) {
+			e = shiftErrors(e);
+		}
+		return record(shifted, e);
+	}
+
+	/** Errors are positioned in the text, so unlike the rest of an entry they move */
+	protected Entry shiftErrors(Entry e) {
+		List<SyntaxError> shiftedErrors = new ArrayList<SyntaxError>(e.errors.size());
+		for (SyntaxError se : e.errors) {
+			RecognitionException cause = se.getException();
+			if ( cause instanceof LexerNoViableAltException ) {
+				LexerNoViableAltException lnvae = (LexerNoViableAltException)cause;
+				cause = new LexerNoViableAltException(lexer, input, lnvae.getStartIndex() + delta,
+													  lnvae.getDeadEndConfigs());
+			}
+			shiftedErrors.add(new SyntaxError(lexer, se.getOffendingSymbol(),
+											  shift.getLine(se.getLine()),
+											  shift.getCharPositionInLine(se.getLine(), se.getCharPositionInLine()),
+											  se.getMessage(), cause));
+		}
+		errors.addAll(shiftedErrors);
+		return new Entry(e.skipped, e.skippedLines, e.lookahead, e.mode, e.modeStack, shiftedErrors);
+	}
+
+	/** Binary search from old entry lo for the first starting at or after offset */
+	protected int findOldEntry(int offset, int lo) {
+		int hi = old.entries.size();
+		while ( lo<hi ) {
+			int mid = (lo + hi) >>> 1;
+			if ( old.getStart(mid)<offset ) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	protected boolean isLexerInState(Entry e) {
+		return e.mode==lexer._mode && Arrays.equals(e.modeStack, getModeStack());
+	}
+
+	protected int[] getModeStack() {
+		if ( lexer._modeStack.isEmpty() ) {
+			return EMPTY_MODE_STACK;
+		}
+		return lexer._modeStack.toArray();
+	}
+
+	@Override
+	public int getLine() {
+		return lexer.getLine();
+	}
+
+	@Override
+	public int getCharPositionInLine() {
+		return lexer.getCharPositionInLine();
+	}
+
+	@Override
+	public CharStream getInputStream() {
+		return input;
+	}
+
+	@Override
+	public String getSourceName() {
+		return lexer.getSourceName();
+	}
+
+	@Override
+	public void setTokenFactory(TokenFactory<?> factory) {
+		lexer.setTokenFactory(factory);
+	}
+
+	@Override
+	public TokenFactory<?> getTokenFactory() {
+		return lexer.getTokenFactory();
+	}
+}
@@ -0,0 +1,87 @@
+package org.antlr.intellij.plugin.parsing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** The changes made to the preview input document, so that
+ *  {@link IncrementalTokenSource} can tell where the text changed since
+ *  the last parse without comparing the old and new text.
+ *
+ *  Each change bumps the version. The EDT records changes from a document
+ *  listener and hands each parse the version of the text it got; parses
+ *  ask for the changes since the version of their snapshot from a pooled
+ *  thread. Only the last MAX_EDITS changes are kept. Asking about older
+ *  versions, or versions from before the document was replaced (see
+ *  {@link #reset}), gets null and the caller compares the texts instead.
+ */
+public class InputEditLog {
+	public static final int MAX_EDITS = 1000;
+
+	/** text[offset..offset+oldLength) replaced by newLength chars */
+	public static class Edit {
+		public final int offset;
+		public final int oldLength;
+		public final int newLength;
+
+		public Edit(int offset, int oldLength, int newLength) {
+			this.offset = offset;
+			this.oldLength = oldLength;
+			this.newLength = newLength;
+		}
+	}
+
+	protected final List<Edit> edits = new ArrayList<Edit>();
+
+	/** Version of the text edits.get(0) was made to */
+	protected long firstVersion = 0;
+
+	public synchronized long getVersion() {
+		return firstVersion + edits.size();
+	}
+
+	public synchronized void edited(int offset, int oldLength, int newLength) {
+		edits.add(new Edit(offset, oldLength, newLength));
+		if ( edits.size()>MAX_EDITS ) {
+			forgetBefore(getVersion() - MAX_EDITS/2);
+		}
+	}
+
+	/** The document was replaced; what we know says nothing about the new one */
+	public synchronized void reset() {
+		firstVersion = getVersion() + 1;
+		edits.clear();
+	}
+
+	/** No parse will ask about versions before version anymore */
+	public synchronized void forgetBefore(long version) {
+		int n = (int)Math.min(Math.max(version - firstVersion, 0), edits.size());
+		edits.subList(0, n).clear();
+		firstVersion += n;
+	}
+
+	/** All changes from version from to version to as one: to's text
+	 *  differs from from's only in the Edit's range. Null if we don't have
+	 *  the changes in between or there are none.
+	 */
+	public synchronized Edit getEdit(long from, long to) {
+		if ( from<firstVersion || to>getVersion() || from>=to ) {
+			return null;
+		}
+		// the changed range in from's text is [start, oldEnd), in the current one [start, newEnd)
+		int first = (int)(from - firstVersion);
+		Edit e = edits.get(first);
+		int start = e.offset;
+		int oldEnd = e.offset + e.oldLength;
+		int newEnd = e.offset + e.newLength;
+		for (int i = first + 1; i < to - firstVersion; i++) {
+			e = edits.get(i);
+			int end = e.offset + e.oldLength;
+			if ( end>newEnd ) {
+				oldEnd += end - newEnd;
+			}
+			start = Math.min(start, e.offset);
+			newEnd = Math.max(newEnd, end) + e.newLength - e.oldLength;
+		}
+		return new Edit(start, oldEnd - start, newEnd - start);
+	}
+}
@@ -0,0 +1,133 @@
+package org.antlr.intellij.plugin.parsing;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.util.ArrayDeque;
+
+/** Answers "what's at this char offset" questions about a parsing result
+ *  without scanning all tokens or tree nodes, as the preview editor asks
+ *  them on every mouse move. Built once per {@link ParsingResult}, on the
+ *  thread that parsed; see {@link ParsingResult#buildOffsetIndex()}.
+ *
+ *  Tokens come off the stream in offset order, so a binary search over
+ *  their start offsets finds the token or the gap between tokens (skipped
+ *  chars) under an offset. Terminal nodes are in an array by token index.
+ */
+public class InputOffsetIndex {
+	protected final TokenStream tokens;
+	protected final int inputSize;
+
+	/** Start offset of token i; non-decreasing */
+	protected final int[] tokenStarts;
+
+	/** Terminal node for each token index, null for hidden/unused tokens */
+	protected final TerminalNode[] terminalNodes;
+
+	public InputOffsetIndex(TokenStream tokens, ParseTree tree) {
+		this.tokens = tokens;
+		int n = tokens.size();
+		tokenStarts = new int[n];
+		for (int i = 0; i < n; i++) {
+			tokenStarts[i] = tokens.get(i).getStartIndex();
+		}
+		inputSize = computeInputSize(tokens);
+
+		terminalNodes = new TerminalNode[n];
+		if ( tree!=null ) {
+			indexTerminalNodes(tree);
+		}
+	}
+
+	protected static int computeInputSize(TokenStream tokens) {
+		if ( tokens.size()>0 ) {
+			Token last = tokens.get(tokens.size()-1);
+			if ( last.getType()==Token.EOF ) {
+				return last.getStartIndex();
+			}
+		}
+		return tokens.getTokenSource().getInputStream().size();
+	}
+
+	/** No recursion; trees can be very deep */
+	protected void indexTerminalNodes(ParseTree tree) {
+		ArrayDeque<ParseTree> work = new ArrayDeque<ParseTree>();
+		work.push(tree);
+		while ( !work.isEmpty() ) {
+			ParseTree t = work.pop();
+			if ( t instanceof TerminalNode ) {
+				int i = ((TerminalNode) t).getSymbol().getTokenIndex();
+				if ( i>=0 && i<terminalNodes.length ) { // not conjured by error recovery
+					terminalNodes[i] = (TerminalNode)t;
+				}
+				continue;
+			}
+			for (int i = t.getChildCount()-1; i>=0; i--) {
+				work.push(t.getChild(i));
+			}
+		}
+	}
+
+	/** Index of the last token starting at or before offset, or -1 */
+	protected int findToken(int offset) {
+		int lo = 0;
+		int hi = tokenStarts.length-1;
+		while ( lo<=hi ) {
+			int mid = (lo + hi) >>> 1;
+			if ( tokenStarts[mid]<=offset ) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid - 1;
+			}
+		}
+		return hi;
+	}
+
+	/** The token covering offset, or null if none (skipped chars) */
+	public Token getTokenAt(int offset) {
+		if ( offset<0 || offset>=inputSize ) return null;
+		int i = findToken(offset);
+		if ( i<0 ) return null;
+		Token t = tokens.get(i);
+		return offset<=t.getStopIndex() ? t : null;
+	}
+
+	/** Like {@link #getTokenAt} but between tokens, return a fake token of
+	 *  type {@link Token#INVALID_TYPE} and channel -1 spanning the skipped
+	 *  chars around offset.
+	 */
+	public Token getTokenOrSkippedAt(int offset) {
+		if ( offset<0 || offset>=inputSize ) return null;
+		int i = findToken(offset);
+		if ( i>=0 && offset<=tokens.get(i).getStopIndex() ) {
+			return tokens.get(i);
+		}
+		if ( i+1>=tokens.size() ) return null;
+		TokenSource tokenSource = tokens.getTokenSource();
+		CharStream inputStream = null;
+		if ( tokenSource!=null ) {
+			inputStream = tokenSource.getInputStream();
+		}
+		return new CommonToken(new Pair<TokenSource, CharStream>(tokenSource, inputStream),
+							   Token.INVALID_TYPE,
+							   -1,
+							   i>=0 ? tokens.get(i).getStopIndex()+1 : 0,
+							   tokens.get(i+1).getStartIndex()-1);
+	}
+
+	/** The parse tree leaf for token t, if t made it into the tree */
+	public TerminalNode getTerminalNode(Token t) {
+		if ( t==null ) return null;
+		int i = t.getTokenIndex();
+		if ( i<0 || i>=terminalNodes.length ) return null;
+		TerminalNode node = terminalNodes[i];
+		return node!=null && node.getSymbol()==t ? node : null;
+	}
+}
@@ -0,0 +1,327 @@
+package org.antlr.intellij.plugin.parsing;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.misc.Interval;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** A {@link CharStream} over a preview input file that is memory-mapped
+ *  rather than read into a String, so big files don't have to fit in the
+ *  heap several times over.
+ *
+ *  Chars are decoded a block at a time as the lexer gets to them and only
+ *  the most recently used blocks are kept around. Like the preview editor's
+ *  documents, the stream never contains '\r'; it is dropped while decoding
+ *  so char indexes match what the editor would show.
+ *
+ *  We remember where each block starts in the file so we can go back to
+ *  any block and decode it again, for token text and seeks.
+ *
+ *  {@link #close} unmaps the file once lexing is done. Tokens still get
+ *  their text from here, so a block that isn't cached any more is decoded
+ *  from a mapping made just for that and released right after.
+ */
+public class MappedFileCharStream implements CharStream, Closeable {
+	/** Chars decoded at a time (before dropping '\r') */
+	public static final int BLOCK_SIZE = 64 * 1024;
+
+	/** How many decoded blocks to keep around */
+	public static final int MAX_CACHED_BLOCKS = 16;
+
+	protected final File file;
+	protected final String sourceName;
+	/** null once closed */
+	protected MappedByteBuffer bytes;
+	protected final CharsetDecoder decoder;
+
+	/** Byte and char offsets of the blocks decoded so far; block i covers
+	 *  chars [blockCharStart[i], blockCharStart[i+1]). There is one more
+	 *  entry than decoded blocks.
+	 */
+	protected int[] blockByteStart = new int[16];
+	protected int[] blockCharStart = new int[16];
+	protected int numBlocks = 0;
+	protected boolean sawEOF = false;
+
+	protected final Map<Integer, char[]> blocks =
+		new LinkedHashMap<Integer, char[]>(MAX_CACHED_BLOCKS, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, char[]> eldest) {
+				return size()>MAX_CACHED_BLOCKS;
+			}
+		};
+
+	/** The block holding p, or the last one we looked at */
+	protected int curBlock = -1;
+	protected int curStart;
+	protected char[] curChars;
+
+	protected int p = 0;
+
+	public MappedFileCharStream(File file, Charset charset) throws IOException {
+		this.file = file;
+		this.sourceName = file.getPath();
+		bytes = map(file);
+		decoder = charset.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		blockByteStart[0] = skipByteOrderMark(charset);
+		blockCharStart[0] = 0;
+	}
+
+	protected static MappedByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if ( size>Integer.MAX_VALUE ) {
+				throw new IOException("input file too big: "+file.getPath());
+			}
+			// the mapping stays valid after the channel is closed
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/** Release the mapping now rather than whenever the GC finalizes it, so
+	 *  the file can be changed or deleted (on Windows) and the address space
+	 *  goes back. Chars decoded so far stay readable.
+	 */
+	@Override
+	public synchronized void close() {
+		if ( bytes!=null ) {
+			unmap(bytes);
+			bytes = null;
+		}
+	}
+
+	/** Unmap buffer through the JDK's cleaner, which isn't public API; if
+	 *  that's missing, leave it to the GC.
+	 */
+	protected static void unmap(MappedByteBuffer buffer) {
+		try {
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if ( cleaner!=null ) {
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		}
+		catch (Exception e) {
+			// not a Sun/Oracle JDK or not allowed
+		}
+	}
+
+	protected int skipByteOrderMark(Charset charset) {
+		int b0 = bytes.limit()>=2 ? bytes.get(0)&0xFF : -1;
+		int b1 = bytes.limit()>=2 ? bytes.get(1)&0xFF : -1;
+		String name = charset.name();
+		if ( name.equals("UTF-8") && bytes.limit()>=3 && b0==0xEF && b1==0xBB && (bytes.get(2)&0xFF)==0xBF ) {
+			return 3;
+		}
+		// plain "UTF-16" reads and drops the mark itself
+		if ( (name.equals("UTF-16BE") && b0==0xFE && b1==0xFF) ||
+			 (name.equals("UTF-16LE") && b0==0xFF && b1==0xFE) )
+		{
+			return 2;
+		}
+		return 0;
+	}
+
+	@Override
+	public void consume() {
+		if ( LA(1)==IntStream.EOF ) {
+			throw new IllegalStateException("cannot consume EOF");
+		}
+		p++;
+	}
+
+	@Override
+	public int LA(int i) {
+		if ( i==0 ) {
+			return 0; // undefined
+		}
+		int index = i>0 ? p + i - 1 : p + i;
+		if ( index<0 ) {
+			return IntStream.EOF; // invalid; same as ANTLRInputStream
+		}
+		if ( curBlock>=0 && index>=curStart && index-curStart<curChars.length ) {
+			return curChars[index-curStart];
+		}
+		if ( !selectBlock(index) ) {
+			return IntStream.EOF;
+		}
+		return curChars[index-curStart];
+	}
+
+	@Override
+	public String getText(Interval interval) {
+		int start = interval.a;
+		int stop = interval.b;
+		StringBuilder buf = new StringBuilder(Math.max(0, stop-start+1));
+		for (int i = start; i <= stop && selectBlock(i); ) {
+			int from = i - curStart;
+			int to = Math.min(curChars.length, stop - curStart + 1);
+			buf.append(curChars, from, to-from);
+			i = curStart + to;
+		}
+		return buf.toString();
+	}
+
+	@Override
+	public int mark() {
+		return -1;
+	}
+
+	@Override
+	public void release(int marker) {
+	}
+
+	@Override
+	public int index() {
+		return p;
+	}
+
+	@Override
+	public void seek(int index) {
+		if ( index<=p ) {
+			p = index; // can't be past the end
+			return;
+		}
+		if ( !selectBlock(index) ) {
+			index = size();
+		}
+		p = index;
+	}
+
+	/** Requires decoding the whole file once, though not keeping it */
+	@Override
+	public int size() {
+		while ( !sawEOF ) {
+			decodeNextBlock();
+		}
+		return blockCharStart[numBlocks];
+	}
+
+	@Override
+	public String getSourceName() {
+		return sourceName;
+	}
+
+	@Override
+	public String toString() {
+		return getText(Interval.of(0, size()-1));
+	}
+
+	/** Make the block holding char index current; false if past EOF */
+	protected boolean selectBlock(int index) {
+		while ( !sawEOF && index>=blockCharStart[numBlocks] ) {
+			decodeNextBlock();
+		}
+		if ( index>=blockCharStart[numBlocks] ) {
+			return false;
+		}
+		int b = Arrays.binarySearch(blockCharStart, 0, numBlocks+1, index);
+		if ( b<0 ) {
+			b = -b - 2; // block starting before index
+		}
+		// skip empty blocks (all '\r')
+		while ( blockCharStart[b+1]==index && b<numBlocks-1 ) {
+			b++;
+		}
+		char[] chars = blocks.get(b);
+		if ( chars==null ) {
+			chars = decode(blockByteStart[b], blockCharStart[b+1]-blockCharStart[b]);
+			blocks.put(b, chars);
+		}
+		curBlock = b;
+		curStart = blockCharStart[b];
+		curChars = chars;
+		return true;
+	}
+
+	protected synchronized void decodeNextBlock() {
+		CharBuffer out = CharBuffer.allocate(BLOCK_SIZE);
+		int byteEnd = decode(blockByteStart[numBlocks], out);
+		char[] chars = dropCarriageReturns(out);
+		if ( numBlocks+2>blockByteStart.length ) {
+			blockByteStart = Arrays.copyOf(blockByteStart, blockByteStart.length*2);
+			blockCharStart = Arrays.copyOf(blockCharStart, blockCharStart.length*2);
+		}
+		blocks.put(numBlocks, chars);
+		blockByteStart[numBlocks+1] = byteEnd;
+		blockCharStart[numBlocks+1] = blockCharStart[numBlocks] + chars.length;
+		numBlocks++;
+	}
+
+	/** Decode a block again after it fell out of the cache */
+	protected synchronized char[] decode(int byteStart, int n) {
+		CharBuffer out = CharBuffer.allocate(BLOCK_SIZE);
+		decode(byteStart, out);
+		char[] chars = dropCarriageReturns(out);
+		assert chars.length==n;
+		return chars;
+	}
+
+	/** Fill out with chars from byteStart on, mapping the file again for
+	 *  just this if we're closed; returns the byte offset we stopped at.
+	 */
+	protected int decode(int byteStart, CharBuffer out) {
+		MappedByteBuffer temp = null;
+		try {
+			ByteBuffer in;
+			if ( bytes!=null ) {
+				in = bytes.duplicate();
+			}
+			else {
+				temp = map(file);
+				in = temp;
+			}
+			in.position(byteStart);
+			decoder.reset();
+			if ( decoder.decode(in, out, true).isUnderflow() ) {
+				decoder.flush(out);
+				sawEOF = sawEOF || !in.hasRemaining();
+			}
+			return in.position();
+		}
+		catch (IOException ioe) {
+			throw new IllegalStateException("can't read "+sourceName+" again", ioe);
+		}
+		finally {
+			if ( temp!=null ) {
+				unmap(temp);
+			}
+		}
+	}
+
+	protected static char[] dropCarriageReturns(CharBuffer out) {
+		out.flip();
+		char[] chars = new char[out.remaining()];
+		int n = 0;
+		while ( out.hasRemaining() ) {
+			char c = out.get();
+			if ( c!='\r' ) {
+				chars[n++] = c;
+			}
+		}
+		return n==chars.length ? chars : Arrays.copyOf(chars, n);
+	}
+}
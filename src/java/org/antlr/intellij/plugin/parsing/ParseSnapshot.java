@@ -0,0 +1,153 @@
+package org.antlr.intellij.plugin.parsing;
+
+import org.antlr.intellij.adaptor.parser.SyntaxError;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenSource;
+
+import java.util.List;
+import java.util.Map;
+
+/** What a preview parse leaves behind so that the next parse of edited
+ *  input can skip the top-level children of the start rule that come
+ *  before and after the edit.
+ *
+ *  While parsing, {@link PreviewParser} records a checkpoint each time it
+ *  is back in the start rule with another child finished: the ATN state
+ *  and token index to continue from and the furthest token examined so
+ *  far. If the new token stream starts with the very same token objects
+ *  (see {@link IncrementalTokenSource}) through that furthest token, the
+ *  parser can reuse those children and resume at the checkpoint. Past the
+ *  edit, once it reaches a checkpoint's state at the token the old one
+ *  moved to, the rest of the parse would repeat the old one; it reuses
+ *  the children after the checkpoint and stops.
+ *
+ *  Nothing here is modified once built: the tree is still on screen.
+ *  Reused nodes are copied.
+ */
+public class ParseSnapshot {
+	public static class Checkpoint {
+		/** Number of start rule children finished */
+		public final int childCount;
+		public final int atnState;
+		/** Token index to resume at */
+		public final int tokenIndex;
+		/** Furthest token looked at to get here */
+		public final int maxLookTokenIndex;
+		/** Parser errors reported before this point */
+		public final int parserErrorCount;
+		/** The start rule's exception so far, the last error caught there */
+		public final RecognitionException exception;
+
+		public Checkpoint(int childCount, int atnState, int tokenIndex,
+						  int maxLookTokenIndex, int parserErrorCount,
+						  RecognitionException exception)
+		{
+			this.childCount = childCount;
+			this.atnState = atnState;
+			this.tokenIndex = tokenIndex;
+			this.maxLookTokenIndex = maxLookTokenIndex;
+			this.parserErrorCount = parserErrorCount;
+			this.exception = exception;
+		}
+	}
+
+	/** Tracks how far ahead the parser looks so we know which parts of the
+	 *  tree the edit could have affected.
+	 */
+	public static class LookaheadTrackingTokenStream extends CommonTokenStream {
+		public int maxLookIndex = -1;
+
+		public LookaheadTrackingTokenStream(TokenSource tokenSource) {
+			super(tokenSource);
+		}
+
+		@Override
+		public Token LT(int k) {
+			Token t = super.LT(k);
+			if ( k>0 && t!=null && t.getTokenIndex()>maxLookIndex ) {
+				maxLookIndex = t.getTokenIndex();
+			}
+			return t;
+		}
+
+		@Override
+		public void reset() {
+			super.reset();
+			maxLookIndex = -1;
+		}
+	}
+
+	public final int startRuleIndex;
+	public final ParserRuleContext tree;
+	/** What the tree's tokens came from */
+	public final IncrementalTokenSource.Snapshot lexerSnapshot;
+	public final List<Checkpoint> checkpoints;
+	/** The parser's own; it doesn't change it after the parse */
+	public final Map<Token, Integer> inputTokenToStateMap;
+	/** Errors from the parser, not the lexer, in the order reported */
+	public final List<SyntaxError> parserErrors;
+
+	public ParseSnapshot(int startRuleIndex,
+						 ParserRuleContext tree,
+						 IncrementalTokenSource.Snapshot lexerSnapshot,
+						 List<Checkpoint> checkpoints,
+						 Map<Token, Integer> inputTokenToStateMap,
+						 List<SyntaxError> parserErrors)
+	{
+		this.startRuleIndex = startRuleIndex;
+		this.tree = tree;
+		this.lexerSnapshot = lexerSnapshot;
+		this.checkpoints = checkpoints;
+		this.inputTokenToStateMap = inputTokenToStateMap;
+		this.parserErrors = parserErrors;
+	}
+
+	/** Index of the last checkpoint whose lookahead stays within the first
+	 *  sameTokens tokens, the ones the new token stream shares with
+	 *  lexerSnapshot, or -1 if we have to parse from scratch. Both the
+	 *  token index and lookahead only grow from one checkpoint to the next.
+	 */
+	public int findResumePoint(int sameTokens) {
+		int lo = 0;
+		int hi = checkpoints.size();
+		while ( lo<hi ) {
+			int mid = (lo + hi) >>> 1;
+			if ( checkpoints.get(mid).maxLookTokenIndex<sameTokens ) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		for (int i = lo-1; i>=0; i--) {
+			if ( checkpoints.get(i).tokenIndex<=sameTokens ) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/** Index of a checkpoint at tokenIndex in ATN state atnState, or -1 */
+	public int findCheckpoint(int tokenIndex, int atnState) {
+		int lo = 0;
+		int hi = checkpoints.size();
+		while ( lo<hi ) {
+			int mid = (lo + hi) >>> 1;
+			if ( checkpoints.get(mid).tokenIndex<tokenIndex ) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		for (int i = lo; i<checkpoints.size() && checkpoints.get(i).tokenIndex==tokenIndex; i++) {
+			if ( checkpoints.get(i).atnState==atnState ) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
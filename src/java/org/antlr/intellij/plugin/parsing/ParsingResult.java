@@ -2,6 +2,7 @@ package org.antlr.intellij.plugin.parsing;
 
 import org.antlr.intellij.adaptor.parser.SyntaxErrorListener;
 import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.TokenStream;
 import org.antlr.v4.runtime.tree.ParseTree;
 
 public class ParsingResult {
@@ -9,9 +10,28 @@ public class ParsingResult {
 	public ParseTree tree;
 	public SyntaxErrorListener syntaxErrorListener;
 
+	/** Built by {@link #buildOffsetIndex()} on the thread that parsed */
+	protected InputOffsetIndex offsetIndex;
+
 	public ParsingResult(Parser parser, ParseTree tree, SyntaxErrorListener syntaxErrorListener) {
 		this.parser = parser;
 		this.tree = tree;
 		this.syntaxErrorListener = syntaxErrorListener;
 	}
+
+	/** Index tokens and tree leaves by offset. Call this where the parse
+	 *  ran, before the result is handed to the UI, so the EDT never does it.
+	 */
+	public synchronized void buildOffsetIndex() {
+		if ( offsetIndex==null ) {
+			TokenStream tokens = parser.getInputStream();
+			offsetIndex = new InputOffsetIndex(tokens, tree);
+		}
+	}
+
+	/** Token and tree leaf lookups by offset for the preview editor */
+	public synchronized InputOffsetIndex getOffsetIndex() {
+		buildOffsetIndex(); // already done unless the result didn't come from the preview's parse
+		return offsetIndex;
+	}
 }
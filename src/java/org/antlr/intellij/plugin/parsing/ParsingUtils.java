@@ -2,9 +2,12 @@ package org.antlr.intellij.plugin.parsing;
 
 import com.intellij.execution.ui.ConsoleView;
 import com.intellij.execution.ui.ConsoleViewContentType;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
-import org.antlr.intellij.adaptor.parser.SyntaxError;
+import com.intellij.openapi.vfs.encoding.EncodingManager;
 import org.antlr.intellij.adaptor.parser.SyntaxErrorListener;
 import org.antlr.intellij.plugin.ANTLRv4PluginController;
 import org.antlr.intellij.plugin.PluginIgnoreMissingTokensFileErrorManager;
@@ -15,21 +18,25 @@ import org.antlr.intellij.plugin.preview.PreviewState;
 import org.antlr.v4.Tool;
 import org.antlr.v4.parse.ANTLRParser;
 import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.BailErrorStrategy;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CommonToken;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.Lexer;
 import org.antlr.v4.runtime.LexerInterpreter;
-import org.antlr.v4.runtime.LexerNoViableAltException;
-import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.TokenFactory;
 import org.antlr.v4.runtime.TokenSource;
 import org.antlr.v4.runtime.atn.PredictionMode;
-import org.antlr.v4.runtime.misc.Pair;
-import org.antlr.v4.runtime.misc.Utils;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ErrorNode;
 import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
 import org.antlr.v4.runtime.tree.TerminalNode;
-import org.antlr.v4.runtime.tree.Trees;
+import org.antlr.v4.tool.ANTLRMessage;
 import org.antlr.v4.tool.Grammar;
 import org.antlr.v4.tool.LexerGrammar;
 import org.antlr.v4.tool.Rule;
@@ -38,7 +45,9 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Collection;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -99,9 +108,7 @@ public class ParsingUtils {
 	public static Token getTokenUnderCursor(PreviewState previewState, int offset) {
 		if ( previewState==null || previewState.parsingResult == null) return null;
 
-		PreviewParser parser = (PreviewParser)previewState.parsingResult.parser;
-		CommonTokenStream tokenStream =	(CommonTokenStream) parser.getInputStream();
-		return ParsingUtils.getTokenUnderCursor(tokenStream, offset);
+		return previewState.parsingResult.getOffsetIndex().getTokenAt(offset);
 	}
 
 	public static Token getTokenUnderCursor(CommonTokenStream tokens, int offset) {
@@ -124,62 +131,6 @@ public class ParsingUtils {
 		return tokenUnderCursor;
 	}
 
-	/*
-	[77] = {org.antlr.v4.runtime.CommonToken@16710}"[@77,263:268='import',<25>,9:0]"
-	[78] = {org.antlr.v4.runtime.CommonToken@16709}"[@78,270:273='java',<100>,9:7]"
-	 */
-	public static Token getSkippedTokenUnderCursor(CommonTokenStream tokens, int offset) {
-		if ( offset<0 || offset >= tokens.getTokenSource().getInputStream().size() ) return null;
-		Token prevToken = null;
-		Token tokenUnderCursor = null;
-		for (Token t : tokens.getTokens()) {
-			int begin = t.getStartIndex();
-			int end = t.getStopIndex();
-			if ( (prevToken==null || offset > prevToken.getStopIndex()) && offset < begin ) {
-				// found in between
-				TokenSource tokenSource = tokens.getTokenSource();
-				CharStream inputStream = null;
-				if ( tokenSource!=null ) {
-					inputStream = tokenSource.getInputStream();
-				}
-				tokenUnderCursor = new org.antlr.v4.runtime.CommonToken(
-					new Pair<TokenSource, CharStream>(tokenSource, inputStream),
-					Token.INVALID_TYPE,
-					-1,
-					prevToken!=null ? prevToken.getStopIndex()+1 : 0,
-					begin-1
-				);
-				break;
-			}
-			if ( offset >= begin && offset <= end ) {
-				tokenUnderCursor = t;
-				break;
-			}
-			prevToken = t;
-		}
-		return tokenUnderCursor;
-	}
-
-	public static SyntaxError getErrorUnderCursor(java.util.List<SyntaxError> errors, int offset) {
-		for (SyntaxError e : errors) {
-			int a, b;
-			RecognitionException cause = e.getException();
-			if ( cause instanceof LexerNoViableAltException) {
-				a = ((LexerNoViableAltException) cause).getStartIndex();
-				b = ((LexerNoViableAltException) cause).getStartIndex()+1;
-			}
-			else {
-				Token offendingToken = (Token)e.getOffendingSymbol();
-				a = offendingToken.getStartIndex();
-				b = offendingToken.getStopIndex()+1;
-			}
-			if ( offset >= a && offset < b ) { // cursor is over some kind of error
-				return e;
-			}
-		}
-		return null;
-	}
-
 	public static CommonTokenStream tokenizeANTLRGrammar(String text) {
 		ANTLRInputStream input = new ANTLRInputStream(text);
 		ANTLRv4Lexer lexer = new ANTLRv4Lexer(input);
@@ -188,21 +139,6 @@ public class ParsingUtils {
 		return tokens;
 	}
 
-    public static ParseTree getParseTreeNodeWithToken(ParseTree tree, Token token) {
-        if ( tree==null || token==null ) {
-            return null;
-        }
-
-        Collection<ParseTree> tokenNodes = Trees.findAllTokenNodes(tree, token.getType());
-        for (ParseTree t : tokenNodes) {
-            TerminalNode tnode = (TerminalNode)t;
-            if ( tnode.getPayload() == token ) {
-                return tnode;
-            }
-        }
-        return null;
-    }
-
     public static ParsingResult parseANTLRGrammar(String text) {
 	    ANTLRInputStream input = new ANTLRInputStream(text);
 		ANTLRv4Lexer lexer = new ANTLRv4Lexer(input);
@@ -250,49 +186,152 @@ public class ParsingUtils {
 //		}
 		return null;
 	}
+	/** Parse inputText with the preview grammars. With profile set, predict
+	 *  with LL_EXACT_AMBIG_DETECTION and collect ParseInfo for the profiler.
+	 *  Otherwise do a cheap two-stage SLL/LL parse that just builds the tree;
+	 *  the result's parser then has no ParseInfo. inputVersion is the
+	 *  {@link PreviewState#inputEdits} version of inputText, or -1 if it
+	 *  isn't the preview editor's.
+	 */
 	public static ParsingResult parseText(PreviewState previewState,
 										  PreviewPanel previewPanel,
 										  final VirtualFile grammarFile,
-										  String inputText)
+										  String inputText,
+										  long inputVersion,
+										  boolean profile)
 		throws IOException
 	{
 		ANTLRv4PluginController.LOG.info("parseText("+grammarFile.getName()+
 										 ", input="+inputText.subSequence(0,Math.min(30, inputText.length()))+"...)");
+		return parse(previewState, previewPanel, grammarFile, inputText, inputVersion, null, profile);
+	}
+
+	/** Same as {@link #parseText} but lex straight from a memory-mapped
+	 *  inputFile instead of a String; see {@link MappedFileCharStream}.
+	 *  As with the preview editor, '\r' chars are dropped. The mapping is
+	 *  released once we're done lexing.
+	 */
+	public static ParsingResult parseFile(PreviewState previewState,
+										  PreviewPanel previewPanel,
+										  final VirtualFile grammarFile,
+										  File inputFile,
+										  boolean profile)
+		throws IOException
+	{
+		ANTLRv4PluginController.LOG.info("parseFile("+grammarFile.getName()+", input="+inputFile.getPath()+")");
+		MappedFileCharStream input = new MappedFileCharStream(inputFile, getInputFileCharset(inputFile));
+		try {
+			return parse(previewState, previewPanel, grammarFile, null, -1, input, profile);
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	/** The charset the IDE reads inputFile with, as the preview editor
+	 *  does: what it detected or was told for that file, else its default.
+	 */
+	public static Charset getInputFileCharset(File inputFile) {
+		VirtualFile vfile = LocalFileSystem.getInstance().findFileByIoFile(inputFile);
+		return vfile!=null ? vfile.getCharset() : EncodingManager.getInstance().getDefaultCharset();
+	}
+
+	/** Parse either inputText or fileInput, a mapped input file */
+	protected static ParsingResult parse(PreviewState previewState,
+										 PreviewPanel previewPanel,
+										 final VirtualFile grammarFile,
+										 String inputText,
+										 long inputVersion,
+										 MappedFileCharStream fileInput,
+										 boolean profile)
+		throws IOException
+	{
 		String grammarFileName = grammarFile.getPath();
 		if (!new File(grammarFileName).exists()) {
 			ANTLRv4PluginController.LOG.info("parseText grammar doesn't exist "+grammarFileName);
 			return null;
 		}
 
-		if ( previewState.g==null || previewState.lg==null ) {
+		// we run off the EDT; take a consistent view of the grammars in case a reload swaps them
+		Grammar g, lg;
+		String startRuleName;
+		PreviewInterpreterCache cache = null;
+		synchronized (previewState) {
+			g = previewState.g;
+			lg = previewState.lg;
+			startRuleName = previewState.startRuleName;
+			if ( g!=null && lg!=null && g!=BAD_PARSER_GRAMMAR && lg!=BAD_LEXER_GRAMMAR ) {
+				cache = previewState.getInterpreterCache();
+			}
+		}
+
+		if ( g==null || lg==null ) {
 			ANTLRv4PluginController.LOG.info("parseText can't parse: missing lexer or parser no Grammar object for "+grammarFileName);
 			return null;
 		}
 
-		if ( previewState.g==BAD_PARSER_GRAMMAR || previewState.lg==BAD_LEXER_GRAMMAR ) {
+		if ( cache==null ) { // bad grammar(s)
 			return null;
 		}
 
-		ANTLRInputStream input = new ANTLRInputStream(inputText);
-		LexerInterpreter lexEngine;
-		lexEngine = previewState.lg.createLexerInterpreter(input);
-		CommonTokenStream tokens = new CommonTokenStream(lexEngine);
-		PreviewParser parser = new PreviewParser(previewState.g, tokens);
-		parser.getInterpreter().setPredictionMode(PredictionMode.LL_EXACT_AMBIG_DETECTION);
-		parser.setProfile(true);
+		// profiler can ask to see what a first parse costs, w/o DFA from earlier parses
+		boolean coldDFACache = profile && previewPanel!=null && previewPanel.getProfilerPanel().coldDFACache;
+
+		if ( previewPanel!=null && previewPanel.getProfilerPanel().compiledParser && startRuleName!=null ) {
+			ParsingResult result = parseCompiled(previewPanel.project, grammarFileName, startRuleName,
+												 inputText, fileInput, profile, coldDFACache);
+			if ( result!=null ) {
+				return result;
+			}
+			// else fall back on the interpreters
+			if ( fileInput!=null ) {
+				fileInput.seek(0);
+			}
+		}
 
 		SyntaxErrorListener syntaxErrorListener = new SyntaxErrorListener();
+		TokenSource tokenSource;
+		IncrementalTokenSource incrementalTokenSource = null;
+		if ( fileInput!=null ) {
+			// files are read-only; no edits to track so lex the whole thing
+			LexerInterpreter lexEngine =
+				cache.createLexerInterpreter(fileInput, coldDFACache);
+			lexEngine.removeErrorListeners();
+			lexEngine.addErrorListener(syntaxErrorListener);
+			tokenSource = lexEngine;
+		}
+		else {
+			IncrementalTokenSource.LookaheadTrackingInputStream input =
+				new IncrementalTokenSource.LookaheadTrackingInputStream(inputText);
+			LexerInterpreter lexEngine;
+			lexEngine = cache.createLexerInterpreter(input, coldDFACache);
+			lexEngine.removeErrorListeners();
+			lexEngine.addErrorListener(syntaxErrorListener);
+
+			// relex only what changed since the last parse, unless measuring a cold parse
+			incrementalTokenSource =
+				new IncrementalTokenSource(lexEngine, input, inputText,
+										   inputVersion, previewState.inputEdits,
+										   coldDFACache ? null : cache.lexerSnapshot,
+										   syntaxErrorListener);
+			tokenSource = incrementalTokenSource;
+		}
+		ParseSnapshot.LookaheadTrackingTokenStream tokens =
+			new ParseSnapshot.LookaheadTrackingTokenStream(tokenSource);
+		PreviewParser parser = new PreviewParser(cache, tokens, coldDFACache);
 		parser.removeErrorListeners();
 		parser.addErrorListener(syntaxErrorListener);
-		lexEngine.removeErrorListeners();
-		lexEngine.addErrorListener(syntaxErrorListener);
 
-		Rule start = previewState.g.getRule(previewState.startRuleName);
+		if ( startRuleName==null ) {
+			return null;
+		}
+		Rule start = g.getRule(startRuleName);
 		if ( start==null ) {
 			return null; // can't find start rule
 		}
 //		System.out.println("parse test ----------------------------");
-		ParseTree t = parser.parse(start.index);
+		ParseTree t = parse(cache, parser, tokens, incrementalTokenSource, previewState.inputEdits,
+							start.index, profile, coldDFACache, syntaxErrorListener);
 
 		if ( t!=null ) {
 			return new ParsingResult(parser, t, syntaxErrorListener);
@@ -300,6 +339,216 @@ public class ParsingUtils {
 		return null;
 	}
 
+	/** Parse from tokens, reusing start rule children of cache's last parse
+	 *  if incrementalTokenSource relexed from that parse's tokens, and leave
+	 *  cache the snapshots the next parse reuses. incrementalTokenSource
+	 *  is null for mapped input files; we don't reparse those incrementally.
+	 */
+	protected static ParseTree parse(PreviewInterpreterCache cache,
+									 PreviewParser parser,
+									 ParseSnapshot.LookaheadTrackingTokenStream tokens,
+									 IncrementalTokenSource incrementalTokenSource,
+									 InputEditLog inputEdits,
+									 int startRuleIndex,
+									 boolean profile,
+									 boolean coldDFACache,
+									 SyntaxErrorListener syntaxErrorListener)
+	{
+		ParseTree t;
+		if ( profile ) {
+			parser.getInterpreter().setPredictionMode(PredictionMode.LL_EXACT_AMBIG_DETECTION);
+			parser.setProfile(true);
+			t = parser.parse(startRuleIndex);
+		}
+		else {
+			// reuse start rule children before and after the edit if we relexed from previous's tokens
+			ParseSnapshot previous = incrementalTokenSource!=null ? cache.parseSnapshot : null;
+			if ( previous!=null && previous.startRuleIndex==startRuleIndex &&
+				 previous.lexerSnapshot==incrementalTokenSource.getOldSnapshot() )
+			{
+				tokens.fill();
+				int resumeAt = previous.findResumePoint(incrementalTokenSource.getReusedTokenCount());
+				if ( resumeAt>=0 ) {
+					int n = previous.checkpoints.get(resumeAt).parserErrorCount;
+					syntaxErrorListener.getSyntaxErrors().addAll(previous.parserErrors.subList(0, n));
+				}
+				parser.reuse(previous, resumeAt, incrementalTokenSource.getShift());
+			}
+			t = parseTwoStage(parser, startRuleIndex, syntaxErrorListener);
+		}
+
+		// lex any trailing input the start rule didn't need so we have a complete snapshot
+		tokens.fill();
+		if ( incrementalTokenSource!=null ) {
+			IncrementalTokenSource.Snapshot lexerSnapshot = incrementalTokenSource.getSnapshot();
+			if ( !coldDFACache && lexerSnapshot!=null ) {
+				cache.lexerSnapshot = lexerSnapshot;
+				if ( inputEdits!=null ) inputEdits.forgetBefore(lexerSnapshot.version);
+			}
+			if ( !profile && t!=null ) {
+				cache.parseSnapshot = parser.createSnapshot((ParserRuleContext)t, lexerSnapshot,
+															syntaxErrorListener.getSyntaxErrors());
+			}
+		}
+
+		return t;
+	}
+
+	/** Parse with SLL prediction and bail out at the first syntax error. SLL
+	 *  almost always gets the same answer as LL, much faster. If it fails,
+	 *  the error may be real or an SLL weakness, so rewind and reparse with
+	 *  full LL and normal error recovery/reporting. The lexer keeps its error
+	 *  listener throughout; tokens are buffered so lexer errors are reported
+	 *  just once.
+	 */
+	public static ParseTree parseTwoStage(PreviewParser parser,
+										  int startRuleIndex,
+										  SyntaxErrorListener syntaxErrorListener)
+	{
+		parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+		parser.removeErrorListeners();
+		parser.setErrorHandler(new BailErrorStrategy());
+		try {
+			return parser.parse(startRuleIndex);
+		}
+		catch (ParseCancellationException pce) {
+			parser.reset(); // rewinds the token stream too
+			parser.addErrorListener(syntaxErrorListener);
+			parser.setErrorHandler(new DefaultErrorStrategy());
+			parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+			return parser.parse(startRuleIndex);
+		}
+	}
+
+	/** Parse inputText or fileInput with the lexer and parser generated for
+	 *  grammarFileName, compiled by {@link CompiledRecognizerCache}, rather
+	 *  than the interpreters. Predicts as {@link #parse} does but doesn't
+	 *  relex or reparse incrementally. Null if there's no usable generated
+	 *  code, the start rule takes arguments or the parser threw an exception;
+	 *  the last goes to the console.
+	 */
+	protected static ParsingResult parseCompiled(Project project,
+												 String grammarFileName,
+												 String startRuleName,
+												 String inputText,
+												 MappedFileCharStream fileInput,
+												 boolean profile,
+												 boolean coldDFACache)
+		throws IOException
+	{
+		CompiledRecognizerCache.Recognizers recognizers =
+			CompiledRecognizerCache.getInstance(project).getRecognizers(grammarFileName);
+		if ( recognizers==null ) {
+			return null;
+		}
+		CharStream input;
+		if ( fileInput!=null ) {
+			input = fileInput;
+		}
+		else {
+			input = new ANTLRInputStream(inputText);
+		}
+
+		SyntaxErrorListener syntaxErrorListener = new SyntaxErrorListener();
+		try {
+			Lexer lexer = recognizers.createLexer(input);
+			lexer.removeErrorListeners();
+			lexer.addErrorListener(syntaxErrorListener);
+			CommonTokenStream tokens = new CommonTokenStream(lexer);
+			Parser parser = recognizers.createParser(tokens);
+			parser.removeErrorListeners();
+			parser.addErrorListener(syntaxErrorListener);
+			parser.addParseListener(CHECK_CANCELED);
+
+			Method startRule;
+			try {
+				startRule = parser.getClass().getMethod(startRuleName);
+			}
+			catch (NoSuchMethodException nsme) {
+				return null; // rule has args; the interpreter ignores them
+			}
+
+			if ( coldDFACache ) {
+				// generated recognizers share their DFA statically; start it over
+				lexer.getInterpreter().clearDFA();
+				parser.getInterpreter().clearDFA();
+			}
+
+			ParseTree t;
+			if ( profile ) {
+				parser.setProfile(true);
+				parser.getInterpreter().setPredictionMode(PredictionMode.LL_EXACT_AMBIG_DETECTION);
+				t = invokeStartRule(parser, startRule);
+			}
+			else {
+				// as in parseTwoStage()
+				parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+				parser.removeErrorListeners();
+				parser.setErrorHandler(new BailErrorStrategy());
+				try {
+					t = invokeStartRule(parser, startRule);
+				}
+				catch (ParseCancellationException pce) {
+					parser.reset();
+					parser.addErrorListener(syntaxErrorListener);
+					parser.setErrorHandler(new DefaultErrorStrategy());
+					parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+					t = invokeStartRule(parser, startRule);
+				}
+			}
+			tokens.fill();
+			return t!=null ? new ParsingResult(parser, t, syntaxErrorListener) : null;
+		}
+		catch (ProcessCanceledException pce) {
+			throw pce;
+		}
+		catch (RuntimeException re) { // from actions or predicates, most likely
+			ConsoleView console = ANTLRv4PluginController.getInstance(project).getConsole();
+			console.print("compiled parser for "+new File(grammarFileName).getName()+" failed: "+re+"\n",
+						  ConsoleViewContentType.ERROR_OUTPUT);
+			return null;
+		}
+	}
+
+	/** Lets a background parse by a generated parser bail out like {@link PreviewParser} does */
+	protected static final ParseTreeListener CHECK_CANCELED = new ParseTreeListener() {
+		@Override
+		public void enterEveryRule(ParserRuleContext ctx) {
+			ProgressManager.checkCanceled();
+		}
+
+		@Override
+		public void exitEveryRule(ParserRuleContext ctx) {
+		}
+
+		@Override
+		public void visitTerminal(TerminalNode node) {
+		}
+
+		@Override
+		public void visitErrorNode(ErrorNode node) {
+		}
+	};
+
+	protected static ParseTree invokeStartRule(Parser parser, Method startRule) {
+		try {
+			return (ParseTree)startRule.invoke(parser);
+		}
+		catch (InvocationTargetException ite) {
+			Throwable cause = ite.getCause();
+			if ( cause instanceof RuntimeException ) {
+				throw (RuntimeException)cause;
+			}
+			if ( cause instanceof Error ) {
+				throw (Error)cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+		catch (IllegalAccessException iae) {
+			throw new IllegalStateException(iae);
+		}
+	}
+
 	public static Tool createANTLRToolForLoadingGrammars() {
 		Tool antlr = new Tool();
 		antlr.errMgr = new PluginIgnoreMissingTokensFileErrorManager(antlr);
@@ -310,42 +559,33 @@ public class ParsingUtils {
 		return antlr;
 	}
 
-	/** Get lexer and parser grammars */
+	/** Get lexer and parser grammars, compiled by the project's
+	 *  {@link GrammarCompilationCache} from the grammar as saved on disk.
+	 *  Null if grammarFileName has errors; they go to the console.
+	 */
 	public static Grammar[] loadGrammars(String grammarFileName, Project project) {
 		ANTLRv4PluginController.LOG.info("loadGrammars "+grammarFileName+" "+project.getName());
-		Tool antlr = createANTLRToolForLoadingGrammars();
-		LoadGrammarsToolListener listener = (LoadGrammarsToolListener)antlr.getListeners().get(0);
-
-		// basically here I am mimicking the loadGrammar() method from Tool
-		// so that I can check for an empty AST coming back.
 		ConsoleView console = ANTLRv4PluginController.getInstance(project).getConsole();
-		GrammarRootAST grammarRootAST = antlr.parseGrammar(grammarFileName);
-		if ( grammarRootAST==null ) {
+		GrammarCompilationCache.Compilation c =
+			GrammarCompilationCache.getInstance(project).getCompilation(grammarFileName);
+		if ( c==null || c.g==null ) {
 			File f = new File(grammarFileName);
 			String msg = "Empty or bad grammar in file "+f.getName();
 			console.print(msg+"\n", ConsoleViewContentType.ERROR_OUTPUT);
 			return null;
 		}
-		// Create a grammar from the AST so we can figure out what type it is
-		Grammar g = antlr.createGrammar(grammarRootAST);
-		g.fileName = grammarFileName;
+		Grammar g = c.g;
 
-		// see if a lexer is hanging around somewhere; don't want implicit token defs to make us bail
 		LexerGrammar lg = null;
 		if ( g.getType()==ANTLRParser.PARSER ) {
-			lg = loadLexerGrammarFor(g, project);
-			if ( lg!=null ) {
-				g.importVocab(lg);
-			}
-			else {
+			printErrors(c.lexerCompilation, console);
+			lg = c.lg;
+			if ( lg==null ) {
 				lg = BAD_LEXER_GRAMMAR;
 			}
 		}
 
-		antlr.process(g, false);
-		if ( listener.grammarErrorMessages.size()!=0 ) {
-			String msg = Utils.join(listener.grammarErrorMessages.iterator(), "\n");
-			console.print(msg+"\n", ConsoleViewContentType.ERROR_OUTPUT);
+		if ( printErrors(c, console) ) {
 			return null; // upon error, bail
 		}
 
@@ -360,7 +600,7 @@ public class ParsingUtils {
 				lg = (LexerGrammar)g;
 				return new Grammar[] {lg, null};
 			case ANTLRParser.COMBINED :
-				lg = g.getImplicitLexer();
+				lg = c.lg;
 				if ( lg==null ) {
 					lg = BAD_LEXER_GRAMMAR;
 				}
@@ -371,51 +611,57 @@ public class ParsingUtils {
 		return null;
 	}
 
-	/** Try to load a LexerGrammar given a parser grammar g. Derive lexer name
-	 *  as:
+	/** Print c's errors, if any, to console; true if there were some */
+	protected static boolean printErrors(GrammarCompilationCache.Compilation c, ConsoleView console) {
+		if ( c==null ) return false;
+		List<ANTLRMessage> errors = c.getBlockingErrors();
+		if ( errors.isEmpty() ) return false;
+		StringBuilder buf = new StringBuilder();
+		for (ANTLRMessage msg : errors) {
+			buf.append(c.render(msg)).append('\n');
+		}
+		console.print(buf.toString(), ConsoleViewContentType.ERROR_OUTPUT);
+		return true;
+	}
+
+	/** Try to load a LexerGrammar given a parser grammar g; see
+	 *  {@link #getLexerGrammarFileNameFor}. Null if there isn't one or it
+	 *  has errors.
+	 */
+	public static LexerGrammar loadLexerGrammarFor(Grammar g, Project project) {
+		String lexerGrammarFileName = getLexerGrammarFileNameFor(g);
+		if ( !new File(lexerGrammarFileName).exists() ) {
+			return null;
+		}
+		GrammarCompilationCache.Compilation c =
+			GrammarCompilationCache.getInstance(project).getCompilation(lexerGrammarFileName);
+		if ( c==null || c.g==null ) {
+			return null;
+		}
+		if ( !(c.g instanceof LexerGrammar) ) {
+			ANTLRv4PluginController.LOG.error("File "+lexerGrammarFileName+" isn't a lexer grammar");
+			return null;
+		}
+		ConsoleView console = ANTLRv4PluginController.getInstance(project).getConsole();
+		if ( printErrors(c, console) ) {
+			return null;
+		}
+		return (LexerGrammar)c.g;
+	}
+
+	/** Derive the file name of the lexer for parser grammar g as:
 	 *  	V given tokenVocab=V in grammar or
 	 *   	XLexer given XParser.g4 filename or
 	 *     	XLexer given grammar name X
 	 */
-	public static LexerGrammar loadLexerGrammarFor(Grammar g, Project project) {
-		Tool antlr = createANTLRToolForLoadingGrammars();
-		LoadGrammarsToolListener listener = (LoadGrammarsToolListener)antlr.getListeners().get(0);
-		LexerGrammar lg = null;
-		String lexerGrammarFileName;
-
+	public static String getLexerGrammarFileNameFor(Grammar g) {
 		String vocabName = g.getOptionString("tokenVocab");
 		if ( vocabName!=null ) {
 			File f = new File(g.fileName);
 			File lexerF = new File(f.getParentFile(), vocabName + ".g4");
-			lexerGrammarFileName = lexerF.getAbsolutePath();
-		}
-		else {
-			lexerGrammarFileName = getLexerNameFromParserFileName(g.fileName);
-		}
-
-		File lf = new File(lexerGrammarFileName);
-		if ( lf.exists() ) {
-			try {
-				lg = (LexerGrammar)antlr.loadGrammar(lexerGrammarFileName);
-			}
-			catch (ClassCastException cce) {
-				ANTLRv4PluginController.LOG.error("File "+lexerGrammarFileName+" isn't a lexer grammar", cce);
-			}
-			catch (Exception e) {
-				String msg = null;
-				if ( listener.grammarErrorMessages.size()!=0 ) {
-					msg = ": "+listener.grammarErrorMessages.toString();
-				}
-				ANTLRv4PluginController.LOG.error("File "+lexerGrammarFileName+" couldn't be parsed as a lexer grammar"+msg, e);
-			}
-			if ( listener.grammarErrorMessages.size()!=0 ) {
-				lg = null;
-				ConsoleView console = ANTLRv4PluginController.getInstance(project).getConsole();
-				String msg = Utils.join(listener.grammarErrorMessages.iterator(), "\n");
-				console.print(msg+"\n", ConsoleViewContentType.ERROR_OUTPUT);
-			}
+			return lexerF.getAbsolutePath();
 		}
-		return lg;
+		return getLexerNameFromParserFileName(g.fileName);
 	}
 
 	@NotNull
@@ -0,0 +1,222 @@
+package org.antlr.intellij.plugin.parsing;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.LexerInterpreter;
+import org.antlr.v4.runtime.atn.ATN;
+import org.antlr.v4.runtime.atn.ATNDeserializer;
+import org.antlr.v4.runtime.atn.ATNSerializer;
+import org.antlr.v4.runtime.atn.ATNState;
+import org.antlr.v4.runtime.atn.DecisionState;
+import org.antlr.v4.runtime.atn.LexerATNSimulator;
+import org.antlr.v4.runtime.atn.PredictionContextCache;
+import org.antlr.v4.runtime.atn.RuleStartState;
+import org.antlr.v4.runtime.atn.StarLoopEntryState;
+import org.antlr.v4.runtime.dfa.DFA;
+import org.antlr.v4.tool.Grammar;
+import org.antlr.v4.tool.LeftRecursiveRule;
+import org.antlr.v4.tool.LexerGrammar;
+import org.antlr.v4.tool.Rule;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Everything the preview interpreters derive from one version of the
+ *  lexer/parser grammars that doesn't depend on the input: the ATNs,
+ *  which decision states set the outer alternative number and the
+ *  left-recursive alt tables. Computing these for every keystroke
+ *  dominated small parses.
+ *
+ *  It also holds the DFA and prediction context caches so that, as with
+ *  a generated recognizer, each parse starts with the DFA warmed up by
+ *  the previous ones. The simulators synchronize updates to these
+ *  themselves.
+ *
+ *  One of these lives in {@link org.antlr.intellij.plugin.preview.PreviewState}
+ *  and is tossed whenever a reload swaps its grammars, taking the DFA with
+ *  it. It is shared by concurrent background parses so the tables are
+ *  computed once, under the lock, and never modified afterwards.
+ */
+public class PreviewInterpreterCache {
+	public final Grammar g;
+	public final Grammar lg;
+
+	protected ATN parserATN;
+	protected ATN lexerATN;
+
+	/** Decision states where {@link PreviewParser} sets the outer alt number */
+	protected BitSet outerMostDecisionStates;
+
+	/** For decision states in left-recursive rules, map a predicted alt to
+	 *  the original outer alt number ({@link LeftRecursiveRule#getPrimaryAlts()}
+	 *  or {@link LeftRecursiveRule#getRecursiveOpAlts()}).
+	 */
+	protected Map<Integer, int[]> leftRecursiveAlts;
+
+	/** Tokens and lexer states from the last preview lex with this lexer
+	 *  grammar, so the next parse only relexes around the edit.
+	 */
+	public volatile IncrementalTokenSource.Snapshot lexerSnapshot;
+
+	/** Tree and start rule checkpoints from the last preview parse that
+	 *  built a tree, so the next one only reparses from the edit on.
+	 */
+	public volatile ParseSnapshot parseSnapshot;
+
+	protected DFA[] parserDFA;
+	protected PredictionContextCache parserContextCache;
+	protected DFA[] lexerDFA;
+	protected PredictionContextCache lexerContextCache;
+
+	public PreviewInterpreterCache(Grammar g, Grammar lg) {
+		this.g = g;
+		this.lg = lg;
+	}
+
+	/** A private copy of g.atn; must run ATN through serializer to set some state flags */
+	public synchronized ATN getParserATN() {
+		if ( parserATN==null ) {
+			parserATN = new ATNDeserializer().deserialize(ATNSerializer.getSerializedAsChars(g.atn));
+		}
+		return parserATN;
+	}
+
+	public synchronized ATN getLexerATN() {
+		if ( lexerATN==null ) {
+			lexerATN = new ATNDeserializer().deserialize(ATNSerializer.getSerializedAsChars(getLexerGrammar().atn));
+		}
+		return lexerATN;
+	}
+
+	public synchronized BitSet getOuterMostDecisionStates() {
+		if ( outerMostDecisionStates==null ) {
+			outerMostDecisionStates = findOuterMostDecisionStates(getParserATN());
+		}
+		return outerMostDecisionStates;
+	}
+
+	public synchronized Map<Integer, int[]> getLeftRecursiveAlts() {
+		if ( leftRecursiveAlts==null ) {
+			leftRecursiveAlts = computeLeftRecursiveAlts();
+		}
+		return leftRecursiveAlts;
+	}
+
+	public synchronized DFA[] getParserDFA() {
+		if ( parserDFA==null ) {
+			parserDFA = createDFA(getParserATN());
+			parserContextCache = new PredictionContextCache();
+		}
+		return parserDFA;
+	}
+
+	public synchronized PredictionContextCache getParserContextCache() {
+		getParserDFA();
+		return parserContextCache;
+	}
+
+	public synchronized DFA[] getLexerDFA() {
+		if ( lexerDFA==null ) {
+			lexerDFA = createDFA(getLexerATN());
+			lexerContextCache = new PredictionContextCache();
+		}
+		return lexerDFA;
+	}
+
+	public synchronized PredictionContextCache getLexerContextCache() {
+		getLexerDFA();
+		return lexerContextCache;
+	}
+
+	public LexerGrammar getLexerGrammar() {
+		if ( lg.isCombined() ) {
+			return lg.implicitLexer;
+		}
+		return (LexerGrammar)lg;
+	}
+
+	/** Same as {@link Grammar#createLexerInterpreter} but w/o the ATN round
+	 *  trip. Unless coldDFACache is set, the lexer shares our DFA.
+	 */
+	public LexerInterpreter createLexerInterpreter(CharStream input, boolean coldDFACache) {
+		LexerGrammar lexerGrammar = getLexerGrammar();
+		LexerInterpreter lexEngine =
+			new LexerInterpreter(lexerGrammar.fileName,
+								 lexerGrammar.getVocabulary(),
+								 Arrays.asList(lexerGrammar.getRuleNames()),
+								 lexerGrammar.modes.keySet(),
+								 getLexerATN(),
+								 input);
+		if ( !coldDFACache ) {
+			lexEngine.setInterpreter(new LexerATNSimulator(lexEngine, getLexerATN(),
+														   getLexerDFA(), getLexerContextCache()));
+		}
+		return lexEngine;
+	}
+
+	public static DFA[] createDFA(ATN atn) {
+		DFA[] dfa = new DFA[atn.getNumberOfDecisions()];
+		for (int i = 0; i < dfa.length; i++) {
+			dfa[i] = new DFA(atn.getDecisionState(i), i);
+		}
+		return dfa;
+	}
+
+	protected Map<Integer, int[]> computeLeftRecursiveAlts() {
+		ATN atn = getParserATN();
+		BitSet track = getOuterMostDecisionStates();
+		Map<Integer, int[]> alts = new HashMap<Integer, int[]>();
+		for (int s = track.nextSetBit(0); s>=0; s = track.nextSetBit(s+1)) {
+			ATNState p = atn.states.get(s);
+			if ( !atn.ruleToStartState[p.ruleIndex].isLeftRecursiveRule ) {
+				continue;
+			}
+			Rule r = g.getRule(p.ruleIndex);
+			if ( !(r instanceof LeftRecursiveRule) ) {
+				continue;
+			}
+			LeftRecursiveRule lr = (LeftRecursiveRule)r;
+			if ( p.getStateType()==ATNState.BLOCK_START ) {
+				alts.put(s, lr.getPrimaryAlts());
+			}
+			else if ( p.getStateType()==ATNState.STAR_BLOCK_START ) {
+				alts.put(s, lr.getRecursiveOpAlts());
+			}
+		}
+		return Collections.unmodifiableMap(alts);
+	}
+
+	/** identify the ATN states where we need to set the outer alt number.
+	 *  For regular rules, that's the block at the target to rule start state.
+	 *  For left-recursive rules, we track the primary block, which looks just
+	 *  like a regular rule's outer block, and the star loop block (always
+	 *  there even if 1 alt).
+	 */
+	public static BitSet findOuterMostDecisionStates(ATN atn) {
+		BitSet track = new BitSet(atn.states.size());
+		int numberOfDecisions = atn.getNumberOfDecisions();
+		for (int i = 0; i < numberOfDecisions; i++) {
+			DecisionState decisionState = atn.getDecisionState(i);
+			RuleStartState startState = atn.ruleToStartState[decisionState.ruleIndex];
+			// Look for StarLoopEntryState that is in any left recursive rule
+			if ( decisionState instanceof StarLoopEntryState ) {
+				StarLoopEntryState loopEntry = (StarLoopEntryState)decisionState;
+				if ( loopEntry.isPrecedenceDecision ) {
+					// Recursive alts always result in a (...)* in the transformed
+					// left recursive rule and that always has a BasicBlockStartState
+					// even if just 1 recursive alt exists.
+					ATNState blockStart = loopEntry.transition(0).target;
+					// track the StarBlockStartState associated with the recursive alternatives
+					track.set(blockStart.stateNumber);
+				}
+			}
+			else if ( startState.transition(0).target == decisionState ) {
+				// always track outermost block for any rule if it exists
+				track.set(decisionState.stateNumber);
+			}
+		}
+		return track;
+	}
+}
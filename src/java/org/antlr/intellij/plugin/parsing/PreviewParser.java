@@ -1,24 +1,32 @@
 package org.antlr.intellij.plugin.parsing;
 
+import com.intellij.openapi.progress.ProgressManager;
+import org.antlr.intellij.adaptor.parser.SyntaxError;
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.BufferedTokenStream;
+import org.antlr.v4.runtime.CommonToken;
 import org.antlr.v4.runtime.InterpreterRuleContext;
+import org.antlr.v4.runtime.Parser;
 import org.antlr.v4.runtime.ParserInterpreter;
 import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.RecognitionException;
 import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.TokenStream;
-import org.antlr.v4.runtime.atn.ATNDeserializer;
-import org.antlr.v4.runtime.atn.ATNSerializer;
 import org.antlr.v4.runtime.atn.ATNState;
 import org.antlr.v4.runtime.atn.DecisionState;
-import org.antlr.v4.runtime.atn.RuleStartState;
-import org.antlr.v4.runtime.atn.StarLoopEntryState;
+import org.antlr.v4.runtime.atn.ParserATNSimulator;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
 import org.antlr.v4.tool.Grammar;
 import org.antlr.v4.tool.LeftRecursiveRule;
-import org.antlr.v4.tool.Rule;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class PreviewParser extends ParserInterpreter {
@@ -34,28 +42,345 @@ public class PreviewParser extends ParserInterpreter {
 	 */
 	public Map<Token, Integer> inputTokenToStateMap = new HashMap<Token, Integer>();
 
+	/** ATN, outer-most decision states and left-recursive alt tables
+	 *  shared by all parsers for this version of the grammar.
+	 */
+	protected final PreviewInterpreterCache cache;
+
 	protected final BitSet decisionStatesThatSetOuterAltNumInContext;
 
 	/** Cache {@link LeftRecursiveRule#getPrimaryAlts()} and
 	 *  {@link LeftRecursiveRule#getRecursiveOpAlts()} for states in
 	 *  {@link #decisionStatesThatSetOuterAltNumInContext}.
 	 */
-	protected final Map<DecisionState, int[]> stateToAltsMap = new HashMap<>();
+	protected final Map<Integer, int[]> stateToAltsMap;
+
+	/** Where a later parse of edited input could pick up in the start rule;
+	 *  only recorded when parsing from a {@link ParseSnapshot.LookaheadTrackingTokenStream}.
+	 */
+	protected List<ParseSnapshot.Checkpoint> checkpoints = new ArrayList<ParseSnapshot.Checkpoint>();
+
+	/** Parser errors in the children reused from {@link #reuseFrom} */
+	protected int reusedParserErrors = 0;
+
+	/** Set by {@link #reuse}: the previous parse, where to resume in it
+	 *  and how its tokens after the edit moved.
+	 */
+	protected ParseSnapshot reuseFrom;
+	protected int resumeAt = -1;
+	protected IncrementalTokenSource.Shift shift;
 
 	public PreviewParser(Grammar g, TokenStream input) {
-		super(g.fileName, g.getVocabulary(),
-			  Arrays.asList(g.getRuleNames()),
-			  // must run ATN through serializer to set some state flags:
-			  new ATNDeserializer().deserialize(ATNSerializer.getSerializedAsChars(g.atn)),
+		this(new PreviewInterpreterCache(g, null), input);
+	}
+
+	public PreviewParser(PreviewInterpreterCache cache, TokenStream input) {
+		this(cache, input, false);
+	}
+
+	/** Unless coldDFACache is set, prediction starts from the DFA built up
+	 *  by earlier parses with this version of the grammar.
+	 */
+	public PreviewParser(PreviewInterpreterCache cache, TokenStream input, boolean coldDFACache) {
+		super(cache.g.fileName, cache.g.getVocabulary(),
+			  Arrays.asList(cache.g.getRuleNames()),
+			  cache.getParserATN(),
 			  input);
-		this.g = g;
-		decisionStatesThatSetOuterAltNumInContext = findOuterMostDecisionStates();
+		this.g = cache.g;
+		this.cache = cache;
+		decisionStatesThatSetOuterAltNumInContext = cache.getOuterMostDecisionStates();
+		stateToAltsMap = cache.getLeftRecursiveAlts();
+		if ( !coldDFACache ) {
+			setInterpreter(new ParserATNSimulator(this, atn, cache.getParserDFA(), cache.getParserContextCache()));
+		}
 	}
 
 	@Override
 	public ParserInterpreter copyFrom(ParserInterpreter old) {
 		PreviewParser uber = (PreviewParser)old;
-		return new PreviewParser(uber.g, old.getTokenStream());
+		return new PreviewParser(uber.cache, old.getTokenStream());
+	}
+
+	/** Used when the SLL stage of a two-stage parse bails out; anything
+	 *  recorded during the failed attempt is stale.
+	 */
+	@Override
+	public void reset() {
+		super.reset();
+		if ( _parentContextStack==null ) {
+			return; // called from the Parser constructor, before the interpreter's fields are set
+		}
+		_parentContextStack.clear();
+		inputTokenToStateMap.clear();
+		if ( _input instanceof ParseSnapshot.LookaheadTrackingTokenStream ) {
+			((ParseSnapshot.LookaheadTrackingTokenStream)_input).maxLookIndex = -1;
+		}
+	}
+
+	/** Make the next parse reuse the start rule children of a previous
+	 *  parse: those up to its checkpoint at index resumeAt, if not -1, and
+	 *  those after the edit, if shift says where the old tokens there went.
+	 *  The caller has checked that the tokens before the checkpoint are
+	 *  unchanged and replays their errors; the input must be filled.
+	 */
+	public void reuse(ParseSnapshot snapshot, int resumeAt, IncrementalTokenSource.Shift shift) {
+		reuseFrom = snapshot;
+		this.resumeAt = resumeAt;
+		this.shift = shift;
+	}
+
+	@Override
+	public ParserRuleContext parse(int startRuleIndex) {
+		checkpoints.clear();
+		reusedParserErrors = 0;
+		if ( resumeAt>=0 && reuseFrom!=null && reuseFrom.startRuleIndex==startRuleIndex ) {
+			return resume(startRuleIndex);
+		}
+		return super.parse(startRuleIndex);
+	}
+
+	/** Same loop as {@link ParserInterpreter#parse} (start rule can't be
+	 *  left-recursive) but starting in the middle of the start rule with
+	 *  copies of the children before resumeAt already in place.
+	 */
+	protected ParserRuleContext resume(int startRuleIndex) {
+		ParseSnapshot.Checkpoint cp = reuseFrom.checkpoints.get(resumeAt);
+		ParserRuleContext oldRoot = reuseFrom.tree;
+		checkpoints.addAll(reuseFrom.checkpoints.subList(0, resumeAt+1));
+		reusedParserErrors = cp.parserErrorCount;
+
+		InterpreterRuleContext rootContext =
+			createInterpreterRuleContext(null, ATNState.INVALID_STATE_NUMBER, startRuleIndex);
+		((PreviewInterpreterRuleContext)rootContext).outerAltNum =
+			((PreviewInterpreterRuleContext)oldRoot).outerAltNum;
+		_input.seek(cp.tokenIndex);
+		if ( _input instanceof ParseSnapshot.LookaheadTrackingTokenStream ) {
+			((ParseSnapshot.LookaheadTrackingTokenStream)_input).maxLookIndex = cp.maxLookTokenIndex;
+		}
+		enterRule(rootContext, cp.atnState, startRuleIndex);
+		rootContext.start = oldRoot.start;
+		rootContext.exception = cp.exception;
+		for (int i = 0; i < cp.childCount; i++) {
+			copyTree(oldRoot.getChild(i), rootContext, false, null);
+		}
+
+		while ( true ) {
+			ATNState p = getATNState();
+			switch ( p.getStateType() ) {
+				case ATNState.RULE_STOP :
+					if ( _ctx.isEmpty() ) {
+						exitRule();
+						return rootContext;
+					}
+					visitRuleStopState(p);
+					break;
+				default :
+					try {
+						visitState(p);
+					}
+					catch (RecognitionException e) {
+						setState(atn.ruleToStopState[p.ruleIndex].stateNumber);
+						getContext().exception = e;
+						getErrorHandler().reportError(this, e);
+						getErrorHandler().recover(this, e);
+					}
+					break;
+			}
+		}
+	}
+
+	/** Add a copy of t, a node of the previous tree, to parent. The old
+	 *  tree is still on screen so we mustn't touch it, not even to change
+	 *  a parent. Leading children keep their tokens; trailing ones get the
+	 *  tokens they moved to (see {@link #mapTrailingToken}). Bring along the
+	 *  ATN states for matched tokens; can't go by token index as tokens
+	 *  conjured up by error recovery don't have one. No recursion; trees
+	 *  can be very deep.
+	 */
+	protected void copyTree(ParseTree t, ParserRuleContext parent, boolean trailing, Token previous) {
+		ArrayDeque<ParseTree> work = new ArrayDeque<ParseTree>();
+		ArrayDeque<ParserRuleContext> parents = new ArrayDeque<ParserRuleContext>();
+		work.push(t);
+		parents.push(parent);
+		while ( !work.isEmpty() ) {
+			ParseTree node = work.pop();
+			ParserRuleContext newParent = parents.pop();
+			if ( node instanceof TerminalNode ) {
+				Token token = ((TerminalNode)node).getSymbol();
+				Token newToken = trailing ? mapTrailingToken(token, previous) : token;
+				if ( node instanceof ErrorNode ) {
+					newParent.addErrorNode(newToken);
+				}
+				else {
+					newParent.addChild(newToken);
+				}
+				Integer state = reuseFrom.inputTokenToStateMap.get(token);
+				if ( state!=null ) {
+					inputTokenToStateMap.put(newToken, state);
+				}
+				continue;
+			}
+			ProgressManager.checkCanceled();
+			ParserRuleContext ctx = (ParserRuleContext)node;
+			PreviewInterpreterRuleContext copy =
+				(PreviewInterpreterRuleContext)createInterpreterRuleContext(newParent, ctx.invokingState, ctx.getRuleIndex());
+			copy.outerAltNum = ((PreviewInterpreterRuleContext)ctx).outerAltNum;
+			copy.start = trailing ? mapTrailingToken(ctx.start, previous) : ctx.start;
+			copy.stop = trailing ? mapTrailingToken(ctx.stop, previous) : ctx.stop;
+			copy.exception = ctx.exception;
+			newParent.addChild(copy);
+			for (int i = ctx.getChildCount()-1; i>=0; i--) {
+				work.push(ctx.getChild(i));
+				parents.push(copy);
+			}
+		}
+	}
+
+	/** The token old token t, from after the edit, moved to. The only ones
+	 *  before the splice point are stop tokens of empty rule contexts, i.e.
+	 *  previous, the last token before it. Tokens conjured up by error
+	 *  recovery aren't in the input; copy them, moved along with the rest.
+	 */
+	protected Token mapTrailingToken(Token t, Token previous) {
+		if ( t==null ) {
+			return null;
+		}
+		int i = t.getTokenIndex();
+		if ( i>=shift.oldTokenStart ) {
+			return ((BufferedTokenStream)_input).get(i + shift.tokenDelta);
+		}
+		if ( i>=0 ) {
+			return previous;
+		}
+		CommonToken conjured = new CommonToken(t);
+		if ( shift.isShifted(t.getLine(), t.getCharPositionInLine()) ) {
+			conjured.setLine(shift.getLine(t.getLine()));
+			conjured.setCharPositionInLine(shift.getCharPositionInLine(t.getLine(), t.getCharPositionInLine()));
+		}
+		return conjured;
+	}
+
+	/** We're back in the start rule past the edit, at the token where old
+	 *  token reuseFrom.checkpoints[c].tokenIndex went and in the same ATN
+	 *  state. From here the old parse saw the same tokens as we would, so
+	 *  take copies of its remaining children and errors and finish the
+	 *  start rule where it did.
+	 */
+	protected void reuseTrailingChildren(ParserRuleContext root, int c) {
+		ParseSnapshot.Checkpoint oldCp = reuseFrom.checkpoints.get(c);
+		ParserRuleContext oldRoot = reuseFrom.tree;
+		Token previous = _input.LT(-1);
+		int n = root.getChildCount();
+		for (int i = oldCp.childCount; i < oldRoot.getChildCount(); i++) {
+			copyTree(oldRoot.getChild(i), root, true, previous);
+		}
+
+		// the parser's own errors; lexer errors are replayed with the tokens
+		int errors = reusedParserErrors + getNumberOfSyntaxErrors();
+		List<SyntaxError> oldErrors = reuseFrom.parserErrors;
+		for (SyntaxError se : oldErrors.subList(oldCp.parserErrorCount, oldErrors.size())) {
+			Token offendingToken = mapTrailingToken((Token)se.getOffendingSymbol(), previous);
+			notifyErrorListeners(offendingToken, se.getMessage(), se.getException());
+		}
+
+		// errors caught in the start rule after the checkpoint replace ours
+		RecognitionException exception = root.exception;
+		int maxLook = ((ParseSnapshot.LookaheadTrackingTokenStream)_input).maxLookIndex;
+		for (ParseSnapshot.Checkpoint cp : reuseFrom.checkpoints.subList(c+1, reuseFrom.checkpoints.size())) {
+			checkpoints.add(new ParseSnapshot.Checkpoint(n + cp.childCount - oldCp.childCount,
+														 cp.atnState,
+														 cp.tokenIndex + shift.tokenDelta,
+														 Math.max(maxLook, cp.maxLookTokenIndex + shift.tokenDelta),
+														 errors + cp.parserErrorCount - oldCp.parserErrorCount,
+														 cp.exception==oldCp.exception ? exception : cp.exception));
+		}
+		if ( oldRoot.exception!=oldCp.exception ) {
+			root.exception = oldRoot.exception;
+		}
+
+		int next = _input.index();
+		if ( oldRoot.stop!=null && oldRoot.stop.getTokenIndex()>=shift.oldTokenStart ) {
+			next = Math.max(next, oldRoot.stop.getTokenIndex() + 1 + shift.tokenDelta);
+		}
+		_input.seek(next);
+		setState(atn.ruleToStopState[root.getRuleIndex()].stateNumber);
+		reuseFrom = null; // done; nothing more to reuse this parse
+	}
+
+	/** What the next parse needs to reuse parts of this one. It shares our
+	 *  token to ATN state map; we're done with it.
+	 */
+	public ParseSnapshot createSnapshot(ParserRuleContext tree,
+										IncrementalTokenSource.Snapshot lexerSnapshot,
+										List<SyntaxError> errors)
+	{
+		if ( lexerSnapshot==null || checkpoints.isEmpty() ) {
+			return null;
+		}
+		List<SyntaxError> parserErrors = new ArrayList<SyntaxError>();
+		for (SyntaxError se : errors) {
+			if ( se.getRecognizer() instanceof Parser ) {
+				parserErrors.add(se);
+			}
+		}
+		return new ParseSnapshot(tree.getRuleIndex(), tree, lexerSnapshot,
+								 new ArrayList<ParseSnapshot.Checkpoint>(checkpoints),
+								 inputTokenToStateMap,
+								 parserErrors);
+	}
+
+	/** Record a checkpoint whenever we're back in the start rule with
+	 *  another child done and not recovering from an error. Past the edit,
+	 *  see if we can pick up the old parse from here.
+	 */
+	protected void checkpoint() {
+		if ( !(_input instanceof ParseSnapshot.LookaheadTrackingTokenStream) ) {
+			return;
+		}
+		ParserRuleContext root = _ctx;
+		if ( root.parent!=null || atn.ruleToStartState[root.getRuleIndex()].isLeftRecursiveRule ) {
+			return;
+		}
+		int n = root.getChildCount();
+		if ( n==0 || getErrorHandler().inErrorRecoveryMode(this) ) {
+			return;
+		}
+		if ( !checkpoints.isEmpty() && checkpoints.get(checkpoints.size()-1).childCount>=n ) {
+			return;
+		}
+		int maxLook = ((ParseSnapshot.LookaheadTrackingTokenStream)_input).maxLookIndex;
+		int index = _input.index();
+		checkpoints.add(new ParseSnapshot.Checkpoint(n, getState(), index, maxLook,
+													 reusedParserErrors + getNumberOfSyntaxErrors(),
+													 root.exception));
+
+		if ( reuseFrom!=null && shift!=null && reuseFrom.startRuleIndex==root.getRuleIndex() &&
+			 index>=shift.oldTokenStart + shift.tokenDelta )
+		{
+			int c = reuseFrom.findCheckpoint(index - shift.tokenDelta, getState());
+			// the SLL stage bails out at errors, and so would the old parse from here
+			if ( c>=0 && (!(getErrorHandler() instanceof BailErrorStrategy) ||
+						  reuseFrom.checkpoints.get(c).parserErrorCount==reuseFrom.parserErrors.size()) )
+			{
+				reuseTrailingChildren(root, c);
+			}
+		}
+	}
+
+	@Override
+	protected void visitRuleStopState(ATNState p) {
+		super.visitRuleStopState(p);
+		checkpoint();
+	}
+
+	/** Preview parses run in the background; give them a chance to bail out
+	 *  when a newer edit supersedes this parse.
+	 */
+	@Override
+	protected void visitState(ATNState p) {
+		ProgressManager.checkCanceled();
+		super.visitState(p);
+		checkpoint();
 	}
 
 	@Override
@@ -96,22 +421,8 @@ public class PreviewParser extends ParserInterpreter {
 		PreviewInterpreterRuleContext ctx = (PreviewInterpreterRuleContext)_ctx;
 		if ( decisionStatesThatSetOuterAltNumInContext.get(p.stateNumber) ) {
 			ctx.outerAltNum = predictedAlt;
-			Rule r = g.getRule(p.ruleIndex);
-			if ( atn.ruleToStartState[r.index].isLeftRecursiveRule ) {
-				int[] alts = stateToAltsMap.get(p);
-				LeftRecursiveRule lr = (LeftRecursiveRule) g.getRule(p.ruleIndex);
-				if (p.getStateType() == ATNState.BLOCK_START) {
-					if ( alts==null ) {
-						alts = lr.getPrimaryAlts();
-						stateToAltsMap.put(p, alts); // cache it
-					}
-				}
-				else if (p.getStateType() == ATNState.STAR_BLOCK_START) {
-					if ( alts==null ) {
-						alts = lr.getRecursiveOpAlts();
-						stateToAltsMap.put(p, alts); // cache it
-					}
-				}
+			int[] alts = stateToAltsMap.get(p.stateNumber);
+			if ( alts!=null ) { // left-recursive rule
 				ctx.outerAltNum = alts[predictedAlt];
 			}
 		}
@@ -119,38 +430,6 @@ public class PreviewParser extends ParserInterpreter {
 		return predictedAlt;
 	}
 
-	/** identify the ATN states where we need to set the outer alt number.
-	 *  For regular rules, that's the block at the target to rule start state.
-	 *  For left-recursive rules, we track the primary block, which looks just
-	 *  like a regular rule's outer block, and the star loop block (always
-	 *  there even if 1 alt).
-	 */
-	public BitSet findOuterMostDecisionStates() {
-		BitSet track = new BitSet(atn.states.size());
-		int numberOfDecisions = atn.getNumberOfDecisions();
-		for (int i = 0; i < numberOfDecisions; i++) {
-			DecisionState decisionState = atn.getDecisionState(i);
-			RuleStartState startState = atn.ruleToStartState[decisionState.ruleIndex];
-			// Look for StarLoopEntryState that is in any left recursive rule
-			if ( decisionState instanceof StarLoopEntryState ) {
-				StarLoopEntryState loopEntry = (StarLoopEntryState)decisionState;
-				if ( loopEntry.isPrecedenceDecision ) {
-					// Recursive alts always result in a (...)* in the transformed
-					// left recursive rule and that always has a BasicBlockStartState
-					// even if just 1 recursive alt exists.
-					ATNState blockStart = loopEntry.transition(0).target;
-					// track the StarBlockStartState associated with the recursive alternatives
-					track.set(blockStart.stateNumber);
-				}
-			}
-			else if ( startState.transition(0).target == decisionState ) {
-				// always track outermost block for any rule if it exists
-				track.set(decisionState.stateNumber);
-			}
-		}
-		return track;
-	}
-
 	@Override
 	public Token match(int ttype) throws RecognitionException {
 		Token t = super.match(ttype);
@@ -0,0 +1,291 @@
+package org.antlr.intellij.plugin.parsing;
+
+import com.intellij.execution.ui.ConsoleView;
+import com.intellij.execution.ui.ConsoleViewContentType;
+import com.intellij.notification.Notification;
+import com.intellij.notification.NotificationType;
+import com.intellij.notification.Notifications;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ContentIterator;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.antlr.intellij.plugin.ANTLRv4PluginController;
+import org.antlr.v4.Tool;
+import org.antlr.v4.parse.ANTLRParser;
+import org.antlr.v4.tool.ast.GrammarAST;
+import org.antlr.v4.tool.ast.GrammarRootAST;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/** Generate code for every grammar in the project in the background.
+ *
+ *  A lexer has to be generated before the grammars that feed off its
+ *  .tokens file, so grammars are ordered by their tokenVocab (or XLexer.g4
+ *  naming convention) dependencies. Grammars whose lexers are done, and
+ *  all grammars without a lexer of their own, run in parallel on a pool of
+ *  at most {@link #MAX_THREADS} threads. Each grammar's tool output goes to
+ *  the console as one block when that grammar is done.
+ *
+ *  Grammars imported by other grammars are compiled as part of those and
+ *  not generated on their own. If a lexer fails, the grammars that use its
+ *  tokens are skipped; a grammar that fails or throws doesn't stop the rest.
+ */
+public class ProjectCodeGenerator extends Task.Backgroundable {
+	public static final Logger LOG = Logger.getInstance("ANTLR ProjectCodeGenerator");
+
+	public static final int MAX_THREADS = 4;
+
+	protected static class GrammarNode {
+		public final VirtualFile file;
+		/** Lexer that must be generated first, if in the project */
+		public GrammarNode lexer;
+		public final List<GrammarNode> dependents = new ArrayList<GrammarNode>();
+		public int pendingDependencies;
+		/** Holds the tool's output once generated */
+		public RunANTLRListener listener;
+		/** Not generated because its lexer failed */
+		public boolean skipped;
+
+		public GrammarNode(VirtualFile file) {
+			this.file = file;
+		}
+	}
+
+	public final Project project;
+	protected final List<VirtualFile> grammarFiles;
+
+	protected final Set<File> outputDirs = new HashSet<File>();
+	protected int numGenerated;
+	protected int numFailed;
+	protected int numSkipped;
+
+	public ProjectCodeGenerator(Project project, List<VirtualFile> grammarFiles) {
+		super(project, "Generating ANTLR Recognizers", true);
+		this.project = project;
+		this.grammarFiles = grammarFiles;
+	}
+
+	/** All .g4 files in the project's content roots, outside excluded dirs */
+	public static List<VirtualFile> findGrammarFiles(Project project) {
+		final List<VirtualFile> files = new ArrayList<VirtualFile>();
+		ProjectRootManager.getInstance(project).getFileIndex().iterateContent(
+			new ContentIterator() {
+				@Override
+				public boolean processFile(VirtualFile f) {
+					if ( !f.isDirectory() && "g4".equals(f.getExtension()) ) {
+						files.add(f);
+					}
+					return true;
+				}
+			}
+		);
+		return files;
+	}
+
+	@Override
+	public void run(@NotNull ProgressIndicator indicator) {
+		indicator.setIndeterminate(false);
+		indicator.setText("Ordering "+grammarFiles.size()+" grammars by token vocabulary");
+		List<GrammarNode> nodes = buildGraph(indicator);
+
+		ConsoleView console = ANTLRv4PluginController.getInstance(project).getConsole();
+		int numThreads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		CompletionService<GrammarNode> done = new ExecutorCompletionService<GrammarNode>(pool);
+		Map<Future<GrammarNode>, GrammarNode> running = new HashMap<Future<GrammarNode>, GrammarNode>();
+		try {
+			for (GrammarNode node : nodes) {
+				if ( node.pendingDependencies==0 ) {
+					running.put(submit(node, done), node);
+				}
+			}
+			int finished = 0;
+			while ( !running.isEmpty() ) {
+				Future<GrammarNode> f = done.poll(100, TimeUnit.MILLISECONDS);
+				indicator.checkCanceled();
+				if ( f==null ) continue;
+				GrammarNode node = running.remove(f);
+				boolean ok;
+				try {
+					f.get();
+					node.listener.printTo(console);
+					ok = node.listener.numErrors==0;
+				}
+				catch (ExecutionException ee) {
+					// one grammar blowing up shouldn't stop the rest
+					LOG.warn("can't generate recognizer for "+node.file.getPath(), ee.getCause());
+					console.print("antlr4: can't generate "+node.file.getPath()+": "+ee.getCause()+"\n",
+								  ConsoleViewContentType.ERROR_OUTPUT);
+					ok = false;
+				}
+				finished++;
+				indicator.setFraction(finished / (double)nodes.size());
+				indicator.setText2(node.file.getName());
+				if ( ok ) {
+					numGenerated++;
+					for (GrammarNode dependent : node.dependents) {
+						if ( --dependent.pendingDependencies==0 ) {
+							running.put(submit(dependent, done), dependent);
+						}
+					}
+				}
+				else {
+					numFailed++;
+					skipDependents(node, console);
+				}
+			}
+			for (GrammarNode node : nodes) {
+				if ( node.pendingDependencies>0 && !node.skipped ) {
+					console.print("antlr4: skipped "+node.file.getPath()+"; its tokenVocab lexer depends on it\n",
+								  ConsoleViewContentType.ERROR_OUTPUT);
+					numSkipped++;
+				}
+			}
+		}
+		catch (InterruptedException ie) {
+			throw new ProcessCanceledException();
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		if ( numFailed>0 || numSkipped>0 ) {
+			ANTLRv4PluginController.showConsoleWindow(project);
+		}
+	}
+
+	/** Don't generate grammars that would read a failed lexer's .tokens
+	 *  file, nor the grammars that depend on those.
+	 */
+	protected void skipDependents(GrammarNode failed, ConsoleView console) {
+		ArrayDeque<GrammarNode> work = new ArrayDeque<GrammarNode>();
+		work.push(failed);
+		while ( !work.isEmpty() ) {
+			GrammarNode lexer = work.pop();
+			for (GrammarNode dependent : lexer.dependents) {
+				if ( dependent.skipped ) continue;
+				dependent.skipped = true;
+				numSkipped++;
+				console.print("antlr4: skipped "+dependent.file.getPath()+"; its lexer "+lexer.file.getName()+" failed\n",
+							  ConsoleViewContentType.ERROR_OUTPUT);
+				work.push(dependent);
+			}
+		}
+	}
+
+	protected Future<GrammarNode> submit(final GrammarNode node, CompletionService<GrammarNode> done) {
+		outputDirs.add(new File(getOutputDirName(node.file)));
+		return done.submit(
+			new Callable<GrammarNode>() {
+				@Override
+				public GrammarNode call() {
+					// no console so grammars running at once don't interleave their messages
+					node.listener = RunANTLROnGrammarFile.antlr(project, node.file, false, null);
+					return node;
+				}
+			}
+		);
+	}
+
+	/** One node per grammar, linked to the project lexer it gets tokens from */
+	protected List<GrammarNode> buildGraph(ProgressIndicator indicator) {
+		Map<String, GrammarNode> byPath = new LinkedHashMap<String, GrammarNode>();
+		for (VirtualFile f : grammarFiles) {
+			byPath.put(new File(f.getPath()).getAbsolutePath(), new GrammarNode(f));
+		}
+		Set<String> imported = new HashSet<String>();
+		Tool tool = new Tool();
+		tool.removeListeners();
+		tool.addListener(new LoadGrammarsToolListener(tool)); // syntax errors show up when we generate
+		for (GrammarNode node : byPath.values()) {
+			indicator.checkCanceled();
+			String path = new File(node.file.getPath()).getAbsolutePath();
+			GrammarRootAST root = tool.parseGrammar(path);
+			if ( root==null ) continue;
+			File dir = new File(path).getParentFile();
+
+			GrammarAST imports = (GrammarAST)root.getFirstChildWithType(ANTLRParser.IMPORT);
+			if ( imports!=null ) {
+				for (int i = 0; i < imports.getChildCount(); i++) {
+					GrammarAST imp = (GrammarAST)imports.getChild(i);
+					// import X or import Y=X
+					String name = imp.getType()==ANTLRParser.ASSIGN ? imp.getChild(1).getText() : imp.getText();
+					imported.add(new File(dir, name+".g4").getAbsolutePath());
+				}
+			}
+
+			String lexerPath = null;
+			GrammarAST vocab = Tool.findOptionValueAST(root, "tokenVocab");
+			if ( vocab!=null ) {
+				lexerPath = new File(dir, vocab.getText()+".g4").getAbsolutePath();
+			}
+			else if ( root.grammarType==ANTLRParser.PARSER ) {
+				lexerPath = ParsingUtils.getLexerNameFromParserFileName(path);
+			}
+			GrammarNode lexer = lexerPath!=null ? byPath.get(lexerPath) : null;
+			if ( lexer!=null && lexer!=node ) {
+				node.lexer = lexer;
+			}
+		}
+
+		List<GrammarNode> nodes = new ArrayList<GrammarNode>();
+		for (Map.Entry<String, GrammarNode> entry : byPath.entrySet()) {
+			if ( !imported.contains(entry.getKey()) ) {
+				nodes.add(entry.getValue());
+			}
+		}
+		for (GrammarNode node : nodes) {
+			if ( node.lexer!=null && !imported.contains(new File(node.lexer.file.getPath()).getAbsolutePath()) ) {
+				node.lexer.dependents.add(node);
+				node.pendingDependencies++;
+			}
+		}
+		return nodes;
+	}
+
+	protected String getOutputDirName(VirtualFile grammarFile) {
+		Map<String, String> args = RunANTLROnGrammarFile.getANTLRArgs(project, grammarFile);
+		return args.get("-o");
+	}
+
+	@Override
+	public void onSuccess() {
+		// refresh from disk to see new files
+		LocalFileSystem.getInstance().refreshIoFiles(outputDirs, true, true, null);
+		NotificationType type = numFailed>0 || numSkipped>0 ? NotificationType.WARNING : NotificationType.INFORMATION;
+		String msg = numGenerated+" grammars generated";
+		if ( numFailed>0 ) {
+			msg += ", "+numFailed+" with errors";
+		}
+		if ( numSkipped>0 ) {
+			msg += ", "+numSkipped+" skipped";
+		}
+		if ( numFailed>0 || numSkipped>0 ) {
+			msg += "; see the console";
+		}
+		Notification notification =
+			new Notification(RunANTLROnGrammarFile.groupDisplayId, "ANTLR code generation done", msg, type);
+		Notifications.Bus.notify(notification, project);
+	}
+}
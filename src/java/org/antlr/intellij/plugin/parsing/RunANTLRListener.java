@@ -3,6 +3,7 @@ package org.antlr.intellij.plugin.parsing;
 import com.intellij.execution.ui.ConsoleView;
 import com.intellij.execution.ui.ConsoleViewContentType;
 import org.antlr.v4.Tool;
+import org.antlr.v4.runtime.misc.Pair;
 import org.antlr.v4.tool.ANTLRMessage;
 import org.antlr.v4.tool.ANTLRToolListener;
 import org.stringtemplate.v4.ST;
@@ -12,29 +13,59 @@ import java.util.List;
 
 /** Used to track errors during antlr run on a grammar for generation,
  *  not for annotation of grammar.
+ *
+ *  With no console, output is kept until {@link #printTo} so that runs
+ *  on several grammars at once don't interleave their messages.
  */
 public class RunANTLRListener implements ANTLRToolListener {
 	public final List<String> all = new ArrayList<String>();
 	public Tool tool;
 	public ConsoleView console;
 	public boolean hasOutput = false;
+	public int numErrors = 0;
+
+	/** Output not printed yet, when there's no console */
+	protected final List<Pair<String, ConsoleViewContentType>> buffered =
+		new ArrayList<Pair<String, ConsoleViewContentType>>();
 
 	public RunANTLRListener(Tool tool, ConsoleView console) {
 		this.tool = tool;
 		this.console = console;
 	}
 
+	public void print(String text, ConsoleViewContentType type) {
+		if ( console!=null ) {
+			console.print(text, type);
+		}
+		else {
+			synchronized (buffered) {
+				buffered.add(new Pair<String, ConsoleViewContentType>(text, type));
+			}
+		}
+	}
+
+	/** Print any buffered output to console in one go */
+	public void printTo(ConsoleView console) {
+		synchronized (buffered) {
+			for (Pair<String, ConsoleViewContentType> p : buffered) {
+				console.print(p.a, p.b);
+			}
+			buffered.clear();
+		}
+	}
+
 	@Override
 	public void info(String msg) {
 		if (tool.errMgr.formatWantsSingleLineMessage()) {
 			msg = msg.replace('\n', ' ');
 		}
-		console.print(msg+"\n", ConsoleViewContentType.NORMAL_OUTPUT);
+		print(msg+"\n", ConsoleViewContentType.NORMAL_OUTPUT);
 		hasOutput = true;
 	}
 
 	@Override
 	public void error(ANTLRMessage msg) {
+		numErrors++;
 		track(msg, ConsoleViewContentType.ERROR_OUTPUT);
 	}
 
@@ -49,7 +80,7 @@ public class RunANTLRListener implements ANTLRToolListener {
 		if (tool.errMgr.formatWantsSingleLineMessage()) {
 			outputMsg = outputMsg.replace('\n', ' ');
 		}
-		console.print(outputMsg+"\n", errType);
+		print(outputMsg+"\n", errType);
 		hasOutput = true;
 	}
 }
@@ -11,11 +11,10 @@ import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
 import org.antlr.intellij.plugin.ANTLRv4PluginController;
 import org.antlr.intellij.plugin.configdialogs.ConfigANTLRPerGrammar;
-import org.antlr.intellij.plugin.preview.PreviewState;
-import org.antlr.v4.Tool;
 import org.antlr.v4.codegen.CodeGenerator;
 import org.antlr.v4.runtime.misc.Utils;
 import org.antlr.v4.tool.Grammar;
@@ -30,11 +29,16 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+/** Generate code for one grammar in the background; see
+ *  {@link ProjectCodeGenerator} for the whole project.
+ */
 // learned how to do from Grammar-Kit by Gregory Shrago
-public class RunANTLROnGrammarFile extends Task.Modal {
+public class RunANTLROnGrammarFile extends Task.Backgroundable {
 	public static final Logger LOG = Logger.getInstance("RunANTLROnGrammarFile");
 	public static final String OUTPUT_DIR_NAME = "gen" ;
 	public static final String MISSING = "";
@@ -43,6 +47,10 @@ public class RunANTLROnGrammarFile extends Task.Modal {
 	public VirtualFile grammarFile;
 	public Project project;
 	public boolean forceGeneration;
+	/** Set if run() ran the tool */
+	public boolean generated;
+	/** Set if run() only rewrote a lexer's .tokens file */
+	public boolean wroteVocab;
 
 	public RunANTLROnGrammarFile(VirtualFile grammarFile,
 								 @Nullable final Project project,
@@ -64,59 +72,97 @@ public class RunANTLROnGrammarFile extends Task.Modal {
 //		System.out.println("autogen is "+autogen+", force="+forceGeneration);
 		if ( forceGeneration || (autogen && isGrammarStale()) ) {
 			antlr(grammarFile);
+			generated = true;
 		}
 		else {
-			ANTLRv4PluginController controller = ANTLRv4PluginController.getInstance(project);
-			final PreviewState previewState = controller.getPreviewState(grammarFile);
 			// is lexer file? gen .tokens file no matter what as tokens might have changed;
 			// a parser that feeds off of that file will need to see the changes.
-			if ( previewState.g==null && previewState.lg!=null) {
-				Grammar g = previewState.lg;
+			GrammarCompilationCache.Compilation c =
+				GrammarCompilationCache.getInstance(project).getCompilation(grammarFile.getPath());
+			if ( c!=null && c.g!=null && c.g==c.lg && c.getBlockingErrors().isEmpty() ) {
+				Grammar g = c.lg;
 				String language = g.getOptionString(ConfigANTLRPerGrammar.PROP_LANGUAGE);
-				Tool tool = ParsingUtils.createANTLRToolForLoadingGrammars();
+				// same -o, -package and -encoding as a full run so the file lands next to the recognizer
+				List<String> args = getANTLRArgsAsList(project, grammarFile);
+				WriteIfChangedTool tool = new WriteIfChangedTool(args.toArray(new String[args.size()]));
 				CodeGenerator gen = new CodeGenerator(tool, g, language);
 				gen.writeVocabFile();
+				wroteVocab = tool.numWritten>0;
 			}
 		}
 	}
 
-	// TODO: lots of duplication with antlr() function.
+	@Override
+	public void onSuccess() {
+		if ( !generated && !wroteVocab ) return;
+		// refresh from disk to see new files
+		Set<File> generatedFiles = new HashSet<File>();
+		generatedFiles.add(new File(getOutputDirName()));
+		LocalFileSystem.getInstance().refreshIoFiles(generatedFiles, true, true, null);
+		if ( generated && forceGeneration ) { // asked for it from the menu; say we did it
+			Notification notification =
+				new Notification(groupDisplayId,
+								 "parser for " + grammarFile.getName() + " generated",
+								 "to " + getOutputDirName(),
+								 NotificationType.INFORMATION);
+			Notifications.Bus.notify(notification, project);
+		}
+	}
+
+	/** Stale if the recognizer is missing or any input to code generation
+	 *  changed since we last generated it: the grammar, grammars it imports,
+	 *  its lexer or .tokens file, or tool options. We compare content hashes,
+	 *  not timestamps, so a touched but unchanged grammar isn't stale.
+	 */
 	public boolean isGrammarStale() {
 		String qualFileName = grammarFile.getPath();
-		String sourcePath = ConfigANTLRPerGrammar.getParentDir(grammarFile);
-		sourcePath = ConfigANTLRPerGrammar.getProp(project, qualFileName, ConfigANTLRPerGrammar.PROP_LIB_DIR, sourcePath);
-		String fullyQualifiedInputFileName = sourcePath+File.separator+grammarFile.getName();
-
-		ANTLRv4PluginController controller = ANTLRv4PluginController.getInstance(project);
-		final PreviewState previewState = controller.getPreviewState(grammarFile);
-		Grammar g = previewState.getMainGrammar();
-		// Grammar should be updated in the preview state before calling this function
-		if ( g==null ) {
+
+		// same compilation as the preview and annotator are using
+		GrammarCompilationCache.Compilation c =
+			GrammarCompilationCache.getInstance(project).getCompilation(qualFileName);
+		if ( c==null || c.g==null ) {
 			return false;
 		}
+		Grammar g = c.g;
 
 		String language = g.getOptionString(ConfigANTLRPerGrammar.PROP_LANGUAGE);
 		CodeGenerator generator = new CodeGenerator(null, g, language);
 		String recognizerFileName = generator.getRecognizerFileName();
+		String fullyQualifiedOutputFileName = getOutputDirName()+File.separator+recognizerFileName;
 
-		VirtualFile contentRoot = ConfigANTLRPerGrammar.getContentRoot(project, grammarFile);
-		String package_ = ConfigANTLRPerGrammar.getProp(project, qualFileName, ConfigANTLRPerGrammar.PROP_PACKAGE, MISSING);
-		String outputDirName = ConfigANTLRPerGrammar.getOutputDirName(project, qualFileName, contentRoot, package_);
-		String fullyQualifiedOutputFileName = outputDirName+File.separator+recognizerFileName;
-
-		File inF = new File(fullyQualifiedInputFileName);
 		File outF = new File(fullyQualifiedOutputFileName);
-		boolean stale = inF.lastModified()>outF.lastModified();
-		LOG.info((!stale ? "not" : "") + "stale: " + fullyQualifiedInputFileName + " -> " + fullyQualifiedOutputFileName);
+		String generatedFrom = ConfigANTLRPerGrammar.getProp(project, qualFileName, ConfigANTLRPerGrammar.PROP_INPUT_HASH, MISSING);
+		boolean stale = !outF.exists() || !c.getInputHash().equals(generatedFrom);
+		LOG.info((!stale ? "not" : "") + "stale: " + qualFileName + " -> " + fullyQualifiedOutputFileName);
 		return stale;
 	}
 
+	/** Remember what grammarFileName was generated from; see {@link #isGrammarStale()} */
+	public static void recordInputHash(Project project, String grammarFileName) {
+		GrammarCompilationCache.Compilation c =
+			GrammarCompilationCache.getInstance(project).getCompilation(grammarFileName);
+		if ( c!=null && c.g!=null ) {
+			ConfigANTLRPerGrammar.setProp(project, grammarFileName, ConfigANTLRPerGrammar.PROP_INPUT_HASH, c.getInputHash());
+		}
+	}
+
 	/** Run ANTLR tool on file according to preferences in intellij for this file.
 	 *  Returns set of generated files or empty set if error.
  	 */
 	public void antlr(VirtualFile vfile) {
 		if ( vfile==null ) return;
+		ConsoleView console = ANTLRv4PluginController.getInstance(project).getConsole();
+		RunANTLRListener listener = antlr(project, vfile, true, console);
+		if ( listener.hasOutput ) {
+			ANTLRv4PluginController.showConsoleWindow(project);
+		}
+	}
 
+	/** Run ANTLR tool on vfile, printing what it says to console or, if
+	 *  console is null, keeping it in the returned listener. With
+	 *  includeLexer, an XParser.g4's XLexer.g4 is processed too.
+	 */
+	public static RunANTLRListener antlr(Project project, VirtualFile vfile, boolean includeLexer, ConsoleView console) {
 		LOG.info("antlr(\""+vfile.getPath()+"\")");
 		List<String> args = getANTLRArgsAsList(project, vfile);
 
@@ -125,21 +171,20 @@ public class RunANTLROnGrammarFile extends Task.Modal {
 		args.add(fullyQualifiedInputFileName); // add grammar file last
 
 		String lexerGrammarFileName = ParsingUtils.getLexerNameFromParserFileName(fullyQualifiedInputFileName);
-		if ( new File(lexerGrammarFileName).exists() ) {
+		if ( includeLexer && new File(lexerGrammarFileName).exists() ) {
 			// build the lexer too as the grammar surely uses it if it exists
 			args.add(lexerGrammarFileName);
 		}
 
 		LOG.info("args: " + Utils.join(args.iterator(), " "));
 
-		Tool antlr = new Tool(args.toArray(new String[args.size()]));
+		WriteIfChangedTool antlr = new WriteIfChangedTool(args.toArray(new String[args.size()]));
 
-		ConsoleView console = ANTLRv4PluginController.getInstance(project).getConsole();
-		String timeStamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(Calendar.getInstance().getTime());
-		console.print(timeStamp+": antlr4 "+Misc.join(args.iterator(), " ")+"\n", ConsoleViewContentType.SYSTEM_OUTPUT);
 		antlr.removeListeners();
 		RunANTLRListener listener = new RunANTLRListener(antlr, console);
 		antlr.addListener(listener);
+		String timeStamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(Calendar.getInstance().getTime());
+		listener.print(timeStamp+": antlr4 "+Misc.join(args.iterator(), " ")+"\n", ConsoleViewContentType.SYSTEM_OUTPUT);
 
 		try {
 			antlr.processGrammarsOnCommandLine();
@@ -155,13 +200,18 @@ public class RunANTLROnGrammarFile extends Task.Modal {
 					e.toString(),
 					NotificationType.INFORMATION);
 			Notifications.Bus.notify(notification, project);
-			console.print(timeStamp + ": antlr4 " + msg + "\n", ConsoleViewContentType.SYSTEM_OUTPUT);
+			listener.print(timeStamp + ": antlr4 " + msg + "\n", ConsoleViewContentType.SYSTEM_OUTPUT);
 			listener.hasOutput = true; // show console below
+			listener.numErrors++;
 		}
-
-		if ( listener.hasOutput ) {
-			ANTLRv4PluginController.showConsoleWindow(project);
+		LOG.info("wrote "+antlr.numWritten+" files, "+antlr.numUnchanged+" unchanged");
+		if ( listener.numErrors==0 ) {
+			recordInputHash(project, vfile.getPath());
+			if ( args.contains(lexerGrammarFileName) ) {
+				recordInputHash(project, lexerGrammarFileName);
+			}
 		}
+		return listener;
 	}
 
 	public static List<String> getANTLRArgsAsList(Project project, VirtualFile vfile) {
@@ -0,0 +1,68 @@
+package org.antlr.intellij.plugin.parsing;
+
+import org.antlr.v4.Tool;
+import org.antlr.v4.tool.Grammar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/** An ANTLR tool that leaves generated files alone if regenerating them
+ *  gives the same bytes. Unchanged recognizers then keep their timestamps,
+ *  so the IDE doesn't refresh them and javac doesn't recompile them or
+ *  anything depending on them.
+ *
+ *  Output is collected in memory and compared with the file on disk when
+ *  the code generator closes the writer.
+ */
+public class WriteIfChangedTool extends Tool {
+	public int numWritten;
+	public int numUnchanged;
+
+	public WriteIfChangedTool() {
+		super();
+	}
+
+	public WriteIfChangedTool(String[] args) {
+		super(args);
+	}
+
+	/** Same file and encoding as {@link Tool#getOutputFileWriter} */
+	@Override
+	public Writer getOutputFileWriter(Grammar g, String fileName) throws IOException {
+		if ( outputDirectory==null ) {
+			return new StringWriter();
+		}
+		File outputDir = getOutputDirectory(g.fileName);
+		final File outputFile = new File(outputDir, fileName);
+		if ( !outputDir.exists() ) {
+			outputDir.mkdirs();
+		}
+		final Charset charset = grammarEncoding!=null ? Charset.forName(grammarEncoding) : Charset.defaultCharset();
+		return new StringWriter() {
+			boolean closed = false;
+
+			@Override
+			public void close() throws IOException {
+				if ( closed ) return;
+				closed = true;
+				byte[] bytes = toString().getBytes(charset);
+				if ( sameContents(outputFile, bytes) ) {
+					numUnchanged++;
+					return;
+				}
+				Files.write(outputFile.toPath(), bytes);
+				numWritten++;
+			}
+		};
+	}
+
+	protected static boolean sameContents(File f, byte[] bytes) throws IOException {
+		return f.isFile() && f.length()==bytes.length &&
+			   Arrays.equals(Files.readAllBytes(f.toPath()), bytes);
+	}
+}
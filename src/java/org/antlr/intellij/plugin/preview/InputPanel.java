@@ -30,18 +30,23 @@ import com.intellij.openapi.ui.TextComponentAccessor;
 import com.intellij.openapi.ui.TextFieldWithBrowseButton;
 import com.intellij.openapi.util.Key;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.io.FileUtilRt;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.ui.JBColor;
 import com.intellij.ui.LightweightHint;
+import com.intellij.util.text.CharArrayCharSequence;
 import org.antlr.intellij.adaptor.parser.SyntaxError;
 import org.antlr.intellij.plugin.ANTLRv4PluginController;
 import org.antlr.intellij.plugin.actions.MyActionUtils;
+import org.antlr.intellij.plugin.parsing.InputEditLog;
 import org.antlr.intellij.plugin.parsing.ParsingUtils;
 import org.antlr.intellij.plugin.parsing.PreviewParser;
 import org.antlr.intellij.plugin.profiler.ProfilerPanel;
 import org.antlr.runtime.CommonToken;
 import org.antlr.v4.runtime.CommonTokenStream;
 import org.antlr.v4.runtime.LexerNoViableAltException;
+import org.antlr.v4.runtime.Parser;
 import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.RecognitionException;
 import org.antlr.v4.runtime.Token;
@@ -53,7 +58,6 @@ import org.antlr.v4.runtime.atn.PredicateEvalInfo;
 import org.antlr.v4.runtime.misc.Interval;
 import org.antlr.v4.runtime.misc.Pair;
 import org.antlr.v4.runtime.misc.Utils;
-import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.TerminalNode;
 import org.antlr.v4.tool.Rule;
 import org.antlr.v4.tool.ast.GrammarAST;
@@ -189,6 +193,8 @@ public class InputPanel {
 		if (previewState == null) {
 			return;
 		}
+		previewState.inputFile = null;
+		previewState.inputFileShown = true;
 
 		// wipe old and make new one
 		final EditorFactory factory = EditorFactory.getInstance();
@@ -213,22 +219,6 @@ public class InputPanel {
 	public void selectFileEvent() {
 		fileRadioButton.setSelected(true);
 
-		String inputFileName = fileChooser.getText();
-		char[] inputText = new char[0];
-		if (inputFileName.trim().length() > 0) {
-			try {
-				inputText = FileUtil.loadFileText(new File(inputFileName));
-				String s = new String(inputText);
-				s = s.replaceAll("\r", "");
-				// "All text strings passed to document modification methods
-				// (setText, insertString, replaceString) must use only \n as
-				// line separators."
-				inputText = s.toCharArray();
-			}
-			catch (IOException ioe) {
-				LOG.error("can't load input file " + inputFileName, ioe);
-			}
-		}
 		// get state for grammar in current editor, not editor where user is typing preview input!
 		ANTLRv4PluginController controller = ANTLRv4PluginController.getInstance(previewPanel.project);
 		PreviewState previewState = controller.getPreviewState();
@@ -236,24 +226,71 @@ public class InputPanel {
 			return;
 		}
 
+		String inputFileName = fileChooser.getText();
+		File inputFile = null;
+		CharSequence inputText = "";
+		boolean inputFileShown = true;
+		if (inputFileName.trim().length() > 0) {
+			inputFile = new File(inputFileName);
+			if (inputFile.length() > FileUtilRt.LARGE_FOR_CONTENT_LOADING) {
+				// don't load it into a document at all; the parser maps the file
+				inputText = "Input file " + inputFile.getName() + " is too large to show (" +
+							StringUtil.formatFileSize(inputFile.length()) + "); parsing it straight from disk";
+				inputFileShown = false;
+			}
+			else {
+				try {
+					inputText = loadInputFileText(inputFile);
+				}
+				catch (IOException ioe) {
+					LOG.error("can't load input file " + inputFileName, ioe);
+					inputFile = null;
+				}
+			}
+		}
+
 		// wipe old and make new one
 		final EditorFactory factory = EditorFactory.getInstance();
 		Document doc = factory.createDocument(inputText);
 		doc.setReadOnly(true);
 		Editor editor = createEditor(controller.getCurrentGrammarFile(), doc);
 		setEditorComponent(editor.getComponent()); // do before setting state
+		previewState.inputFile = inputFile;
+		previewState.inputFileShown = inputFileShown;
 		previewState.setEditor(editor);
 		clearErrorConsole();
 		previewPanel.updateParseTreeFromDoc(controller.getCurrentGrammarFile());
 	}
 
+	/** Load an input file to show in the editor. "All text strings passed
+	 *  to document modification methods (setText, insertString,
+	 *  replaceString) must use only \n as line separators." so drop '\r'
+	 *  in place rather than copying the text around through a String.
+	 *  Decoded like a file too big to show would be, so offsets match.
+	 */
+	public static CharSequence loadInputFileText(File inputFile) throws IOException {
+		char[] text = FileUtil.loadFileText(inputFile, ParsingUtils.getInputFileCharset(inputFile).name());
+		int n = 0;
+		for (int i = 0; i < text.length; i++) {
+			char c = text[i];
+			// skip any byte order mark as MappedFileCharStream does, so offsets match
+			if ( c!='\r' && !(i==0 && c=='\uFEFF') ) {
+				text[n++] = c;
+			}
+		}
+		return new CharArrayCharSequence(text, 0, n);
+	}
+
 	public Editor createEditor(final VirtualFile grammarFile, Document doc) {
 		LOG.info("createEditor: create new editor for " + grammarFile.getPath() + " " + previewPanel.project.getName());
 		final EditorFactory factory = EditorFactory.getInstance();
+		final InputEditLog inputEdits = ANTLRv4PluginController.getInstance(previewPanel.project).getPreviewState(grammarFile).inputEdits;
+		inputEdits.reset();
 		doc.addDocumentListener(
 		new DocumentAdapter() {
 			@Override
 			public void documentChanged(DocumentEvent event) {
+				inputEdits.edited(event.getOffset(), event.getOldLength(), event.getNewLength());
 				previewPanel.updateParseTreeFromDoc(grammarFile);
 			}
 		}
@@ -435,8 +472,12 @@ public class InputPanel {
 			markupModel.removeAllHighlighters();
 			return;
 		}
+		PreviewState previewState = ANTLRv4PluginController.getInstance(previewPanel.project).getPreviewState(grammarFile);
+		boolean annotate = previewState.editorShowsInput();
 		for (SyntaxError e : errors) {
-			annotateErrorsInPreviewInputEditor(grammarFile, e);
+			if (annotate) {
+				annotateErrorsInPreviewInputEditor(grammarFile, e);
+			}
 			displayErrorInParseErrorConsole(e);
 		}
 	}
@@ -445,12 +486,7 @@ public class InputPanel {
 	 * Show token information if the meta-key is down and mouse movement occurs
 	 */
 	public void showTokenInfoUponMeta(Editor editor, PreviewState previewState, int offset) {
-		Token tokenUnderCursor = ParsingUtils.getTokenUnderCursor(previewState, offset);
-		if (tokenUnderCursor == null) {
-			PreviewParser parser = (PreviewParser) previewState.parsingResult.parser;
-			CommonTokenStream tokenStream = (CommonTokenStream) parser.getInputStream();
-			tokenUnderCursor = ParsingUtils.getSkippedTokenUnderCursor(tokenStream, offset);
-		}
+		Token tokenUnderCursor = previewState.parsingResult.getOffsetIndex().getTokenOrSkippedAt(offset);
 
 		if (tokenUnderCursor == null) {
 			return;
@@ -494,15 +530,14 @@ public class InputPanel {
 			return;
 		}
 
-		ParseTree tree = previewState.parsingResult.tree;
 		TerminalNode nodeWithToken =
-		(TerminalNode) ParsingUtils.getParseTreeNodeWithToken(tree, tokenUnderCursor);
+		previewState.parsingResult.getOffsetIndex().getTerminalNode(tokenUnderCursor);
 		if (nodeWithToken == null) {
 			// hidden token
 			return;
 		}
 
-		PreviewParser parser = (PreviewParser) previewState.parsingResult.parser;
+		Parser parser = previewState.parsingResult.parser;
 		CommonTokenStream tokenStream = (CommonTokenStream) parser.getInputStream();
 		ParserRuleContext parent = (ParserRuleContext) nodeWithToken.getParent();
 		Interval tokenInterval = parent.getSourceInterval();
@@ -592,6 +627,11 @@ public class InputPanel {
 			return;
 		}
 
+		if (!(previewState.parsingResult.parser instanceof PreviewParser)) {
+			// compiled parser; it doesn't track ATN states so go to the rule instead
+			setCursorToGrammarRule(project, previewState, offset);
+			return;
+		}
 		PreviewParser parser = (PreviewParser) previewState.parsingResult.parser;
 		Integer atnState = parser.inputTokenToStateMap.get(tokenUnderCursor);
 		if (atnState == null) {
@@ -611,9 +651,8 @@ public class InputPanel {
 			return;
 		}
 
-		ParseTree tree = previewState.parsingResult.tree;
 		TerminalNode nodeWithToken =
-		(TerminalNode) ParsingUtils.getParseTreeNodeWithToken(tree, tokenUnderCursor);
+		previewState.parsingResult.getOffsetIndex().getTerminalNode(tokenUnderCursor);
 		if (nodeWithToken == null) {
 			// hidden token
 			return;
@@ -0,0 +1,619 @@
+package org.antlr.intellij.plugin.preview;
+
+import com.intellij.ui.components.Magnificator;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.Tree;
+import org.antlr.v4.runtime.tree.gui.TreeTextProvider;
+import org.antlr.v4.runtime.tree.gui.TreeViewer;
+
+import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Draws a parse tree like {@link TreeViewer} but copes with huge trees.
+ *
+ *  TreeViewer lays out and paints every node, which falls over with
+ *  hundreds of thousands of nodes. Here only the part of the tree that's
+ *  expanded is laid out, breadth first up to a node budget so deep
+ *  subtrees start out collapsed, and painting skips any subtree outside
+ *  the clip. Click a collapsed node to expand another budget's worth of
+ *  its subtree; click an expanded one to collapse it. Expanded/collapsed
+ *  choices are remembered by child index path across reparses.
+ *
+ *  A node with a huge number of children, say a flat list of statements,
+ *  shows them a page at a time followed by a "more" box; click it for the
+ *  next page. Nothing here recurses on the tree, so deep trees are fine.
+ */
+public class ParseTreeView extends JComponent implements Magnificator {
+	/** Roughly how many nodes to show for a new tree */
+	public static final int INITIAL_NODE_BUDGET = 2000;
+
+	/** Roughly how many more nodes to show when expanding a node */
+	public static final int EXPAND_NODE_BUDGET = 500;
+
+	/** How many children of a node to show at first and per "more" click */
+	public static final int CHILD_PAGE_SIZE = 100;
+
+	public static final double SCALE_MIN = 0.1;
+	public static final double SCALE_MAX = 2.5;
+
+	public static final int MARGIN = 10;
+
+	/** A node that's showing, or the "more" box after a page of children */
+	protected static class ViewNode {
+		/** null for a "more" box */
+		public final Tree tree;
+		public ViewNode parent;
+		/** Child indexes from the root, like "0.3.1" */
+		public final String path;
+		public final String text;
+		public final int width;
+		/** null if a leaf or collapsed */
+		public ViewNode[] children;
+		public int depth;
+		/** Box position */
+		public double x, y;
+		/** Horizontal extent of this node and its showing descendants */
+		public double subtreeLeft, subtreeWidth;
+
+		public ViewNode(Tree tree, String path, String text, int width) {
+			this.tree = tree;
+			this.path = path;
+			this.text = text;
+			this.width = width;
+		}
+
+		public boolean isMore() {
+			return tree==null;
+		}
+
+		public boolean isCollapsed() {
+			return !isMore() && children==null && tree.getChildCount()>0;
+		}
+
+		/** Number of tree children showing, not counting a "more" box */
+		public int getShownChildCount() {
+			if ( children==null ) return 0;
+			int n = children.length;
+			return n>0 && children[n-1].isMore() ? n-1 : n;
+		}
+	}
+
+	protected TreeTextProvider treeTextProvider;
+	protected Tree tree;
+	protected ViewNode root;
+	protected int maxDepth;
+
+	/** Paths the user expanded or collapsed, applied over the default */
+	protected final Set<String> userExpanded = new HashSet<String>();
+	protected final Set<String> userCollapsed = new HashSet<String>();
+	/** Paths of nodes the user asked to see more children of, to how many */
+	protected final Map<String, Integer> userShownChildren = new HashMap<String, Integer>();
+
+	protected Font font = new Font("Helvetica", Font.PLAIN, 11);
+	protected double gapBetweenLevels = 17;
+	protected double gapBetweenNodes = 7;
+	protected int nodeWidthPadding = 2;
+	protected Color textColor = Color.black;
+	protected Color collapsedTextColor = Color.gray;
+
+	protected double scale = 1.0;
+
+	/** Scale * 1000 so a slider can share it with trackpad zooming */
+	public final BoundedRangeModel scaleModel =
+		new DefaultBoundedRangeModel(1000, 0, (int)(SCALE_MIN*1000), (int)(SCALE_MAX*1000));
+
+	public ParseTreeView() {
+		setFont(font);
+		scaleModel.addChangeListener(new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				scale = scaleModel.getValue() / 1000.0;
+				updatePreferredSize();
+			}
+		});
+		if ( PreviewPanel.isTrackpadZoomSupported ) {
+			putClientProperty(Magnificator.CLIENT_PROPERTY_KEY, this);
+		}
+		addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				ViewNode v = getNodeAt(e.getPoint());
+				if ( v==null ) {
+					return;
+				}
+				if ( v.isMore() ) {
+					showMore(v);
+				}
+				else if ( v.tree.getChildCount()>0 ) {
+					toggle(v);
+				}
+			}
+		});
+		setToolTipText(""); // turn on tool tips
+	}
+
+	public void setTreeTextProvider(TreeTextProvider treeTextProvider) {
+		this.treeTextProvider = treeTextProvider;
+		rebuild();
+	}
+
+	public void setRuleNames(List<String> ruleNames) {
+		setTreeTextProvider(new TreeViewer.DefaultTreeTextProvider(ruleNames));
+	}
+
+	public void setTree(Tree tree) {
+		this.tree = tree;
+		rebuild();
+	}
+
+	/** Swap both at once so we only lay out the new tree */
+	public void setTree(Tree tree, TreeTextProvider treeTextProvider) {
+		this.tree = tree;
+		this.treeTextProvider = treeTextProvider;
+		rebuild();
+	}
+
+	/** Forget what the user expanded/collapsed, say for another grammar */
+	public void clearExpansionState() {
+		userExpanded.clear();
+		userCollapsed.clear();
+		userShownChildren.clear();
+	}
+
+	public Tree getTree() {
+		return tree;
+	}
+
+	public double getScale() {
+		return scale;
+	}
+
+	public void setScale(double scale) {
+		scaleModel.setValue((int)(scale*1000));
+	}
+
+	@Override
+	public Point magnify(double magnification, Point at) {
+		setScale(getScale() * magnification);
+		return at;
+	}
+
+	protected void rebuild() {
+		if ( tree==null || treeTextProvider==null ) {
+			root = null;
+			updatePreferredSize();
+			return;
+		}
+		Set<Tree> expanded = expandBreadthFirst(tree, INITIAL_NODE_BUDGET);
+		maxDepth = 0;
+		root = build(tree, "0", 0, expanded);
+		layoutTree();
+	}
+
+	/** Nodes to expand to show about budget nodes under t, top levels first */
+	protected static Set<Tree> expandBreadthFirst(Tree t, int budget) {
+		Set<Tree> expanded = Collections.newSetFromMap(new IdentityHashMap<Tree, Boolean>());
+		ArrayDeque<Tree> work = new ArrayDeque<Tree>();
+		work.add(t);
+		int shown = 1;
+		while ( !work.isEmpty() ) {
+			Tree p = work.poll();
+			int n = Math.min(p.getChildCount(), CHILD_PAGE_SIZE);
+			if ( n==0 ) {
+				continue;
+			}
+			if ( shown+n>budget && !expanded.isEmpty() ) {
+				break;
+			}
+			expanded.add(p);
+			shown += n;
+			for (int i = 0; i < n; i++) {
+				work.add(p.getChild(i));
+			}
+		}
+		return expanded;
+	}
+
+	protected ViewNode build(Tree t, String path, int depth, Set<Tree> expanded) {
+		ViewNode v = createViewNode(t, path, depth);
+		buildChildren(v, expanded);
+		return v;
+	}
+
+	/** Add the showing descendants of v, which has none yet */
+	protected void buildChildren(ViewNode top, Set<Tree> expanded) {
+		ArrayDeque<ViewNode> work = new ArrayDeque<ViewNode>();
+		work.push(top);
+		while ( !work.isEmpty() ) {
+			ViewNode v = work.pop();
+			int n = v.tree.getChildCount();
+			boolean expand = expanded.contains(v.tree) ? !userCollapsed.contains(v.path) : userExpanded.contains(v.path);
+			if ( n>0 && expand ) {
+				addChildren(v, getShownChildCount(v.path, n));
+				for (int i = 0; i < v.getShownChildCount(); i++) {
+					work.push(v.children[i]);
+				}
+			}
+		}
+	}
+
+	/** Show v's first n children, keeping those already showing, plus a
+	 *  "more" box if that isn't all of them.
+	 */
+	protected void addChildren(ViewNode v, int n) {
+		int from = v.getShownChildCount();
+		int total = v.tree.getChildCount();
+		ViewNode[] children = new ViewNode[n<total ? n+1 : n];
+		if ( from>0 ) {
+			System.arraycopy(v.children, 0, children, 0, from);
+		}
+		for (int i = from; i < n; i++) {
+			children[i] = createViewNode(v.tree.getChild(i), v.path+"."+i, v.depth+1);
+			children[i].parent = v;
+		}
+		if ( n<total ) {
+			String text = "... "+(total-n)+" more";
+			ViewNode more = new ViewNode(null, v.path+".more", text, getBoxWidth(null, text));
+			more.depth = v.depth+1;
+			more.parent = v;
+			children[n] = more;
+		}
+		v.children = children;
+	}
+
+	protected ViewNode createViewNode(Tree t, String path, int depth) {
+		String text = treeTextProvider.getText(t);
+		ViewNode v = new ViewNode(t, path, text, getBoxWidth(t, text));
+		v.depth = depth;
+		maxDepth = Math.max(maxDepth, depth);
+		return v;
+	}
+
+	protected int getShownChildCount(String path, int n) {
+		Integer shown = userShownChildren.get(path);
+		return Math.min(n, shown!=null ? shown : CHILD_PAGE_SIZE);
+	}
+
+	protected void toggle(ViewNode v) {
+		if ( v.isCollapsed() ) {
+			userCollapsed.remove(v.path);
+			userExpanded.add(v.path);
+			buildChildren(v, expandBreadthFirst(v.tree, EXPAND_NODE_BUDGET));
+			rememberExpanded(v);
+		}
+		else {
+			userExpanded.remove(v.path);
+			userCollapsed.add(v.path);
+			v.children = null;
+			maxDepth = computeMaxDepth(root);
+		}
+		relayout(v);
+	}
+
+	/** Replace the "more" box with the next page of its parent's children */
+	protected void showMore(ViewNode more) {
+		ViewNode p = more.parent;
+		int from = p.getShownChildCount();
+		int n = Math.min(p.tree.getChildCount(), from+CHILD_PAGE_SIZE);
+		userShownChildren.put(p.path, n);
+		addChildren(p, n);
+		Set<Tree> none = Collections.emptySet();
+		for (int i = from; i < n; i++) {
+			buildChildren(p.children[i], none); // just what the user expanded before
+		}
+		relayout(p.children[from]);
+	}
+
+	/** Lay out again after showing or hiding nodes under v */
+	protected void relayout(ViewNode v) {
+		layoutTree();
+		// keep the clicked node in view as the tree shifts around it, once resized
+		final Rectangle bounds = getBounds(v);
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				scrollRectToVisible(bounds);
+			}
+		});
+	}
+
+	/** So a reparse comes back with the same subtree showing */
+	protected void rememberExpanded(ViewNode v) {
+		for (ViewNode d : getShowing(v)) {
+			if ( d.children!=null ) {
+				userExpanded.add(d.path);
+				userCollapsed.remove(d.path);
+			}
+		}
+	}
+
+	protected static int computeMaxDepth(ViewNode v) {
+		int max = v.depth;
+		for (ViewNode d : getShowing(v)) {
+			max = Math.max(max, d.depth);
+		}
+		return max;
+	}
+
+	/** v and its showing descendants, parents before children */
+	protected static List<ViewNode> getShowing(ViewNode v) {
+		List<ViewNode> showing = new ArrayList<ViewNode>();
+		showing.add(v);
+		for (int i = 0; i < showing.size(); i++) {
+			ViewNode[] children = showing.get(i).children;
+			if ( children!=null ) {
+				Collections.addAll(showing, children);
+			}
+		}
+		return showing;
+	}
+
+	protected int getBoxWidth(Tree t, String text) {
+		FontMetrics fm = getFontMetrics(font);
+		String label = text;
+		if ( t!=null && t.getChildCount()>0 ) {
+			label += getCollapsedSuffix(t); // leave room for it either way so boxes don't jump
+		}
+		return fm.stringWidth(label) + nodeWidthPadding*2;
+	}
+
+	protected static String getCollapsedSuffix(Tree t) {
+		return " +"+t.getChildCount();
+	}
+
+	protected int getNodeHeight() {
+		FontMetrics fm = getFontMetrics(font);
+		return fm.getHeight();
+	}
+
+	// LAYOUT
+
+	/** Center each node over its showing children; O(showing nodes) */
+	protected void layoutTree() {
+		if ( root!=null ) {
+			List<ViewNode> showing = getShowing(root);
+			measure(showing);
+			place(showing);
+		}
+		updatePreferredSize();
+	}
+
+	/** Subtree widths, children before parents */
+	protected void measure(List<ViewNode> showing) {
+		for (int i = showing.size()-1; i >= 0; i--) {
+			ViewNode v = showing.get(i);
+			if ( v.children==null ) {
+				v.subtreeWidth = v.width;
+				continue;
+			}
+			double childrenWidth = getChildrenWidth(v);
+			v.subtreeWidth = Math.max(v.width, childrenWidth);
+		}
+	}
+
+	/** Positions, parents before children */
+	protected void place(List<ViewNode> showing) {
+		showing.get(0).subtreeLeft = MARGIN;
+		int h = getNodeHeight();
+		for (ViewNode v : showing) {
+			double left = v.subtreeLeft;
+			v.x = left + (v.subtreeWidth - v.width)/2;
+			v.y = MARGIN + v.depth * (h + gapBetweenLevels);
+			if ( v.children==null ) {
+				continue;
+			}
+			double x = left + (v.subtreeWidth - getChildrenWidth(v))/2;
+			for (ViewNode c : v.children) {
+				c.subtreeLeft = x;
+				x += c.subtreeWidth + gapBetweenNodes;
+			}
+		}
+	}
+
+	protected double getChildrenWidth(ViewNode v) {
+		double childrenWidth = gapBetweenNodes * (v.children.length-1);
+		for (ViewNode c : v.children) {
+			childrenWidth += c.subtreeWidth;
+		}
+		return childrenWidth;
+	}
+
+	protected void updatePreferredSize() {
+		Dimension size = new Dimension(0, 0);
+		if ( root!=null ) {
+			double w = root.subtreeWidth + 2*MARGIN;
+			double h = (maxDepth+1) * (getNodeHeight() + gapBetweenLevels) + 2*MARGIN;
+			size = new Dimension((int)(w*scale), (int)(h*scale));
+		}
+		setPreferredSize(size);
+		revalidate();
+		repaint();
+	}
+
+	// PAINTING
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		super.paintComponent(g);
+		if ( root==null ) {
+			return;
+		}
+		Graphics2D g2 = (Graphics2D)g.create();
+		try {
+			g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+			g2.scale(scale, scale);
+			g2.setFont(font);
+			Rectangle clip = g2.getClipBounds();
+			if ( clip==null ) {
+				clip = new Rectangle(0, 0, (int)(getWidth()/scale)+1, (int)(getHeight()/scale)+1);
+			}
+			paintTree(g2, clip, getNodeHeight());
+		}
+		finally {
+			g2.dispose();
+		}
+	}
+
+	/** Paint the showing nodes, skipping subtrees outside clip. A node's
+	 *  box goes over the lines to its children; theirs over the line to it.
+	 */
+	protected void paintTree(Graphics2D g, Rectangle clip, int h) {
+		ArrayDeque<ViewNode> work = new ArrayDeque<ViewNode>();
+		work.push(root);
+		while ( !work.isEmpty() ) {
+			ViewNode v = work.pop();
+			if ( v.subtreeLeft>clip.getMaxX() || v.subtreeLeft+v.subtreeWidth<clip.getMinX() ||
+				 v.y>clip.getMaxY() )
+			{
+				continue;
+			}
+			if ( v.children!=null ) {
+				g.setColor(textColor);
+				int px = (int)(v.x + v.width/2.0);
+				int py = (int)(v.y + h);
+				boolean childrenVisible = v.y+h+gapBetweenLevels>=clip.getMinY();
+				for (int i = findFirstChildEndingAfter(v.children, clip.getMinX()); i < v.children.length; i++) {
+					ViewNode c = v.children[i];
+					if ( c.subtreeLeft>clip.getMaxX() ) {
+						break;
+					}
+					if ( childrenVisible ) {
+						g.drawLine(px, py, (int)(c.x + c.width/2.0), (int)c.y);
+					}
+					work.push(c);
+				}
+			}
+			if ( v.y+h>=clip.getMinY() ) {
+				paintBox(g, v, h);
+			}
+		}
+	}
+
+	protected void paintBox(Graphics2D g, ViewNode v, int h) {
+		int x = (int)v.x;
+		int y = (int)v.y;
+		if ( v.isMore() ) {
+			g.setColor(getBackground()!=null ? getBackground() : Color.white);
+			g.fillRect(x, y, v.width, h);
+			g.setColor(collapsedTextColor);
+			g.drawString(v.text, x + nodeWidthPadding, y + g.getFontMetrics().getAscent());
+			g.drawRect(x, y, v.width-1, h-1);
+			return;
+		}
+		if ( v.tree instanceof ErrorNode ) {
+			g.setColor(TreeViewer.LIGHT_RED);
+			g.fillRect(x, y, v.width, h);
+		}
+		else {
+			g.setColor(getBackground()!=null ? getBackground() : Color.white);
+			g.fillRect(x, y, v.width, h);
+		}
+		FontMetrics fm = g.getFontMetrics();
+		int baseline = y + fm.getAscent();
+		g.setColor(textColor);
+		g.drawString(v.text, x + nodeWidthPadding, baseline);
+		if ( v.isCollapsed() ) {
+			g.setColor(collapsedTextColor);
+			g.drawString(getCollapsedSuffix(v.tree), x + nodeWidthPadding + fm.stringWidth(v.text), baseline);
+			g.drawRect(x, y, v.width-1, h-1);
+		}
+	}
+
+	// HIT TESTING
+
+	@Override
+	public String getToolTipText(MouseEvent e) {
+		ViewNode v = getNodeAt(e.getPoint());
+		if ( v==null ) {
+			return null;
+		}
+		if ( v.isMore() ) {
+			int n = v.parent.tree.getChildCount() - v.parent.getShownChildCount();
+			return "Click to show "+Math.min(n, CHILD_PAGE_SIZE)+" more of "+n+" remaining children";
+		}
+		if ( v.tree.getChildCount()==0 ) {
+			return null;
+		}
+		if ( v.isCollapsed() ) {
+			return "Click to show "+v.tree.getChildCount()+" children";
+		}
+		return "Click to collapse";
+	}
+
+	/** The node whose box is under p (in component coordinates) or null */
+	protected ViewNode getNodeAt(Point p) {
+		if ( root==null ) {
+			return null;
+		}
+		double x = p.x / scale;
+		double y = p.y / scale;
+		int h = getNodeHeight();
+		ViewNode v = root;
+		while ( v!=null ) {
+			if ( y>=v.y && y<v.y+h ) {
+				return x>=v.x && x<v.x+v.width ? v : null;
+			}
+			if ( y<v.y || v.children==null ) {
+				return null;
+			}
+			v = findChildSpanning(v.children, x);
+		}
+		return null;
+	}
+
+	/** Children are laid out left to right; binary search on their spans */
+	protected static ViewNode findChildSpanning(ViewNode[] children, double x) {
+		int lo = 0;
+		int hi = children.length-1;
+		while ( lo<=hi ) {
+			int mid = (lo + hi) >>> 1;
+			ViewNode c = children[mid];
+			if ( x<c.subtreeLeft ) {
+				hi = mid - 1;
+			}
+			else if ( x>=c.subtreeLeft+c.subtreeWidth ) {
+				lo = mid + 1;
+			}
+			else {
+				return c;
+			}
+		}
+		return null;
+	}
+
+	/** Index of the first child whose span reaches x, or children.length */
+	protected static int findFirstChildEndingAfter(ViewNode[] children, double x) {
+		int lo = 0;
+		int hi = children.length;
+		while ( lo<hi ) {
+			int mid = (lo + hi) >>> 1;
+			ViewNode c = children[mid];
+			if ( c.subtreeLeft+c.subtreeWidth<x ) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	protected Rectangle getBounds(ViewNode v) {
+		return new Rectangle((int)(v.x*scale), (int)(v.y*scale),
+							 (int)(v.width*scale)+1, (int)(getNodeHeight()*scale)+1);
+	}
+}
@@ -38,7 +38,7 @@ class PreviewEditorMouseListener implements EditorMouseListener, EditorMouseMoti
 		final Editor editor=e.getEditor();
 		ANTLRv4PluginController controller = ANTLRv4PluginController.getInstance(editor.getProject());
 		final PreviewState previewState = controller.getPreviewState();
-		if ( previewState==null ) {
+		if ( previewState==null || !previewState.editorShowsInput() ) {
 			return;
 		}
 
@@ -100,7 +100,7 @@ class PreviewEditorMouseListener implements EditorMouseListener, EditorMouseMoti
 		Editor editor=e.getEditor();
 		ANTLRv4PluginController controller = ANTLRv4PluginController.getInstance(editor.getProject());
 		PreviewState previewState =	controller.getPreviewState();
-		if ( previewState==null ) {
+		if ( previewState==null || !previewState.editorShowsInput() ) {
 			return;
 		}
 
@@ -2,6 +2,7 @@ package org.antlr.intellij.plugin.preview;
 
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.Splitter;
 import com.intellij.openapi.util.SystemInfo;
@@ -27,7 +28,6 @@ import javax.swing.*;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 import java.awt.*;
-import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -51,13 +51,20 @@ public class PreviewPanel extends JPanel {
 
 	public InputPanel inputPanel;
 
-	public TreeViewer treeViewer;
+	public ParseTreeView treeViewer;
 	public ParseTree lastTree;
 
 	public ProfilerPanel profilerPanel;
 
+	/** Parses the preview input off the EDT as the user types */
+	public PreviewParseScheduler parseScheduler;
+
+	/** Is the profiler tab showing? Read by the background parser. */
+	public volatile boolean profilerVisible = false;
+
 	public PreviewPanel(Project project) {
 		this.project = project;
+		this.parseScheduler = new PreviewParseScheduler(this);
 		createGUI();
 	}
 
@@ -86,25 +93,36 @@ public class PreviewPanel extends JPanel {
 		JBTabbedPane tabbedPane = new JBTabbedPane();
 
 		LOG.info("createParseTreePanel" + " " + project.getName());
-		Pair<TreeViewer, JPanel> pair = createParseTreePanel();
+		Pair<ParseTreeView, JPanel> pair = createParseTreePanel();
 		treeViewer = pair.a;
 		tabbedPane.addTab("Parse tree", pair.b);
 
 		profilerPanel = new ProfilerPanel(project);
 		tabbedPane.addTab("Profiler", profilerPanel.$$$getRootComponent$$$());
 
+		final JBTabbedPane tabs = tabbedPane;
+		tabbedPane.addChangeListener(
+			new ChangeListener() {
+				@Override
+				public void stateChanged(ChangeEvent e) {
+					profilerVisible = tabs.getSelectedComponent()==profilerPanel.$$$getRootComponent$$$();
+					if ( profilerVisible ) {
+						profilerShown();
+					}
+				}
+			}
+		);
+
 		return tabbedPane;
 	}
 
-	public static Pair<TreeViewer,JPanel> createParseTreePanel() {
+	public static Pair<ParseTreeView,JPanel> createParseTreePanel() {
 		// wrap tree and slider in panel
 		JPanel treePanel = new JPanel(new BorderLayout(0, 0));
 		treePanel.setBackground(JBColor.white);
 
-		final TreeViewer viewer =
-			isTrackpadZoomSupported ?
-				new TrackpadZoomingTreeView(null, null) :
-				new TreeViewer(null, null);
+		// lays out and paints only what's expanded and visible; trees can be huge
+		final ParseTreeView viewer = new ParseTreeView();
 
 		JSlider scaleSlider = createTreeViewSlider(viewer);
 
@@ -119,25 +137,9 @@ public class PreviewPanel extends JPanel {
 	}
 
 	@NotNull
-	public static JSlider createTreeViewSlider(final TreeViewer viewer) {
-		JSlider scaleSlider;
-		if ( isTrackpadZoomSupported ) {
-			scaleSlider = new JSlider();
-			scaleSlider.setModel(((TrackpadZoomingTreeView)viewer).scaleModel);
-		}
-		else {
-			int sliderValue = (int) ((viewer.getScale() - 1.0) * 1000);
-			scaleSlider = new JSlider(JSlider.HORIZONTAL, -999, 1000, sliderValue);
-			scaleSlider.addChangeListener(
-				new ChangeListener() {
-					@Override
-					public void stateChanged(ChangeEvent e) {
-						int v = ((JSlider) e.getSource()).getValue();
-						viewer.setScale(v / 1000.0 + 1.0);
-					}
-				});
-		}
-		return scaleSlider;
+	public static JSlider createTreeViewSlider(final ParseTreeView viewer) {
+		// shares the model with trackpad zooming so they stay in sync
+		return new JSlider(viewer.scaleModel);
 	}
 
 	/** Notify the preview tool window contents that the grammar file has changed */
@@ -187,6 +189,7 @@ public class PreviewPanel extends JPanel {
 		PreviewState previewState = controller.getPreviewState(grammarFile);
 
 		inputPanel.switchToGrammar(grammarFile);
+		treeViewer.clearExpansionState(); // paths into another grammar's trees mean nothing
 
 		if ( previewState.startRuleName!=null ) {
 			updateParseTreeFromDoc(grammarFile);
@@ -224,6 +227,7 @@ public class PreviewPanel extends JPanel {
 		String grammarFileName = grammarFile.getPath();
 		LOG.info("closeGrammar "+grammarFileName+" "+project.getName());
 
+		parseScheduler.cancel(); // don't publish a tree for a grammar that's gone
 		inputPanel.resetStartRuleLabel();
 		inputPanel.clearErrorConsole();
 		clearParseTree(); // wipe tree
@@ -239,8 +243,7 @@ public class PreviewPanel extends JPanel {
 				@Override
 				public void run() {
 					lastTree = tree;
-					treeViewer.setRuleNames(ruleNames);
-					treeViewer.setTree(tree);
+					treeViewer.setTree(tree, new TreeViewer.DefaultTreeTextProvider(ruleNames));
 				}
 			}
 		);
@@ -252,12 +255,11 @@ public class PreviewPanel extends JPanel {
 			public void run() {
 				lastTree = result.tree;
 				if (result.parser instanceof PreviewParser) {
-					treeViewer.setTreeTextProvider(new AltLabelTextProvider(result.parser, preview.g));
-					treeViewer.setTree(result.tree);
+					treeViewer.setTree(result.tree, new AltLabelTextProvider(result.parser, preview.g));
 				}
 				else {
-					treeViewer.setRuleNames(Arrays.asList(preview.g.getRuleNames()));
-					treeViewer.setTree(result.tree);
+					treeViewer.setTree(result.tree,
+									   new TreeViewer.DefaultTreeTextProvider(Arrays.asList(preview.g.getRuleNames())));
 				}
 			}
 		});
@@ -280,26 +282,88 @@ public class PreviewPanel extends JPanel {
 														  "No start rule is selected")));
 	}
 
+	/** Ask for a reparse of the preview input. The parse happens in the
+	 *  background; see {@link #parsingResultAvailable}.
+	 */
 	public void updateParseTreeFromDoc(VirtualFile grammarFile) {
 		ANTLRv4PluginController controller = ANTLRv4PluginController.getInstance(project);
 		PreviewState previewState = controller.getPreviewState(grammarFile);
 		LOG.info("updateParseTreeFromDoc "+grammarFile+" rule "+previewState.startRuleName);
-		try {
-			final String inputText = previewState.getEditor().getDocument().getText();
-			ParsingResult results = controller.parseText(grammarFile, inputText);
-			if ( results!=null) {
-				updateTreeViewer(previewState,results);
-			}
-			else if ( previewState.startRuleName==null ) {
-				indicateNoStartRuleInParseTreePane();
+		Editor editor = previewState.getEditor();
+		if ( editor==null ) {
+			return;
+		}
+		if ( previewState.inputFile!=null ) {
+			parseScheduler.schedule(grammarFile, previewState, editor, previewState.inputFile);
+			return;
+		}
+		final String inputText = editor.getDocument().getText();
+		parseScheduler.schedule(grammarFile, previewState, editor, inputText,
+								previewState.inputEdits.getVersion());
+	}
+
+	/** Called on the EDT by {@link PreviewParseScheduler} with the result of
+	 *  parsing the latest revision of the preview input. If the parse wasn't
+	 *  profiled, the profiler catches up lazily once it's visible.
+	 */
+	public void parsingResultAvailable(VirtualFile grammarFile, PreviewState previewState,
+									   ParsingResult results, boolean profiled,
+									   long parseTime_ns)
+	{
+		previewState.parsingResult = results;
+		previewState.profilingResult = profiled ? results : null;
+		if ( !profiled ) {
+			profilerPanel.clearProfilerData(previewState); // it's about the old input
+		}
+
+		// Wipes out the console and also any error annotations
+		inputPanel.clearParseErrors(grammarFile);
+
+		if ( results!=null ) {
+			inputPanel.showParseErrors(grammarFile, results.syntaxErrorListener.getSyntaxErrors());
+			if ( profiled ) {
+				profilingResultAvailable(previewState, results, parseTime_ns);
 			}
-			else {
-				indicateInvalidGrammarInParseTreePane();
+			else if ( profilerVisible ) {
+				profilerShown(); // tab got selected while we were parsing
 			}
+			updateTreeViewer(previewState, results);
+		}
+		else if ( previewState.startRuleName==null ) {
+			indicateNoStartRuleInParseTreePane();
+		}
+		else {
+			indicateInvalidGrammarInParseTreePane();
+		}
+	}
+
+	/** Called on the EDT with a profiled parse of the current preview input */
+	public void profilingResultAvailable(PreviewState previewState, ParsingResult results, long parseTime_ns) {
+		previewState.profilingResult = results;
+		profilerPanel.setProfilerData(previewState, parseTime_ns);
+		profilerPanel.tagAmbiguousDecisionsInGrammar(previewState);
+	}
+
+	/** The profiler tab became visible; profile the current input if the
+	 *  tree came from an unprofiled parse.
+	 */
+	public void profilerShown() {
+		PreviewState previewState = ANTLRv4PluginController.getInstance(project).getPreviewState();
+		if ( previewState==null || previewState.parsingResult==null || previewState.profilingResult!=null ) {
+			return;
+		}
+		Editor editor = previewState.getEditor();
+		if ( editor==null ) {
+			return;
 		}
-		catch (IOException ioe) {
-			ioe.printStackTrace();
+		if ( previewState.inputFile!=null ) {
+			parseScheduler.scheduleProfiling(previewState.grammarFile, previewState, editor,
+											 previewState.inputFile);
+			return;
 		}
+		parseScheduler.scheduleProfiling(previewState.grammarFile, previewState, editor,
+										 editor.getDocument().getText(),
+										 previewState.inputEdits.getVersion());
 	}
 
 	public InputPanel getInputPanel() {
@@ -0,0 +1,291 @@
+package org.antlr.intellij.plugin.preview;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.Alarm;
+import com.intellij.util.containers.ContainerUtil;
+import org.antlr.intellij.plugin.ANTLRv4PluginController;
+import org.antlr.intellij.plugin.parsing.ParsingResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Runs preview parses on a pooled thread so that typing in the preview
+ *  editor never blocks the EDT.
+ *
+ *  Every request bumps a revision number, cancels any parse still in
+ *  flight for an older revision and restarts a short delay, which coalesces
+ *  bursts of keystrokes into a single parse. Only the result for the latest
+ *  revision is handed back to the {@link PreviewPanel}, always on the EDT.
+ *
+ *  In two-stage mode the tree comes from a cheap SLL/LL parse and the
+ *  profiling parse only happens while the profiler is showing, either as
+ *  the tree parse itself or later via {@link #scheduleProfiling}.
+ */
+public class PreviewParseScheduler {
+	public static final Logger LOG = Logger.getInstance("ANTLR PreviewParseScheduler");
+
+	/** How long to wait for more edits before starting a parse */
+	public static final int COALESCE_DELAY_MS = 150;
+
+	protected final PreviewPanel previewPanel;
+	protected final Alarm alarm;
+
+	/** Bumped for each request; a parse publishes only if its revision is still current */
+	protected final AtomicLong revision = new AtomicLong();
+
+	/** Progress of the parses running right now. Canceling one makes the
+	 *  interpreter bail out at its next ATN state.
+	 */
+	protected final Set<ProgressIndicator> inFlight = ContainerUtil.newConcurrentSet();
+
+	/** What to parse: the text of the preview editor or a file on disk */
+	protected interface Input {
+		ParsingResult parse(ANTLRv4PluginController controller, VirtualFile grammarFile, boolean profile)
+			throws IOException;
+	}
+
+	/** inputVersion is the {@link PreviewState#inputEdits} version of inputText */
+	protected static Input textInput(final String inputText, final long inputVersion) {
+		return new Input() {
+			@Override
+			public ParsingResult parse(ANTLRv4PluginController controller, VirtualFile grammarFile, boolean profile)
+				throws IOException
+			{
+				return controller.parseText(grammarFile, inputText, inputVersion, profile);
+			}
+		};
+	}
+
+	protected static Input fileInput(final File inputFile) {
+		return new Input() {
+			@Override
+			public ParsingResult parse(ANTLRv4PluginController controller, VirtualFile grammarFile, boolean profile)
+				throws IOException
+			{
+				return controller.parseFile(grammarFile, inputFile, profile);
+			}
+		};
+	}
+
+	public PreviewParseScheduler(PreviewPanel previewPanel) {
+		this.previewPanel = previewPanel;
+		this.alarm = new Alarm(Alarm.ThreadToUse.POOLED_THREAD, previewPanel.project);
+	}
+
+	/** Request a parse of inputText, the contents of editor, for grammarFile.
+	 *  inputVersion is its {@link PreviewState#inputEdits} version. Must be
+	 *  called from the EDT.
+	 */
+	public void schedule(VirtualFile grammarFile,
+						 PreviewState previewState,
+						 Editor editor,
+						 String inputText,
+						 long inputVersion)
+	{
+		schedule(grammarFile, previewState, editor, textInput(inputText, inputVersion));
+	}
+
+	/** Request a parse of inputFile, shown (if not too big) in editor */
+	public void schedule(VirtualFile grammarFile,
+						 PreviewState previewState,
+						 Editor editor,
+						 File inputFile)
+	{
+		schedule(grammarFile, previewState, editor, fileInput(inputFile));
+	}
+
+	protected void schedule(final VirtualFile grammarFile,
+							final PreviewState previewState,
+							final Editor editor,
+							final Input input)
+	{
+		final long rev = revision.incrementAndGet();
+		alarm.cancelAllRequests();
+		cancelInFlight();
+		alarm.addRequest(
+			new Runnable() {
+				@Override
+				public void run() {
+					parse(rev, grammarFile, previewState, editor, input);
+				}
+			},
+			COALESCE_DELAY_MS
+		);
+	}
+
+	/** Request just the profiling parse for the current revision, whose tree
+	 *  was built without profiling. Doesn't supersede anything; a newer edit
+	 *  supersedes it.
+	 */
+	public void scheduleProfiling(VirtualFile grammarFile,
+								  PreviewState previewState,
+								  Editor editor,
+								  String inputText,
+								  long inputVersion)
+	{
+		scheduleProfiling(grammarFile, previewState, editor, textInput(inputText, inputVersion));
+	}
+
+	public void scheduleProfiling(VirtualFile grammarFile,
+								  PreviewState previewState,
+								  Editor editor,
+								  File inputFile)
+	{
+		scheduleProfiling(grammarFile, previewState, editor, fileInput(inputFile));
+	}
+
+	protected void scheduleProfiling(final VirtualFile grammarFile,
+									 final PreviewState previewState,
+									 final Editor editor,
+									 final Input input)
+	{
+		final long rev = revision.get();
+		alarm.addRequest(
+			new Runnable() {
+				@Override
+				public void run() {
+					profile(rev, grammarFile, previewState, editor, input);
+				}
+			},
+			0
+		);
+	}
+
+	/** Drop any pending or running parse; nothing will be published for it. */
+	public void cancel() {
+		revision.incrementAndGet();
+		alarm.cancelAllRequests();
+		cancelInFlight();
+	}
+
+	public boolean isCurrent(long rev) {
+		return rev==revision.get();
+	}
+
+	protected void cancelInFlight() {
+		for (ProgressIndicator indicator : inFlight) {
+			indicator.cancel();
+		}
+	}
+
+	/** Runs on a pooled thread */
+	protected void parse(final long rev,
+						 final VirtualFile grammarFile,
+						 final PreviewState previewState,
+						 final Editor editor,
+						 final Input input)
+	{
+		// profile the tree parse if we'd need a second parse for the profiler anyway
+		final boolean profile = !previewPanel.profilerPanel.twoStageParse || previewPanel.profilerVisible;
+		final long[] parseTime_ns = new long[1];
+		final ParsingResult result = run(rev, grammarFile, input, profile, parseTime_ns);
+		if ( result==RESULT_CANCELED ) {
+			return;
+		}
+		publish(rev, previewState, editor,
+				new Runnable() {
+					@Override
+					public void run() {
+						previewPanel.parsingResultAvailable(grammarFile, previewState, result,
+															profile, parseTime_ns[0]);
+					}
+				});
+	}
+
+	/** Runs on a pooled thread */
+	protected void profile(final long rev,
+						   final VirtualFile grammarFile,
+						   final PreviewState previewState,
+						   final Editor editor,
+						   final Input input)
+	{
+		final long[] parseTime_ns = new long[1];
+		final ParsingResult result = run(rev, grammarFile, input, true, parseTime_ns);
+		if ( result==RESULT_CANCELED || result==null ) {
+			return;
+		}
+		publish(rev, previewState, editor,
+				new Runnable() {
+					@Override
+					public void run() {
+						previewPanel.profilingResultAvailable(previewState, result, parseTime_ns[0]);
+					}
+				});
+	}
+
+	/** Marks a parse abandoned because a newer revision came along */
+	protected static final ParsingResult RESULT_CANCELED = new ParsingResult(null, null, null);
+
+	protected ParsingResult run(long rev,
+								final VirtualFile grammarFile,
+								final Input input,
+								final boolean profile,
+								long[] parseTime_ns)
+	{
+		final ProgressIndicator indicator = new EmptyProgressIndicator();
+		inFlight.add(indicator);
+		try {
+			// a newer request might have slipped in before we registered the indicator
+			if ( !isCurrent(rev) ) {
+				return RESULT_CANCELED;
+			}
+			final ANTLRv4PluginController controller = ANTLRv4PluginController.getInstance(previewPanel.project);
+			final ParsingResult[] result = new ParsingResult[1];
+			long start = System.nanoTime();
+			ProgressManager.getInstance().runProcess(
+				new Runnable() {
+					@Override
+					public void run() {
+						try {
+							result[0] = input.parse(controller, grammarFile, profile);
+						}
+						catch (IOException ioe) {
+							LOG.error("can't parse preview input for "+grammarFile.getPath(), ioe);
+						}
+					}
+				},
+				indicator
+			);
+			parseTime_ns[0] = System.nanoTime() - start;
+			if ( result[0]!=null ) {
+				result[0].buildOffsetIndex(); // here, not on the EDT at the first mouse move
+			}
+			return result[0];
+		}
+		catch (ProcessCanceledException pce) {
+			return RESULT_CANCELED;
+		}
+		finally {
+			inFlight.remove(indicator);
+		}
+	}
+
+	protected void publish(final long rev,
+						   final PreviewState previewState,
+						   final Editor editor,
+						   final Runnable update)
+	{
+		ApplicationManager.getApplication().invokeLater(
+			new Runnable() {
+				@Override
+				public void run() {
+					// drop stale results: newer text or the editor was swapped/released meanwhile
+					ANTLRv4PluginController controller = ANTLRv4PluginController.getInstance(previewPanel.project);
+					if ( !isCurrent(rev) || controller.projectIsClosed || previewState.getEditor()!=editor ) {
+						return;
+					}
+					update.run();
+				}
+			}
+		);
+	}
+}
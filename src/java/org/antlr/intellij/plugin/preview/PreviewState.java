@@ -3,9 +3,13 @@ package org.antlr.intellij.plugin.preview;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.EditorFactory;
 import com.intellij.openapi.vfs.VirtualFile;
+import org.antlr.intellij.plugin.parsing.InputEditLog;
 import org.antlr.intellij.plugin.parsing.ParsingResult;
+import org.antlr.intellij.plugin.parsing.PreviewInterpreterCache;
 import org.antlr.v4.tool.Grammar;
 
+import java.io.File;
+
 /** Track everything associated with the state of the preview window.
  *  For each grammar, we need to track an InputPanel (with <= 2 editor objects)
  *  that we will flip to every time we come back to a specific grammar,
@@ -28,15 +32,55 @@ public class PreviewState {
 	public CharSequence manualInputText = ""; // save input when switching grammars
 	public String inputFileName = ""; 	// save input file when switching grammars
 
+	/** Set while previewing a file, which is parsed straight from disk
+	 *  rather than from the editor's document.
+	 */
+	public File inputFile;
+
+	/** False if inputFile was too big to load into the editor, which then
+	 *  just says so; offsets into the input mean nothing there.
+	 */
+	public boolean inputFileShown = true;
+
+	/** Changes to the input editor's document, so parses know what changed
+	 *  since the text they last lexed.
+	 */
+	public final InputEditLog inputEdits = new InputEditLog();
+
 	public ParsingResult parsingResult;
 
+	/** The profiled parse of the same input as {@link #parsingResult}; the
+	 *  same object when the tree parse itself was profiled. Null if the
+	 *  profiler hasn't asked for it yet.
+	 */
+	public ParsingResult profilingResult;
+
 	/** The current input editor (inputEditor or fileEditor) for this grammar */
 	private Editor editor;
 
+	/** Input-independent interpreter data for the current g/lg; dropped
+	 *  whenever they are swapped. See {@link #getInterpreterCache()}.
+	 */
+	private PreviewInterpreterCache interpreterCache;
+
 	public PreviewState(VirtualFile grammarFile) {
 		this.grammarFile = grammarFile;
 	}
 
+	/** The cache for the current g/lg, creating one if they changed. Caller
+	 *  should read g/lg under the same lock so they match the cache.
+	 */
+	public synchronized PreviewInterpreterCache getInterpreterCache() {
+		if ( interpreterCache==null || interpreterCache.g!=g || interpreterCache.lg!=lg ) {
+			interpreterCache = new PreviewInterpreterCache(g, lg);
+		}
+		return interpreterCache;
+	}
+
+	public synchronized void invalidateInterpreterCache() {
+		interpreterCache = null;
+	}
+
 	public synchronized Editor getEditor() {
 		return editor;
 	}
@@ -46,6 +90,11 @@ public class PreviewState {
 		this.editor = editor;
 	}
 
+	/** Can we highlight tokens, errors etc... from the parse in the editor? */
+	public boolean editorShowsInput() {
+		return inputFile==null || inputFileShown;
+	}
+
 	public Grammar getMainGrammar() {
 		return g!=null ? g : lg;
 	}
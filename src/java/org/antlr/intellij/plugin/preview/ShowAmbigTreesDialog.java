@@ -58,7 +58,8 @@ public class ShowAmbigTreesDialog extends JDialog {
 	}
 
 	public void setTrees(PreviewState previewState, AmbiguityInfo ambigEvent) {
-		Parser parser = previewState.parsingResult.parser;
+		// ambiguity events come from the profiled parse
+		Parser parser = previewState.profilingResult.parser;
 		int startRuleIndex = parser.getRuleIndex(previewState.startRuleName);
 		List<ParserRuleContext> ambiguousParseTrees =
 			Parser.getAmbiguousParseTrees(parser, ambigEvent, startRuleIndex);
@@ -80,7 +81,7 @@ public class ShowAmbigTreesDialog extends JDialog {
 				}
 				ParserRuleContext ctx = ambiguousParseTrees.get(i);
 				treeViewers[i] = new TrackpadZoomingTreeView(null, null);
-				treeViewers[i].setTreeTextProvider(new AltLabelTextProvider(previewState.parsingResult.parser, previewState.g));
+				treeViewers[i].setTreeTextProvider(new AltLabelTextProvider(parser, previewState.g));
 				treeViewers[i].setTree(ctx);
 				panelOfTrees.add(treeViewers[i]);
 			}
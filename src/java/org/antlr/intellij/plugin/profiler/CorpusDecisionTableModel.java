@@ -0,0 +1,85 @@
+package org.antlr.intellij.plugin.profiler;
+
+import org.antlr.intellij.plugin.parsing.CorpusParser;
+import org.antlr.v4.runtime.atn.DecisionInfo;
+import org.antlr.v4.runtime.atn.DecisionState;
+import org.antlr.v4.tool.Grammar;
+
+/** Prediction stats per decision summed over a whole corpus; like
+ *  {@link SimpleProfilerTableDataModel} but we only have counts, not the
+ *  individual ambiguity and lookahead events.
+ */
+public class CorpusDecisionTableModel extends ProfilerTableDataModel {
+	public static final String[] columnNames = {
+		"Rule", "Invocations", "Time", "Total k", "Max k", "Ambiguities", "Context-sensitivities", "LL fallback", "DFA cache miss"
+	};
+
+	public static final String[] columnToolTips = {
+		"Rule containing the decision",
+		"# decision invocations",
+		"Rough estimate of time (ms) spent in prediction",
+		"Total lookahead symbols examined",
+		"Max lookahead symbols examined in any decision event",
+		"# of ambiguous input phrases",
+		"# of phrases where SLL and LL prediction disagreed",
+		"# of times SLL prediction failed over to full LL",
+		"# of non-DFA transitions during prediction (cache miss)"
+	};
+
+	public final CorpusParser corpusParser;
+	protected DecisionInfo[] decisionInfo;
+
+	public CorpusDecisionTableModel(CorpusParser corpusParser) {
+		this.corpusParser = corpusParser;
+		this.decisionInfo = corpusParser.getDecisionInfo();
+	}
+
+	@Override
+	public String[] getColumnNames() {
+		return columnNames;
+	}
+
+	@Override
+	public String[] getColumnToolTips() {
+		return columnToolTips;
+	}
+
+	@Override
+	public Class<?> getColumnClass(int columnIndex) {
+		return columnIndex==0 ? String.class : Long.class;
+	}
+
+	@Override
+	public int getRowCount() {
+		return decisionInfo.length;
+	}
+
+	@Override
+	public Object getValueAt(int row, int col) {
+		DecisionInfo decisionInfo = this.decisionInfo[row];
+		switch (col) {
+			case 0:
+				Grammar g = corpusParser.cache.g;
+				DecisionState ds = corpusParser.cache.getParserATN().getDecisionState(row);
+				return g.getRule(ds.ruleIndex).name;
+			case 1:
+				return decisionInfo.invocations;
+			case 2:
+				return (long) (decisionInfo.timeInPrediction / 1000.0 / 1000.0);
+			case 3:
+				return decisionInfo.LL_TotalLook+decisionInfo.SLL_TotalLook;
+			case 4:
+				return Math.max(decisionInfo.LL_MaxLook, decisionInfo.SLL_MaxLook);
+			case 5:
+				return corpusParser.getAmbiguities(row);
+			case 6:
+				return corpusParser.getContextSensitivities(row);
+			case 7:
+				return decisionInfo.LL_Fallback;
+			case 8:
+				return decisionInfo.SLL_ATNTransitions+
+					decisionInfo.LL_ATNTransitions;
+		}
+		return "n/a";
+	}
+}
@@ -0,0 +1,98 @@
+package org.antlr.intellij.plugin.profiler;
+
+import org.antlr.intellij.plugin.parsing.CorpusParser;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/** One row per file parsed by a {@link CorpusParser}; rows are appended
+ *  on the EDT as results stream in.
+ */
+public class CorpusFileTableModel extends ProfilerTableDataModel {
+	public static final String[] columnNames = {
+		"File", "Time (ms)", "Tokens", "Errors", "First error"
+	};
+
+	public static final String[] columnToolTips = {
+		"Input file, relative to the corpus directory",
+		"Time (ms) to lex and parse the file",
+		"# of tokens including EOF",
+		"# of lexer and parser syntax errors",
+		"First syntax error reported or why the file couldn't be parsed"
+	};
+
+	public final File corpusDir;
+	protected final List<CorpusParser.FileResult> results = new ArrayList<CorpusParser.FileResult>();
+
+	public CorpusFileTableModel(File corpusDir) {
+		this.corpusDir = corpusDir;
+	}
+
+	public void addResults(List<CorpusParser.FileResult> newResults) {
+		if ( newResults.isEmpty() ) {
+			return;
+		}
+		int first = results.size();
+		results.addAll(newResults);
+		fireTableRowsInserted(first, results.size()-1);
+	}
+
+	public CorpusParser.FileResult getResult(int row) {
+		return results.get(row);
+	}
+
+	@Override
+	public String[] getColumnNames() {
+		return columnNames;
+	}
+
+	@Override
+	public String[] getColumnToolTips() {
+		return columnToolTips;
+	}
+
+	@Override
+	public Class<?> getColumnClass(int columnIndex) {
+		switch (columnIndex) {
+			case 0 :
+			case 4 :
+				return String.class;
+			case 1 :
+				return Double.class;
+		}
+		return Integer.class;
+	}
+
+	@Override
+	public int getRowCount() {
+		return results.size();
+	}
+
+	@Override
+	public Object getValueAt(int row, int col) {
+		CorpusParser.FileResult result = results.get(row);
+		switch (col) {
+			case 0:
+				return getRelativePath(result.file);
+			case 1:
+				return result.parseTime_ns / (1000.0 * 1000.0);
+			case 2:
+				return result.numTokens;
+			case 3:
+				return result.numErrors;
+			case 4:
+				return result.failure!=null ? result.failure : result.firstError;
+		}
+		return "n/a";
+	}
+
+	protected String getRelativePath(File file) {
+		String dir = corpusDir.getPath();
+		String path = file.getPath();
+		if ( path.startsWith(dir) && path.length()>dir.length() ) {
+			return path.substring(dir.length()+1);
+		}
+		return path;
+	}
+}
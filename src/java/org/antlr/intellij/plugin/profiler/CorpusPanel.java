@@ -0,0 +1,156 @@
+package org.antlr.intellij.plugin.profiler;
+
+import com.intellij.openapi.fileEditor.OpenFileDescriptor;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.ui.components.JBScrollPane;
+import com.intellij.ui.table.JBTable;
+import org.antlr.intellij.plugin.parsing.CorpusParser;
+
+import javax.swing.*;
+import javax.swing.table.JTableHeader;
+import javax.swing.table.TableModel;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Results of parsing a directory with {@link CorpusParser}: a sortable
+ *  table with a row per file, filled in as the workers finish files, and
+ *  the summed prediction stats per decision once they're all done.
+ *  Double-click a file to open it.
+ */
+public class CorpusPanel extends JPanel implements CorpusParser.Listener {
+	public final Project project;
+	public final CorpusParser corpusParser;
+
+	protected final CorpusFileTableModel fileTableModel;
+	protected final JBTable fileTable;
+	protected final JBTable decisionTable;
+	protected final JLabel summaryLabel = new JLabel();
+
+	/** Results from the workers not yet shown */
+	protected final ConcurrentLinkedQueue<CorpusParser.FileResult> pending =
+		new ConcurrentLinkedQueue<CorpusParser.FileResult>();
+	protected final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+	protected int numFiles;
+	protected int numFilesWithErrors;
+	protected long numTokens;
+	protected long parseTime_ns;
+
+	public CorpusPanel(Project project, CorpusParser corpusParser, File corpusDir) {
+		super(new BorderLayout());
+		this.project = project;
+		this.corpusParser = corpusParser;
+		fileTableModel = new CorpusFileTableModel(corpusDir);
+		fileTable = createTable(fileTableModel);
+		fileTable.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				if ( e.getClickCount()==2 ) {
+					openSelectedFile();
+				}
+			}
+		});
+		if ( corpusParser.profile ) {
+			decisionTable = createTable(new CorpusDecisionTableModel(corpusParser));
+			JTabbedPane tabs = new JTabbedPane();
+			tabs.addTab("Files", new JBScrollPane(fileTable));
+			tabs.addTab("Decisions", new JBScrollPane(decisionTable));
+			add(tabs, BorderLayout.CENTER);
+		}
+		else {
+			decisionTable = null;
+			add(new JBScrollPane(fileTable), BorderLayout.CENTER);
+		}
+		summaryLabel.setBorder(BorderFactory.createEmptyBorder(2, 5, 2, 5));
+		add(summaryLabel, BorderLayout.SOUTH);
+		updateSummary("Parsing...");
+	}
+
+	protected static JBTable createTable(TableModel model) {
+		JBTable table = new JBTable(model) {
+			@Override
+			protected JTableHeader createDefaultTableHeader() {
+				return new JTableHeader(columnModel) {
+					public String getToolTipText(MouseEvent e) {
+						Point p = e.getPoint();
+						int index = columnModel.getColumnIndexAtX(p.x);
+						int realIndex = columnModel.getColumn(index).getModelIndex();
+						TableModel model = getModel();
+						if ( model instanceof ProfilerTableDataModel ) {
+							return ((ProfilerTableDataModel) model).getColumnToolTips()[realIndex];
+						}
+						return model.getColumnName(realIndex);
+					}
+				};
+			}
+		};
+		table.setAutoCreateRowSorter(true);
+		return table;
+	}
+
+	/** Called on worker threads; batch results up for the EDT */
+	@Override
+	public void fileParsed(CorpusParser.FileResult result) {
+		pending.add(result);
+		if ( flushScheduled.compareAndSet(false, true) ) {
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			});
+		}
+	}
+
+	protected void flush() {
+		flushScheduled.set(false);
+		List<CorpusParser.FileResult> results = new ArrayList<CorpusParser.FileResult>();
+		CorpusParser.FileResult result;
+		while ( (result = pending.poll())!=null ) {
+			results.add(result);
+			numFiles++;
+			numTokens += result.numTokens;
+			parseTime_ns += result.parseTime_ns;
+			if ( result.numErrors>0 || result.failure!=null ) {
+				numFilesWithErrors++;
+			}
+		}
+		fileTableModel.addResults(results);
+		updateSummary("Parsing...");
+	}
+
+	/** Call on the EDT once the corpus parser returns */
+	public void finished(boolean canceled) {
+		flush();
+		if ( decisionTable!=null ) {
+			decisionTable.setModel(new CorpusDecisionTableModel(corpusParser));
+		}
+		updateSummary(canceled ? "Canceled" : "Done");
+	}
+
+	protected void updateSummary(String status) {
+		summaryLabel.setText(String.format("%s: %d files, %d with errors, %d tokens, %d ms total parse time",
+										   status, numFiles, numFilesWithErrors, numTokens,
+										   parseTime_ns / (1000 * 1000)));
+	}
+
+	protected void openSelectedFile() {
+		int row = fileTable.getSelectedRow();
+		if ( row<0 ) {
+			return;
+		}
+		CorpusParser.FileResult result = fileTableModel.getResult(fileTable.convertRowIndexToModel(row));
+		VirtualFile vfile = LocalFileSystem.getInstance().findFileByIoFile(result.file);
+		if ( vfile!=null ) {
+			new OpenFileDescriptor(project, vfile).navigate(true);
+		}
+	}
+}
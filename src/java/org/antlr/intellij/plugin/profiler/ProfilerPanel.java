@@ -75,12 +75,34 @@ public class ProfilerPanel {
 	protected JLabel inputSizeField;
 	protected JLabel numTokensField;
 	protected JCheckBox expertCheckBox;
+	protected JCheckBox twoStageCheckBox;
+	protected JCheckBox coldDFACacheCheckBox;
+	protected JCheckBox compiledParserCheckBox;
 	protected JLabel ambiguityColorLabel;
 	protected JLabel contextSensitivityColorLabel;
 	protected JLabel predEvaluationColorLabel;
 	protected JBTable profilerDataTable;
 	protected JLabel deepestLookaheadLabel;
 
+	/** Mirrors {@link #twoStageCheckBox} for the background parser. If set,
+	 *  the parse tree comes from a cheap SLL/LL parse and the profiling parse
+	 *  runs only while the profiler tab is showing.
+	 */
+	public volatile boolean twoStageParse = true;
+
+	/** Mirrors {@link #coldDFACacheCheckBox}. Parses normally reuse the DFA
+	 *  built by earlier parses of the same grammar; if set, the profiling
+	 *  parse starts from scratch instead.
+	 */
+	public volatile boolean coldDFACache = false;
+
+	/** Mirrors {@link #compiledParserCheckBox}. If set, parse with the
+	 *  generated lexer and parser, compiled on the fly, so actions and
+	 *  predicates run and timings are those of the real thing. We fall
+	 *  back on the interpreters if the generated code isn't usable.
+	 */
+	public volatile boolean compiledParser = false;
+
 	public void grammarFileSaved(PreviewState previewState, VirtualFile grammarFile) {
 		// leave model and such alone.
 	}
@@ -111,7 +133,7 @@ public class ProfilerPanel {
 	public void setProfilerData(PreviewState previewState,
 								long parseTime_ns) {
 		this.previewState = previewState;
-		Parser parser = previewState.parsingResult.parser;
+		Parser parser = previewState.profilingResult.parser;
 		ParseInfo parseInfo = parser.getParseInfo();
 		updateTableModelPerExpertCheckBox(parseInfo);
 		long parseTimeMS = (long) (parseTime_ns / (1000.0 * 1000.0));
@@ -146,10 +168,20 @@ public class ProfilerPanel {
 		);
 		double atnLook = parseInfo.getTotalATNLookaheadOps();
 		cacheMissRateField.setText(
-			String.format("%d/%d = %3.2f%%", (long) atnLook, (long) look, atnLook * 100.0 / look)
+			String.format("%d/%d = %3.2f%% (%s)", (long) atnLook, (long) look, atnLook * 100.0 / look,
+						  coldDFACache ? "cold" : "warm")
 		);
 	}
 
+	/** Reparse so the tree and profiler reflect a change of parse options */
+	public void reparseCurrentInput() {
+		ANTLRv4PluginController controller = ANTLRv4PluginController.getInstance(project);
+		PreviewState previewState = controller.getPreviewState();
+		if (previewState != null && previewState.startRuleName != null) {
+			controller.getPreviewPanel().updateParseTreeFromDoc(previewState.grammarFile);
+		}
+	}
+
 	public void updateTableModelPerExpertCheckBox(ParseInfo parseInfo) {
 		AbstractTableModel model;
 		if (expertCheckBox.isSelected()) {
@@ -182,7 +214,7 @@ public class ProfilerPanel {
 		CommonToken startToken = (CommonToken) tokens.get(region.a);
 		CommonToken stopToken = (CommonToken) tokens.get(region.b);
 		JBColor effectColor = JBColor.darkGray;
-		DecisionInfo decisionInfo = previewState.parsingResult.parser.getParseInfo().getDecisionInfo()[decision];
+		DecisionInfo decisionInfo = previewState.profilingResult.parser.getParseInfo().getDecisionInfo()[decision];
 		if (decisionInfo.predicateEvals.size() > 0) {
 			effectColor = new JBColor(PREDEVAL_COLOR, AMBIGUITY_COLOR);
 		}
@@ -216,7 +248,7 @@ public class ProfilerPanel {
 //		ANTLRv4PluginController controller = ANTLRv4PluginController.getInstance(project);
 //		Editor grammarEditor = controller.getCurrentGrammarEditor();
 //
-//		ParseInfo parseInfo = previewState.parsingResult.parser.getParseInfo();
+//		ParseInfo parseInfo = previewState.profilingResult.parser.getParseInfo();
 //		DecisionInfo[] decisionInfo = parseInfo.getDecisionInfo();
 //
 //		for (DecisionState decisionState : previewState.g.atn.decisionToState) {
@@ -258,10 +290,10 @@ public class ProfilerPanel {
 	}
 
 	public void highlightPhrases(PreviewState previewState, int decision) {
-		if (previewState.parsingResult == null) {
+		if (previewState.profilingResult == null || !previewState.editorShowsInput()) {
 			return;
 		}
-		ParseInfo parseInfo = previewState.parsingResult.parser.getParseInfo();
+		ParseInfo parseInfo = previewState.profilingResult.parser.getParseInfo();
 		Editor editor = previewState.getEditor();
 		ScrollingModel scrollingModel = editor.getScrollingModel();
 		CaretModel caretModel = editor.getCaretModel();
@@ -313,7 +345,7 @@ public class ProfilerPanel {
 	public Token addDecisionEventHighlighter(PreviewState previewState, MarkupModel markupModel,
 											 DecisionEventInfo info, Color errorStripeColor,
 											 EffectType effectType) {
-		TokenStream tokens = previewState.parsingResult.parser.getInputStream();
+		TokenStream tokens = previewState.profilingResult.parser.getInputStream();
 		Token startToken = tokens.get(info.startIndex);
 		Token stopToken = tokens.get(info.stopIndex);
 		TextAttributes textAttributes =
@@ -338,7 +370,7 @@ public class ProfilerPanel {
 		Grammar g = previewState.g;
 		String semanticContextDisplayString = g.getSemanticContextDisplayString(semctx);
 		if (semctx instanceof SemanticContext.PrecedencePredicate) {
-			int ruleIndex = previewState.parsingResult.parser.getATN().decisionToState.get(pred.decision).ruleIndex;
+			int ruleIndex = previewState.profilingResult.parser.getATN().decisionToState.get(pred.decision).ruleIndex;
 			Rule rule = g.getRule(ruleIndex);
 			int precedence = ((SemanticContext.PrecedencePredicate) semctx).precedence;
 			// precedence = n - originalAlt + 1, So:
@@ -367,7 +399,7 @@ public class ProfilerPanel {
 		outerPanel = new JPanel();
 		outerPanel.setLayout(new BorderLayout(0, 0));
 		statsPanel = new JPanel();
-		statsPanel.setLayout(new GridLayoutManager(12, 3, new Insets(0, 5, 0, 0), -1, -1));
+		statsPanel.setLayout(new GridLayoutManager(15, 3, new Insets(0, 5, 0, 0), -1, -1));
 		outerPanel.add(statsPanel, BorderLayout.EAST);
 		final JLabel label1 = new JLabel();
 		label1.setText("Parse time (ms):");
@@ -382,7 +414,7 @@ public class ProfilerPanel {
 		label4.setText("DFA cache miss rate:");
 		statsPanel.add(label4, new GridConstraints(5, 0, 1, 1, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, null, new Dimension(130, 16), null, 0, false));
 		final Spacer spacer1 = new Spacer();
-		statsPanel.add(spacer1, new GridConstraints(11, 0, 1, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_VERTICAL, 1, GridConstraints.SIZEPOLICY_WANT_GROW, null, new Dimension(-1, 14), null, 0, false));
+		statsPanel.add(spacer1, new GridConstraints(14, 0, 1, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_VERTICAL, 1, GridConstraints.SIZEPOLICY_WANT_GROW, null, new Dimension(-1, 14), null, 0, false));
 		final Spacer spacer2 = new Spacer();
 		statsPanel.add(spacer2, new GridConstraints(2, 2, 1, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_HORIZONTAL, GridConstraints.SIZEPOLICY_WANT_GROW, 1, null, null, null, 0, false));
 		parseTimeField = new JLabel();
@@ -423,6 +455,15 @@ public class ProfilerPanel {
 		panel1.add(deepestLookaheadLabel, new GridConstraints(3, 0, 1, 1, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_FIXED, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
 		expertCheckBox.setText("Show expert columns");
 		statsPanel.add(expertCheckBox, new GridConstraints(6, 0, 1, 1, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
+		twoStageCheckBox.setText("Fast SLL/LL parse when profiler hidden");
+		twoStageCheckBox.setToolTipText("Build the parse tree with two-stage SLL/LL prediction and profile only while this tab is showing");
+		statsPanel.add(twoStageCheckBox, new GridConstraints(11, 0, 1, 2, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
+		coldDFACacheCheckBox.setText("Profile with cold DFA cache");
+		coldDFACacheCheckBox.setToolTipText("Profile as if parsing for the first time instead of reusing the DFA built by earlier parses");
+		statsPanel.add(coldDFACacheCheckBox, new GridConstraints(12, 0, 1, 2, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
+		compiledParserCheckBox.setText("Run compiled parser from generated code");
+		compiledParserCheckBox.setToolTipText("Compile and run the generated Java lexer and parser, with actions and predicates, instead of interpreting the grammar");
+		statsPanel.add(compiledParserCheckBox, new GridConstraints(13, 0, 1, 2, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
 		final JScrollPane scrollPane1 = new JScrollPane();
 		outerPanel.add(scrollPane1, BorderLayout.CENTER);
 		profilerDataTable.setPreferredScrollableViewportSize(new Dimension(800, 400));
@@ -436,15 +477,42 @@ public class ProfilerPanel {
 		return outerPanel;
 	}
 
+	/** The tree now showing came from a parse that wasn't profiled, so the
+	 *  decision table and the ambiguity and lookahead highlights in the
+	 *  input editor are for text that's gone. Drop them until the profiling
+	 *  parse catches up.
+	 */
+	public void clearProfilerData(PreviewState previewState) {
+		this.previewState = previewState;
+		DefaultTableModel model = new DefaultTableModel();
+		profilerDataTable.setModel(model);
+		profilerDataTable.setRowSorter(new TableRowSorter<AbstractTableModel>(model));
+		JLabel[] fields = {parseTimeField, predictionTimeField, inputSizeField,
+						   numTokensField, lookaheadBurdenField, cacheMissRateField};
+		for (JLabel field : fields) {
+			field.setText("");
+		}
+		Editor editor = previewState.getEditor();
+		if ( editor==null ) {
+			return;
+		}
+		MarkupModel markupModel = editor.getMarkupModel();
+		for (RangeHighlighter r : markupModel.getAllHighlighters()) {
+			if ( r.getUserData(DECISION_EVENT_INFO_KEY)!=null ) {
+				markupModel.removeHighlighter(r);
+			}
+		}
+	}
+
 	class ProfileTableCellRenderer extends DefaultTableCellRenderer {
 		public Component getTableCellRendererComponent(JTable table, Object value,
 													   boolean isSelected, boolean hasFocus,
 													   int row, int column) {
 			Component c = super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
-			if (previewState == null || previewState.parsingResult == null) {
+			if (previewState == null || previewState.profilingResult == null) {
 				return c;
 			}
-			ParseInfo parseInfo = previewState.parsingResult.parser.getParseInfo();
+			ParseInfo parseInfo = previewState.profilingResult.parser.getParseInfo();
 			int decision = profilerDataTable.convertRowIndexToModel(row);
 			DecisionInfo[] decisions = parseInfo.getDecisionInfo();
 			if (decision >= decisions.length) {
@@ -470,10 +538,40 @@ public class ProfilerPanel {
 		expertCheckBox.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				ParseInfo parseInfo = previewState.parsingResult.parser.getParseInfo();
+				if (previewState == null || previewState.profilingResult == null) {
+					return;
+				}
+				ParseInfo parseInfo = previewState.profilingResult.parser.getParseInfo();
 				updateTableModelPerExpertCheckBox(parseInfo);
 			}
 		});
+		twoStageCheckBox = new JBCheckBox();
+		twoStageCheckBox.setSelected(twoStageParse);
+		twoStageCheckBox.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				twoStageParse = twoStageCheckBox.isSelected();
+				reparseCurrentInput();
+			}
+		});
+		coldDFACacheCheckBox = new JBCheckBox();
+		coldDFACacheCheckBox.setSelected(coldDFACache);
+		coldDFACacheCheckBox.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				coldDFACache = coldDFACacheCheckBox.isSelected();
+				reparseCurrentInput();
+			}
+		});
+		compiledParserCheckBox = new JBCheckBox();
+		compiledParserCheckBox.setSelected(compiledParser);
+		compiledParserCheckBox.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				compiledParser = compiledParserCheckBox.isSelected();
+				reparseCurrentInput();
+			}
+		});
 		profilerDataTable = new JBTable() {
 			@Override
 			protected JTableHeader createDefaultTableHeader() {
@@ -510,7 +608,8 @@ public class ProfilerPanel {
 						return;
 					}
 					PreviewState previewState = ANTLRv4PluginController.getInstance(project).getPreviewState();
-					if (previewState != null && profilerDataTable.getModel().getClass() != DefaultTableModel.class) {
+					if (previewState != null && previewState.profilingResult != null &&
+						profilerDataTable.getModel().getClass() != DefaultTableModel.class) {
 						int selectedRow = profilerDataTable.getSelectedRow();
 						if (selectedRow == -1) {
 							selectedRow = 0;
@@ -3,8 +3,9 @@ package org.antlr.intellij.plugin.psi;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.TextRange;
 import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiReferenceBase;
-import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.util.ArrayUtil;
 import com.intellij.util.IncorrectOperationException;
 import org.antlr.intellij.plugin.ANTLRv4TokenTypes;
 import org.antlr.intellij.plugin.parser.ANTLRv4Lexer;
@@ -27,14 +28,10 @@ public class GrammarElementRef extends PsiReferenceBase<GrammarElementRefNode> {
 	@Override
 	public Object[] getVariants() {
 		String prefix = myElement.getText();
-		RulesNode rules = PsiTreeUtil.getContextOfType(myElement, RulesNode.class);
-		// find all rule defs (token, parser)
-		Collection<? extends RuleSpecNode> ruleSpecNodes =
-			PsiTreeUtil.findChildrenOfAnyType(rules,
-											  new Class[] {
-												ParserRuleSpecNode.class,
-											  	LexerRuleSpecNode.class}
-											 );
+		// all rule defs (token, parser) visible here, incl. imported and tokenVocab ones
+		PsiFile file = myElement.getContainingFile();
+		if ( file==null ) return ArrayUtil.EMPTY_OBJECT_ARRAY;
+		Collection<? extends RuleSpecNode> ruleSpecNodes = GrammarSymbolTable.getRuleSpecs(file);
 
 		return ruleSpecNodes.toArray();
 //
@@ -0,0 +1,131 @@
+package org.antlr.intellij.plugin.psi;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.util.PsiTreeUtil;
+import org.antlr.intellij.plugin.ANTLRv4TokenTypes;
+import org.antlr.intellij.plugin.parser.ANTLRv4Lexer;
+import org.antlr.intellij.plugin.parser.ANTLRv4Parser;
+import org.antlr.v4.parse.ANTLRParser;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** What a grammar says about itself before its rules: type, name, options,
+ *  imports and tokens. ANTLRv4FileRoot keeps one and only builds a new one
+ *  when the text before the rules changes, so edits to rules leave it alone.
+ *  (This grammar of ANTLR has no channels {...} section yet.)
+ */
+public class GrammarHeader {
+	private static final IElementType GRAMMAR_TYPE = ANTLRv4TokenTypes.getRuleElementType(ANTLRv4Parser.RULE_grammarType);
+	private static final IElementType ID = ANTLRv4TokenTypes.getRuleElementType(ANTLRv4Parser.RULE_id);
+	private static final IElementType PREQUEL = ANTLRv4TokenTypes.getRuleElementType(ANTLRv4Parser.RULE_prequelConstruct);
+	private static final IElementType OPTIONS_SPEC = ANTLRv4TokenTypes.getRuleElementType(ANTLRv4Parser.RULE_optionsSpec);
+	private static final IElementType OPTION = ANTLRv4TokenTypes.getRuleElementType(ANTLRv4Parser.RULE_option);
+	private static final IElementType OPTION_VALUE = ANTLRv4TokenTypes.getRuleElementType(ANTLRv4Parser.RULE_optionValue);
+	private static final IElementType DELEGATES = ANTLRv4TokenTypes.getRuleElementType(ANTLRv4Parser.RULE_delegateGrammars);
+	private static final IElementType DELEGATE = ANTLRv4TokenTypes.getRuleElementType(ANTLRv4Parser.RULE_delegateGrammar);
+	private static final IElementType TOKENS_SPEC = ANTLRv4TokenTypes.getRuleElementType(ANTLRv4Parser.RULE_tokensSpec);
+
+	/** The text this header was built from and the last modification
+	 *  stamp of the file known to have it; see {@link #getHeader}.
+	 */
+	public final String text;
+	public volatile long modificationStamp;
+
+	/** ANTLRParser.LEXER, PARSER or COMBINED like the tool's Grammar.getType(),
+	 *  or 0 if the grammar doesn't start with a grammar declaration.
+	 */
+	public int grammarType;
+	/** The declared name, or null */
+	public String name;
+	/** Option name to value text, e.g. tokenVocab to ANTLRv4Lexer */
+	public final Map<String, String> options = new LinkedHashMap<String, String>();
+	/** Names of imported grammars, without labels */
+	public final List<String> imports = new ArrayList<String>();
+	/** Token names from tokens {...} */
+	public final List<String> tokens = new ArrayList<String>();
+
+	public GrammarHeader(PsiFile file, String text) {
+		this.text = text;
+		this.modificationStamp = file.getModificationStamp();
+		GrammarSpecNode grammar = PsiTreeUtil.getChildOfType(file, GrammarSpecNode.class);
+		if ( grammar==null ) return;
+		for (PsiElement child : grammar.getChildren()) {
+			IElementType type = child.getNode().getElementType();
+			if ( type==GRAMMAR_TYPE ) {
+				grammarType = getGrammarType(child);
+			}
+			else if ( type==ID && name==null ) {
+				name = child.getText();
+			}
+			else if ( type==PREQUEL ) {
+				addPrequel(child);
+			}
+			else if ( child instanceof RulesNode ) {
+				break;
+			}
+		}
+	}
+
+	/** The header of file, rebuilt only if the text before its rules changed */
+	public static GrammarHeader getHeader(PsiFile file, GrammarHeader cached) {
+		if ( cached!=null && cached.modificationStamp==file.getModificationStamp() ) return cached;
+		CharSequence text = getHeaderText(file);
+		if ( cached!=null && cached.text.contentEquals(text) ) {
+			// still right; skip the comparison until the file changes again
+			cached.modificationStamp = file.getModificationStamp();
+			return cached;
+		}
+		return new GrammarHeader(file, text.toString());
+	}
+
+	/** The text of file up to its rules, or all of it if it has none */
+	public static CharSequence getHeaderText(PsiFile file) {
+		CharSequence chars = file.getNode().getChars();
+		GrammarSpecNode grammar = PsiTreeUtil.getChildOfType(file, GrammarSpecNode.class);
+		RulesNode rules = grammar!=null ? PsiTreeUtil.getChildOfType(grammar, RulesNode.class) : null;
+		if ( rules==null ) return chars;
+		return chars.subSequence(0, rules.getTextRange().getStartOffset());
+	}
+
+	protected static int getGrammarType(PsiElement grammarType) {
+		ASTNode first = grammarType.getNode().getFirstChildNode();
+		IElementType type = first!=null ? first.getElementType() : null;
+		if ( type==ANTLRv4TokenTypes.getTokenElementType(ANTLRv4Lexer.LEXER) ) return ANTLRParser.LEXER;
+		if ( type==ANTLRv4TokenTypes.getTokenElementType(ANTLRv4Lexer.PARSER) ) return ANTLRParser.PARSER;
+		return ANTLRParser.COMBINED;
+	}
+
+	protected void addPrequel(PsiElement prequel) {
+		for (PsiElement spec : prequel.getChildren()) {
+			IElementType type = spec.getNode().getElementType();
+			if ( type==OPTIONS_SPEC ) {
+				for (PsiElement option : MyPsiUtils.collectChildrenOfType(spec, OPTION)) {
+					PsiElement optionName = MyPsiUtils.findChildOfType(option, ID);
+					PsiElement value = MyPsiUtils.findChildOfType(option, OPTION_VALUE);
+					if ( optionName!=null && value!=null ) {
+						options.put(optionName.getText(), value.getText());
+					}
+				}
+			}
+			else if ( type==DELEGATES ) {
+				for (PsiElement delegate : MyPsiUtils.collectChildrenOfType(spec, DELEGATE)) {
+					PsiElement[] ids = MyPsiUtils.collectChildrenOfType(delegate, ID);
+					if ( ids.length>0 ) {
+						imports.add(ids[ids.length-1].getText()); // grammar name follows the label
+					}
+				}
+			}
+			else if ( type==TOKENS_SPEC ) {
+				for (PsiElement id : MyPsiUtils.collectChildrenOfType(spec, ID)) {
+					tokens.add(id.getText());
+				}
+			}
+		}
+	}
+}
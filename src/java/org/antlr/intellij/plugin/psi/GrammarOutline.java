@@ -0,0 +1,99 @@
+package org.antlr.intellij.plugin.psi;
+
+import com.intellij.openapi.util.Key;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiRecursiveElementWalkingVisitor;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiTreeUtil;
+import org.antlr.intellij.plugin.ANTLRv4TokenTypes;
+import org.antlr.intellij.plugin.parser.ANTLRv4Parser;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** What folding, the structure view, line markers and rule lookups need to
+ *  know about a grammar file, collected in one walk over its PSI and cached
+ *  until the file's PSI changes. Everything is in document order.
+ */
+public class GrammarOutline {
+	private static final Key<CachedValue<GrammarOutline>> OUTLINE = Key.create("ANTLR_GRAMMAR_OUTLINE");
+
+	private static final IElementType OPTIONS_SPEC =
+		ANTLRv4TokenTypes.getRuleElementType(ANTLRv4Parser.RULE_optionsSpec);
+	private static final IElementType TOKENS_SPEC =
+		ANTLRv4TokenTypes.getRuleElementType(ANTLRv4Parser.RULE_tokensSpec);
+
+	/** Parser and lexer rule definitions */
+	public final List<RuleSpecNode> ruleSpecs = new ArrayList<RuleSpecNode>();
+	/** The name node of each rule in ruleSpecs that has one */
+	public final List<GrammarElementRefNode> ruleNames = new ArrayList<GrammarElementRefNode>();
+	/** Rule name to its definition; the first definition wins */
+	public final Map<String, RuleSpecNode> ruleSpecsByName = new LinkedHashMap<String, RuleSpecNode>();
+	/** Rule name to the offset of the name in its definition */
+	public final Map<String, Integer> ruleNameOffsets = new LinkedHashMap<String, Integer>();
+	/** @name {...} actions */
+	public final List<AtAction> atActions = new ArrayList<AtAction>();
+	/** The first options {...} and tokens {...} specs, or null */
+	public PsiElement optionsSpec;
+	public PsiElement tokensSpec;
+	/** Doc, block and line comments */
+	public final List<PsiElement> comments = new ArrayList<PsiElement>();
+
+	public static GrammarOutline getOutline(final PsiFile file) {
+		CachedValuesManager manager = CachedValuesManager.getManager(file.getProject());
+		return manager.getCachedValue(file, OUTLINE, new CachedValueProvider<GrammarOutline>() {
+			@Override
+			public Result<GrammarOutline> compute() {
+				return Result.create(new GrammarOutline(file), file);
+			}
+		}, false);
+	}
+
+	protected GrammarOutline(PsiFile file) {
+		file.accept(new PsiRecursiveElementWalkingVisitor() {
+			@Override
+			public void visitElement(PsiElement element) {
+				add(element);
+				super.visitElement(element);
+			}
+		});
+	}
+
+	protected void add(PsiElement element) {
+		if ( element instanceof RuleSpecNode ) {
+			RuleSpecNode spec = (RuleSpecNode)element;
+			ruleSpecs.add(spec);
+			// not getId(); a rule missing its name is a syntax error, not a bug
+			GrammarElementRefNode name = PsiTreeUtil.getChildOfType(spec, GrammarElementRefNode.class);
+			if ( name!=null ) {
+				ruleNames.add(name);
+				if ( !ruleSpecsByName.containsKey(name.getText()) ) {
+					ruleSpecsByName.put(name.getText(), spec);
+					ruleNameOffsets.put(name.getText(), name.getTextOffset());
+				}
+			}
+			return;
+		}
+		if ( element instanceof AtAction ) {
+			atActions.add((AtAction)element);
+			return;
+		}
+		if ( element.getNode()==null ) return;
+		IElementType type = element.getNode().getElementType();
+		if ( ANTLRv4TokenTypes.COMMENTS.contains(type) ) {
+			comments.add(element);
+		}
+		else if ( type==OPTIONS_SPEC && optionsSpec==null ) {
+			optionsSpec = element;
+		}
+		else if ( type==TOKENS_SPEC && tokensSpec==null ) {
+			tokensSpec = element;
+		}
+	}
+}
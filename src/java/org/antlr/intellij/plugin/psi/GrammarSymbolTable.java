@@ -0,0 +1,103 @@
+package org.antlr.intellij.plugin.psi;
+
+import com.intellij.openapi.util.Key;
+import com.intellij.psi.PsiDirectory;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiModificationTracker;
+import org.antlr.intellij.plugin.ANTLRv4FileRoot;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** The rules each grammar in the project can refer to: its own, then those
+ *  of the grammars it imports, then those of its tokenVocab lexer, and so
+ *  on through those grammars' imports and tokenVocabs. Like the ANTLR tool,
+ *  a grammar named X is looked for as X.g4 next to the grammar naming it.
+ *
+ *  A grammar's table is cached on its file and depends on just the files
+ *  it was built from, so an edit only invalidates the tables of grammars
+ *  that see the edited grammar's rules. While a named grammar is missing,
+ *  the table is rebuilt after any PSI change in case it shows up.
+ */
+public class GrammarSymbolTable {
+	private static final Key<CachedValue<Map<String, PsiFile>>> VISIBLE_RULES =
+		Key.create("ANTLR_VISIBLE_RULES");
+
+	/** Rule name to the grammar defining it as seen from file; the first
+	 *  definition wins, so a grammar's own rules hide imported ones.
+	 */
+	public static Map<String, PsiFile> getVisibleRules(final PsiFile file) {
+		CachedValuesManager manager = CachedValuesManager.getManager(file.getProject());
+		return manager.getCachedValue(file, VISIBLE_RULES, new CachedValueProvider<Map<String, PsiFile>>() {
+			@Override
+			public Result<Map<String, PsiFile>> compute() {
+				List<PsiFile> grammars = new ArrayList<PsiFile>();
+				boolean complete = collectGrammars(file, grammars);
+				Map<String, PsiFile> rules = new LinkedHashMap<String, PsiFile>();
+				for (PsiFile g : grammars) {
+					for (String ruleName : RuleNameIndex.getRuleNameOffsets(g).keySet()) {
+						if ( !rules.containsKey(ruleName) ) rules.put(ruleName, g);
+					}
+				}
+				List<Object> dependencies = new ArrayList<Object>(grammars);
+				if ( !complete ) dependencies.add(PsiModificationTracker.MODIFICATION_COUNT);
+				return Result.create(rules, dependencies.toArray());
+			}
+		}, false);
+	}
+
+	/** The rule named ruleName as seen from file, or null */
+	@Nullable
+	public static RuleSpecNode findRuleSpec(PsiFile file, String ruleName) {
+		// most refs are to the grammar's own rules; no need for the table
+		RuleSpecNode spec = RuleNameIndex.findRuleSpec(file, ruleName);
+		if ( spec!=null ) return spec;
+		PsiFile g = getVisibleRules(file).get(ruleName);
+		if ( g==null || g==file ) return null;
+		return RuleNameIndex.findRuleSpec(g, ruleName);
+	}
+
+	/** All rules visible from file */
+	public static List<RuleSpecNode> getRuleSpecs(PsiFile file) {
+		List<RuleSpecNode> specs = new ArrayList<RuleSpecNode>();
+		for (Map.Entry<String, PsiFile> rule : getVisibleRules(file).entrySet()) {
+			RuleSpecNode spec = RuleNameIndex.findRuleSpec(rule.getValue(), rule.getKey());
+			if ( spec!=null ) specs.add(spec);
+		}
+		return specs;
+	}
+
+	/** Add file and the grammars it sees, breadth first, to grammars.
+	 *  Returns false if a named grammar couldn't be found.
+	 */
+	protected static boolean collectGrammars(PsiFile file, List<PsiFile> grammars) {
+		boolean complete = true;
+		grammars.add(file);
+		for (int i = 0; i < grammars.size(); i++) {
+			PsiFile g = grammars.get(i);
+			if ( !(g instanceof ANTLRv4FileRoot) ) continue;
+			GrammarHeader header = ((ANTLRv4FileRoot)g).getGrammarHeader();
+			List<String> names = new ArrayList<String>(header.imports);
+			String vocabName = header.options.get("tokenVocab");
+			if ( vocabName!=null ) names.add(vocabName);
+			// a copy made for completion has no directory; the original does
+			PsiDirectory dir = g.getOriginalFile().getContainingDirectory();
+			for (String name : names) {
+				PsiFile imported = dir!=null ? dir.findFile(name+".g4") : null;
+				if ( imported==null ) {
+					complete = false;
+				}
+				else if ( !grammars.contains(imported) ) {
+					grammars.add(imported);
+				}
+			}
+		}
+		return complete;
+	}
+}
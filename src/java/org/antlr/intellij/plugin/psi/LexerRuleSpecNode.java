@@ -7,9 +7,12 @@ import com.intellij.psi.tree.IElementType;
 import com.intellij.psi.util.PsiTreeUtil;
 import org.antlr.intellij.adaptor.parser.PsiElementFactory;
 import org.antlr.intellij.plugin.ANTLRv4TokenTypes;
+import org.antlr.intellij.plugin.Icons;
 import org.antlr.intellij.plugin.parser.ANTLRv4Lexer;
 import org.jetbrains.annotations.NotNull;
 
+import javax.swing.*;
+
 public class LexerRuleSpecNode extends RuleSpecNode {
 	public static final Logger LOG = Logger.getInstance("org.antlr.intellij.plugin.psi.LexerRuleSpecNode");
 	public LexerRuleSpecNode(@NotNull ASTNode node) {
@@ -21,6 +24,11 @@ public class LexerRuleSpecNode extends RuleSpecNode {
 		return ANTLRv4TokenTypes.TOKEN_ELEMENT_TYPES.get(ANTLRv4Lexer.TOKEN_REF);
 	}
 
+	@Override
+	public Icon getIcon(int flags) {
+		return Icons.LEXER_RULE;
+	}
+
 	@Override
 	public GrammarElementRefNode getId() {
 		GrammarElementRefNode tr = PsiTreeUtil.getChildOfType(this, LexerRuleRefNode.class);
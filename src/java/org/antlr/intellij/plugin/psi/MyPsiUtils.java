@@ -15,8 +15,6 @@ import com.intellij.psi.util.PsiElementFilter;
 import com.intellij.psi.util.PsiTreeUtil;
 import org.antlr.intellij.plugin.ANTLRv4FileRoot;
 import org.antlr.intellij.plugin.ANTLRv4Language;
-import org.antlr.intellij.plugin.ANTLRv4TokenTypes;
-import org.antlr.intellij.plugin.parser.ANTLRv4Parser;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -119,9 +117,13 @@ public class MyPsiUtils {
         }
     }
 
+	/** Find the rule named ruleName in element's grammar or a grammar it
+	 *  imports or gets its tokenVocab from; see GrammarSymbolTable.
+	 */
 	public static PsiElement findRuleSpecNodeAbove(GrammarElementRefNode element, final String ruleName) {
-		RulesNode rules = PsiTreeUtil.getContextOfType(element, RulesNode.class);
-		return findRuleSpecNode(ruleName, rules);
+		PsiFile file = element.getContainingFile();
+		if ( file==null ) return null;
+		return GrammarSymbolTable.findRuleSpec(file, ruleName);
 	}
 
 	public static PsiElement findRuleSpecNode(final String ruleName, RulesNode rules) {
@@ -226,17 +228,12 @@ public class MyPsiUtils {
 
 	// Look for stuff like: options { tokenVocab=ANTLRv4Lexer; superClass=Foo; }
 	public static String findTokenVocabIfAny(ANTLRv4FileRoot file) {
-		String vocabName = null;
-		PsiElement[] options = collectNodesWithName(file, "option");
-		for (PsiElement o : options) {
-			PsiElement[] tokenVocab = collectChildrenWithText(o, "tokenVocab");
-			if ( tokenVocab.length>0 ) {
-				PsiElement optionNode = tokenVocab[0].getParent();// tokenVocab[0] is id node
-				PsiElement[] ids = collectChildrenOfType(optionNode, ANTLRv4TokenTypes.RULE_ELEMENT_TYPES.get(ANTLRv4Parser.RULE_optionValue));
-				vocabName = ids[0].getText();
-			}
-		}
-		return vocabName;
+		return file.getGrammarHeader().options.get("tokenVocab");
+	}
+
+	// Look for stuff like: import A, b=B; and return grammar names A, B
+	public static List<String> findImportedGrammarNames(ANTLRv4FileRoot file) {
+		return new ArrayList<String>(file.getGrammarHeader().imports);
 	}
 
 	// Can use this in file root node to change find behavior:
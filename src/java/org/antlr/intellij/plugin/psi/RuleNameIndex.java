@@ -0,0 +1,164 @@
+package org.antlr.intellij.plugin.psi;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.util.indexing.DataIndexer;
+import com.intellij.util.indexing.FileBasedIndex;
+import com.intellij.util.indexing.FileBasedIndexExtension;
+import com.intellij.util.indexing.FileContent;
+import com.intellij.util.indexing.ID;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.KeyDescriptor;
+import org.antlr.intellij.plugin.ANTLRv4FileType;
+import org.antlr.intellij.plugin.ANTLRv4TokenTypes;
+import org.antlr.intellij.plugin.parser.ANTLRv4Parser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Index of the rules each grammar defines: rule name to the offset of the
+ *  name in its definition. The first definition of a name wins, like
+ *  resolving a reference always did.
+ *
+ *  Go to Symbol looks names up across the project here. Lookups within one
+ *  file, resolving references and completion, read the same map from the
+ *  file's GrammarOutline, since the index can't list the keys of a single
+ *  file. Either way finding a rule no longer walks the tree.
+ */
+public class RuleNameIndex extends FileBasedIndexExtension<String, Integer> {
+	public static final ID<String, Integer> NAME = ID.create("antlr.v4.RuleNameIndex");
+
+	@NotNull
+	@Override
+	public ID<String, Integer> getName() {
+		return NAME;
+	}
+
+	@NotNull
+	@Override
+	public DataIndexer<String, Integer, FileContent> getIndexer() {
+		return new DataIndexer<String, Integer, FileContent>() {
+			@NotNull
+			@Override
+			public Map<String, Integer> map(FileContent inputData) {
+				return collectRuleNameOffsets(inputData.getPsiFile());
+			}
+		};
+	}
+
+	@Override
+	public KeyDescriptor<String> getKeyDescriptor() {
+		return new EnumeratorStringDescriptor();
+	}
+
+	@Override
+	public DataExternalizer<Integer> getValueExternalizer() {
+		return EnumeratorIntegerDescriptor.INSTANCE;
+	}
+
+	@Override
+	public FileBasedIndex.InputFilter getInputFilter() {
+		return new FileBasedIndex.InputFilter() {
+			@Override
+			public boolean acceptInput(VirtualFile file) {
+				return file.getFileType()==ANTLRv4FileType.INSTANCE;
+			}
+		};
+	}
+
+	@Override
+	public boolean dependsOnFileContent() {
+		return true;
+	}
+
+	@Override
+	public int getVersion() {
+		return 1;
+	}
+
+	/** The rules defined in file, in order, to the offset of each name */
+	public static Map<String, Integer> getRuleNameOffsets(PsiFile file) {
+		return GrammarOutline.getOutline(file).ruleNameOffsets;
+	}
+
+	@Nullable
+	public static RuleSpecNode findRuleSpec(PsiFile file, String ruleName) {
+		return GrammarOutline.getOutline(file).ruleSpecsByName.get(ruleName);
+	}
+
+	public static List<RuleSpecNode> getRuleSpecs(PsiFile file) {
+		return new ArrayList<RuleSpecNode>(GrammarOutline.getOutline(file).ruleSpecsByName.values());
+	}
+
+	/** The rule whose name starts at offset */
+	@Nullable
+	public static RuleSpecNode getRuleSpecAt(PsiFile file, int offset) {
+		PsiElement name = file.findElementAt(offset);
+		return PsiTreeUtil.getParentOfType(name, RuleSpecNode.class);
+	}
+
+	/** Names of all rules defined in project grammars */
+	public static Collection<String> getAllRuleNames(Project project) {
+		return FileBasedIndex.getInstance().getAllKeys(NAME, project);
+	}
+
+	/** Every rule named ruleName in a grammar in scope */
+	public static List<RuleSpecNode> findRuleSpecs(Project project, String ruleName, GlobalSearchScope scope) {
+		final PsiManager psiManager = PsiManager.getInstance(project);
+		final List<RuleSpecNode> specs = new ArrayList<RuleSpecNode>();
+		FileBasedIndex.getInstance().processValues(NAME, ruleName, null, new FileBasedIndex.ValueProcessor<Integer>() {
+			@Override
+			public boolean process(VirtualFile file, Integer offset) {
+				PsiFile psiFile = psiManager.findFile(file);
+				RuleSpecNode spec = psiFile!=null ? getRuleSpecAt(psiFile, offset) : null;
+				if ( spec!=null ) specs.add(spec);
+				return true;
+			}
+		}, scope);
+		return specs;
+	}
+
+	/** Rules are only defined right under rules and modeSpec, so only those
+	 *  are visited, not rule bodies.
+	 */
+	public static Map<String, Integer> collectRuleNameOffsets(PsiFile file) {
+		Map<String, Integer> offsets = new LinkedHashMap<String, Integer>();
+		GrammarSpecNode grammar = PsiTreeUtil.getChildOfType(file, GrammarSpecNode.class);
+		if ( grammar==null ) return offsets;
+		for (PsiElement child : grammar.getChildren()) {
+			if ( child instanceof RulesNode ) {
+				for (PsiElement ruleSpec : child.getChildren()) {
+					addRuleNameOffsets(ruleSpec, offsets);
+				}
+			}
+			else if ( child.getNode().getElementType()==ANTLRv4TokenTypes.RULE_ELEMENT_TYPES.get(ANTLRv4Parser.RULE_modeSpec) ) {
+				addRuleNameOffsets(child, offsets);
+			}
+		}
+		return offsets;
+	}
+
+	private static void addRuleNameOffsets(PsiElement parent, Map<String, Integer> offsets) {
+		for (PsiElement child : parent.getChildren()) {
+			if ( child instanceof RuleSpecNode ) {
+				// not getId(); a rule missing its name is a syntax error, not a bug
+				GrammarElementRefNode id = PsiTreeUtil.getChildOfType(child, GrammarElementRefNode.class);
+				if ( id!=null && !offsets.containsKey(id.getText()) ) {
+					offsets.put(id.getText(), id.getTextOffset());
+				}
+			}
+		}
+	}
+}
@@ -2,6 +2,7 @@ package org.antlr.intellij.plugin.psi;
 
 import com.intellij.extapi.psi.ASTWrapperPsiElement;
 import com.intellij.lang.ASTNode;
+import com.intellij.navigation.ItemPresentation;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiNamedElement;
 import com.intellij.psi.tree.IElementType;
@@ -9,6 +10,8 @@ import com.intellij.util.IncorrectOperationException;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 
+import javax.swing.*;
+
 /** Root of lexer, parser rule defs */
 public abstract class RuleSpecNode extends ASTWrapperPsiElement implements PsiNamedElement {
 	protected String name = null; // an override to input text ID
@@ -56,6 +59,27 @@ public abstract class RuleSpecNode extends ASTWrapperPsiElement implements PsiNa
 		name = null;
 	}
 
+	/** Shown by Go to Symbol */
+	@Override
+	public ItemPresentation getPresentation() {
+		return new ItemPresentation() {
+			@Override
+			public String getPresentableText() {
+				return getName();
+			}
+
+			@Override
+			public String getLocationString() {
+				return getContainingFile().getName();
+			}
+
+			@Override
+			public Icon getIcon(boolean unused) {
+				return RuleSpecNode.this.getIcon(0);
+			}
+		};
+	}
+
 	@Override
 	public int getTextOffset() {
 		GrammarElementRefNode id = getId();
@@ -1,6 +1,5 @@
 package org.antlr.intellij.plugin.structview;
 
-import com.intellij.extapi.psi.ASTWrapperPsiElement;
 import com.intellij.ide.structureView.StructureViewTreeElement;
 import com.intellij.ide.util.treeView.smartTree.SortableTreeElement;
 import com.intellij.ide.util.treeView.smartTree.TreeElement;
@@ -8,15 +7,11 @@ import com.intellij.navigation.ItemPresentation;
 import com.intellij.navigation.NavigationItem;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiNamedElement;
-import com.intellij.psi.util.PsiTreeUtil;
 import org.antlr.intellij.plugin.ANTLRv4FileRoot;
-import org.antlr.intellij.plugin.psi.LexerRuleRefNode;
-import org.antlr.intellij.plugin.psi.LexerRuleSpecNode;
-import org.antlr.intellij.plugin.psi.ParserRuleRefNode;
-import org.antlr.intellij.plugin.psi.ParserRuleSpecNode;
+import org.antlr.intellij.plugin.psi.GrammarElementRefNode;
+import org.antlr.intellij.plugin.psi.GrammarOutline;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 
 public class ANTLRv4StructureViewElement implements StructureViewTreeElement, SortableTreeElement {
@@ -63,13 +58,10 @@ public class ANTLRv4StructureViewElement implements StructureViewTreeElement, So
 	@Override
 	public TreeElement[] getChildren() {
 		if (element instanceof ANTLRv4FileRoot) {
-			// now jump into grammar to look for rules
-			Collection<ASTWrapperPsiElement> rules =
-				PsiTreeUtil.collectElementsOfType(element, new Class[]{LexerRuleSpecNode.class, ParserRuleSpecNode.class});
-//			System.out.println("rules="+rules);
-			List<TreeElement> treeElements = new ArrayList<TreeElement>(rules.size());
-			for (ASTWrapperPsiElement el : rules) {
-				PsiElement rule = PsiTreeUtil.findChildOfAnyType(el, new Class[]{LexerRuleRefNode.class, ParserRuleRefNode.class});
+			// the outline has the name nodes we show
+			List<GrammarElementRefNode> ruleNames = GrammarOutline.getOutline((ANTLRv4FileRoot)element).ruleNames;
+			List<TreeElement> treeElements = new ArrayList<TreeElement>(ruleNames.size());
+			for (GrammarElementRefNode rule : ruleNames) {
 				treeElements.add(new ANTLRv4StructureViewElement(rule));
 			}
 			return treeElements.toArray(new TreeElement[treeElements.size()]);
@@ -0,0 +1,99 @@
+package org.antlr.intellij.plugin;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiFileFactory;
+import com.intellij.psi.impl.DebugUtil;
+import com.intellij.psi.impl.source.DummyHolder;
+import com.intellij.psi.impl.source.DummyHolderFactory;
+import com.intellij.psi.impl.source.tree.TreeElement;
+import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase;
+import org.antlr.intellij.plugin.psi.RuleSpecNode;
+
+/** A rule or @action edited on its own must come out the same as it would
+ *  from parsing the whole file again. Each check does what IDEA's
+ *  BlockSupportImpl does: ask isParsable(), take createNode()'s chameleon,
+ *  put it in a dummy holder in place of the old element and parse it.
+ */
+public class ANTLRv4ReparseTest extends LightPlatformCodeInsightFixtureTestCase {
+	public static final String GRAMMAR =
+		"grammar T;\n" +
+		"@members { int i; }\n" +
+		"r : a=ID {i++;} b # One\n" +
+		"  | ID+ # Two\n" +
+		"  ;\n" +
+		"b : (A | B)* ;\n" +
+		"ID : 'a'..'z'+ -> channel(HIDDEN) ;\n" +
+		"A : 'a' ;\n";
+
+	public void testParserRuleEdit() {
+		checkReparse(GRAMMAR.replace("b # One", "b? c # One"), "r", ANTLRv4TokenTypes.PARSER_RULE_SPEC);
+	}
+
+	public void testLexerRuleEdit() {
+		checkReparse(GRAMMAR.replace("'a'..'z'+", "('a'..'z' | '_')+"), "ID", ANTLRv4TokenTypes.LEXER_RULE);
+	}
+
+	public void testActionEdit() {
+		checkReparse(GRAMMAR.replace("int i;", "int i, j; {}"), null, ANTLRv4TokenTypes.AT_ACTION);
+	}
+
+	public void testBracketsAreNotReparsedAlone() {
+		assertTrue(ANTLRv4TokenTypes.LEXER_RULE.isParsable("A : 'a' ;", ANTLRv4Language.INSTANCE, getProject()));
+		// in the file [a-z] is a char set or an arg action depending on what comes before the rule
+		assertFalse(ANTLRv4TokenTypes.LEXER_RULE.isParsable("A : [a-z] ;", ANTLRv4Language.INSTANCE, getProject()));
+		assertFalse(ANTLRv4TokenTypes.PARSER_RULE_SPEC.isParsable("r[int x] : A ;", ANTLRv4Language.INSTANCE, getProject()));
+	}
+
+	public void testBrokenRuleIsNotReparsedAlone() {
+		assertFalse(ANTLRv4TokenTypes.PARSER_RULE_SPEC.isParsable("r : a (b ;", ANTLRv4Language.INSTANCE, getProject()));
+		assertFalse(ANTLRv4TokenTypes.AT_ACTION.isParsable("@members { int i;", ANTLRv4Language.INSTANCE, getProject()));
+	}
+
+	public void testTypingMatchesFullParse() {
+		myFixture.configureByText(ANTLRv4FileType.INSTANCE, GRAMMAR.replace("(A | B)*", "(A | B<caret>)*"));
+		myFixture.type(" | C");
+		PsiDocumentManager.getInstance(getProject()).commitAllDocuments();
+		PsiFile file = myFixture.getFile();
+		assertEquals(DebugUtil.psiToString(parse(file.getText()), false), DebugUtil.psiToString(file, false));
+	}
+
+	/** Reparse the element of type in edited that rule is the name of, or
+	 *  the first such element if rule is null, and compare with a full parse.
+	 */
+	protected void checkReparse(String edited, String rule, ANTLRv4ReparseableElementType type) {
+		ASTNode expected = findElement(parse(edited), rule, type);
+		assertNotNull(expected);
+		String text = expected.getText();
+		assertTrue(type.isParsable(text, ANTLRv4Language.INSTANCE, getProject()));
+
+		ASTNode chameleon = type.createNode(text);
+		assertNotNull("no chameleon, so IDEA reparses the whole file", chameleon);
+		DummyHolder holder = DummyHolderFactory.createHolder(getPsiManager(), null, expected.getPsi());
+		holder.getTreeElement().rawAddChildren((TreeElement)chameleon);
+		assertEquals(text, holder.getText());
+		assertEquals(DebugUtil.treeToString(expected, false), DebugUtil.treeToString(chameleon, false));
+	}
+
+	protected PsiFile parse(String text) {
+		return PsiFileFactory.getInstance(getProject()).createFileFromText("T.g4", ANTLRv4Language.INSTANCE, text);
+	}
+
+	protected static ASTNode findElement(PsiFile file, String rule, ANTLRv4ReparseableElementType type) {
+		return findElement(file.getNode(), rule, type);
+	}
+
+	protected static ASTNode findElement(ASTNode node, String rule, ANTLRv4ReparseableElementType type) {
+		if ( node.getElementType()==type &&
+			 (rule==null || rule.equals(((RuleSpecNode)node.getPsi()).getName())) )
+		{
+			return node;
+		}
+		for (ASTNode child = node.getFirstChildNode(); child!=null; child = child.getTreeNext()) {
+			ASTNode found = findElement(child, rule, type);
+			if ( found!=null ) return found;
+		}
+		return null;
+	}
+}
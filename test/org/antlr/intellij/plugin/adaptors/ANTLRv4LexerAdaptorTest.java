@@ -0,0 +1,217 @@
+package org.antlr.intellij.plugin.adaptors;
+
+import org.antlr.intellij.adaptor.lexer.AntlrLexerAdapter;
+import org.antlr.intellij.plugin.ANTLRv4Language;
+import org.antlr.intellij.plugin.parser.ANTLRv4Lexer;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.misc.IntegerStack;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** The state numbers the adaptor hands the highlighter must round-trip:
+ *  restarting at any token with its state gives the same tokens as lexing
+ *  from the start, and a number keeps meaning the same state across starts.
+ *  Between rules the state is 0.
+ */
+public class ANTLRv4LexerAdaptorTest {
+	public static final String GRAMMAR =
+		"grammar T;\n" +
+		"options { tokenVocab=L; }\n" +
+		"tokens { A, B }\n" +
+		"@header { package x; }\n" +
+		"@parser::members { int i = a[0]; /* } */ }\n" +
+		"r[int x] returns [int y] @init { y = 0; } : a=ID {$y = 1;} b[2] # Alt ;\n" +
+		"b[int z, String[] s] : ID+ ;\n" +
+		"catch [Exception e] { }\n" +
+		"fragment DIGIT : [0-9] ;\n" +
+		"ID : [a-zA-Z_\\]] [a-zA-Z_0-9]* -> channel(HIDDEN) ;\n" +
+		"mode M;\n" +
+		"S : '\"' ~[\"\\]]* '\"' -> popMode ;\n" +
+		"X : [a-";
+
+	@Test
+	public void testRestartAtEveryToken() {
+		ANTLRv4LexerAdaptor adaptor = createAdaptor();
+		List<String> tokens = lex(adaptor, GRAMMAR, 0, 0);
+		List<Integer> starts = new ArrayList<Integer>();
+		List<Integer> states = new ArrayList<Integer>();
+		adaptor.start(GRAMMAR, 0, GRAMMAR.length(), 0);
+		while ( adaptor.getTokenType()!=null ) {
+			starts.add(adaptor.getTokenStart());
+			states.add(adaptor.getState());
+			adaptor.advance();
+		}
+
+		for (int i = 0; i < starts.size(); i++) {
+			List<String> restarted = lex(adaptor, GRAMMAR, starts.get(i), states.get(i));
+			assertEquals("restart at " + starts.get(i), tokens.subList(i, tokens.size()), restarted);
+		}
+	}
+
+	@Test
+	public void testStateNumbersSurviveOtherStarts() {
+		ANTLRv4LexerAdaptor adaptor = new EveryStateInternedAdaptor();
+		List<String> tokens = lex(adaptor, GRAMMAR, 0, 0);
+		List<Integer> starts = new ArrayList<Integer>();
+		List<Integer> states = new ArrayList<Integer>();
+		adaptor.start(GRAMMAR, 0, GRAMMAR.length(), 0);
+		while ( adaptor.getTokenType()!=null ) {
+			starts.add(adaptor.getTokenStart());
+			states.add(adaptor.getState());
+			adaptor.advance();
+		}
+
+		// the highlighter keeps the numbers from before while other text is lexed from the start
+		String other = generateRules(AntlrLexerAdapter.MAX_INTERNED_STATES / 4);
+		lex(adaptor, other, 0, 0);
+		lex(adaptor, other, 0, 0);
+		for (int i = 1; i < starts.size(); i++) {
+			List<String> restarted = lex(adaptor, GRAMMAR, starts.get(i), states.get(i));
+			assertEquals("restart at " + starts.get(i), tokens.subList(i, tokens.size()), restarted);
+		}
+	}
+
+	@Test
+	public void testOverflowStatesRestartAsInitial() {
+		ANTLRv4LexerAdaptor adaptor = new EveryStateInternedAdaptor();
+		String text = generateRules(AntlrLexerAdapter.MAX_INTERNED_STATES);
+		Set<Integer> states = new HashSet<Integer>();
+		int overflowState = 0;
+		int overflowStart = -1;
+		adaptor.start(text, 0, text.length(), 0);
+		while ( adaptor.getTokenType()!=null ) {
+			if ( !states.add(adaptor.getState()) && adaptor.getState()!=0 && overflowStart<0 ) {
+				overflowState = adaptor.getState();
+				overflowStart = adaptor.getTokenStart();
+			}
+			adaptor.advance();
+		}
+		assertTrue("some states overflow", overflowStart>0);
+		assertFalse("overflow state is not a restart point", overflowState==0);
+		assertEquals(AntlrLexerAdapter.MAX_INTERNED_STATES + 2, states.size()); // interned ones, 0 and the overflow
+
+		int ruleStart = text.indexOf('\n', overflowStart) + 1;
+		assertEquals(lex(adaptor, text, ruleStart, 0), lex(adaptor, text, ruleStart, overflowState));
+	}
+
+	@Test
+	public void testRuleTypeResetsAfterNamedActionsAndTokens() {
+		String text =
+			"lexer grammar L;\n" +
+			"@header { int i; }\n" +
+			"A : [a-z] ;\n" +
+			"@lexer::members { }\n" +
+			"B : [\"] ;\n";
+		assertEquals(2, countTokens(text, ANTLRv4Lexer.LEXER_CHAR_SET));
+		assertEquals(0, countTokens(text, ANTLRv4Lexer.ARG_ACTION));
+
+		text =
+			"grammar P;\n" +
+			"tokens { A, B }\n" +
+			"r : s[\"]\"] ;\n" +
+			"@members { }\n" +
+			"s[String x] : A ;\n";
+		assertEquals(0, countTokens(text, ANTLRv4Lexer.LEXER_CHAR_SET));
+		assertEquals(2, countTokens(text, ANTLRv4Lexer.ARG_ACTION));
+	}
+
+	@Test
+	public void testStateIsZeroAtRuleStarts() {
+		ANTLRv4LexerAdaptor adaptor = createAdaptor();
+		adaptor.start(GRAMMAR, 0, GRAMMAR.length(), 0);
+		while ( adaptor.getTokenType()!=null ) {
+			int start = adaptor.getTokenStart();
+			if ( start>0 && GRAMMAR.charAt(start-1)=='\n' ) {
+				assertEquals("state at " + start, 0, adaptor.getState());
+			}
+			adaptor.advance();
+		}
+	}
+
+	public static int countTokens(String text, int type) {
+		ANTLRv4Lexer lexer = new ANTLRv4Lexer(new ANTLRInputStream(text));
+		int n = 0;
+		for (Token t = lexer.nextToken(); t.getType()!=Token.EOF; t = lexer.nextToken()) {
+			if ( t.getType()==type ) n++;
+		}
+		return n;
+	}
+
+	public static ANTLRv4LexerAdaptor createAdaptor() {
+		return new ANTLRv4LexerAdaptor(ANTLRv4Language.INSTANCE, new ANTLRv4Lexer(null));
+	}
+
+	/** type:start-end/state for each token from start to the end of text */
+	public static List<String> lex(ANTLRv4LexerAdaptor adaptor, CharSequence text, int start, int state) {
+		List<String> tokens = new ArrayList<String>();
+		adaptor.start(text, start, text.length(), state);
+		while ( adaptor.getTokenType()!=null ) {
+			tokens.add(adaptor.getTokenType() + ":" + adaptor.getTokenStart() + "-" + adaptor.getTokenEnd() + "/" + adaptor.getState());
+			adaptor.advance();
+		}
+		return tokens;
+	}
+
+	public static String generateRules(int n) {
+		StringBuilder buf = new StringBuilder("lexer grammar G;\n");
+		for (int i = 0; i < n; i++) {
+			buf.append("T").append(i).append(" : [a-z] 'x' ;\n");
+		}
+		return buf.toString();
+	}
+
+	/** Interns every state but the initial one, each token position as a
+	 *  state of its own, so a long enough input fills the intern table.
+	 */
+	public static class EveryStateInternedAdaptor extends ANTLRv4LexerAdaptor {
+		public EveryStateInternedAdaptor() {
+			super(ANTLRv4Language.INSTANCE, new ANTLRv4Lexer(null));
+		}
+
+		@Override
+		protected int getExtraState(Lexer lexer) {
+			return -1;
+		}
+
+		@Override
+		protected ANTLRv4LexerState getLexerState(Lexer lexer) {
+			ANTLRv4Lexer v4Lexer = (ANTLRv4Lexer)lexer;
+			if ( lexer._mode==Lexer.DEFAULT_MODE && lexer._modeStack.isEmpty() &&
+				 v4Lexer.getCurrentRuleType()==getInitialState().getCurrentRuleType() )
+			{
+				return getInitialState();
+			}
+			return new PositionedState(lexer._mode, lexer._modeStack.isEmpty() ? null : lexer._modeStack,
+									   v4Lexer.getCurrentRuleType(), lexer._input.index());
+		}
+	}
+
+	public static class PositionedState extends ANTLRv4LexerState {
+		public final int index;
+
+		public PositionedState(int mode, IntegerStack modeStack, int currentRuleType, int index) {
+			super(mode, modeStack, currentRuleType);
+			this.index = index;
+		}
+
+		@Override
+		protected int hashCodeImpl() {
+			return super.hashCodeImpl() * 31 + index;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof PositionedState && super.equals(obj) && ((PositionedState)obj).index==index;
+		}
+	}
+}
@@ -0,0 +1,393 @@
+package org.antlr.intellij.plugin.parsing;
+
+import org.antlr.intellij.adaptor.parser.SyntaxError;
+import org.antlr.intellij.adaptor.parser.SyntaxErrorListener;
+import org.antlr.v4.runtime.BufferedTokenStream;
+import org.antlr.v4.runtime.LexerInterpreter;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import org.antlr.v4.tool.Grammar;
+import org.antlr.v4.tool.LexerGrammar;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/** Relexing and reparsing edited preview input must give what lexing and
+ *  parsing it from scratch gives, whether the edit comes from the
+ *  {@link InputEditLog} or from comparing the texts, while reusing what's
+ *  before and after the edit and leaving the previous tree alone.
+ */
+public class IncrementalParseTest {
+	public static final String LEXER =
+		"lexer grammar L;\n" +
+		"ID : [a-z]+ ;\n" +
+		"INT : [0-9]+ ;\n" +
+		"DOTS : '...' ;\n" +
+		"DOT : '.' ;\n" +
+		"EQ : '=' ;\n" +
+		"SEMI : ';' ;\n" +
+		"LP : '(' ;\n" +
+		"RP : ')' ;\n" +
+		"LB : '{' ;\n" +
+		"RB : '}' ;\n" +
+		"STAR : '*' ;\n" +
+		"PLUS : '+' ;\n" +
+		"COMMENT : '/*' .*? '*/' -> channel(HIDDEN) ;\n" +
+		"WS : [ \\t\\n]+ -> skip ;\n" +
+		"QUOTE : '\"' -> pushMode(STR) ;\n" +
+		"mode STR;\n" +
+		"ESC : '\\\\' . ;\n" +
+		"TEXT : ~[\"\\\\]+ ;\n" +
+		"END : '\"' -> popMode ;\n";
+
+	/** What the edits are made of; '#' and unterminated comments and strings make errors */
+	public static final String[] PIECES = {
+		"a", "bc", "x", "12", " ", "\n", "\n\n", "\"", "\\", "(", ")", "{", "}",
+		";", "=", "+", "*", "/*", "*/", ".", "..", "#"
+	};
+
+	public static final String PARSER =
+		"grammar T;\n" +
+		"prog : stat* EOF ;\n" +
+		"stat : ID '=' expr ';' | 'print' expr ';' | '{' stat* '}' | ';' ;\n" +
+		"expr : expr ('*'|'/') expr | expr ('+'|'-') expr | '(' expr ')' | ID | INT | STRING ;\n" +
+		"ID : [a-z]+ ;\n" +
+		"INT : [0-9]+ ;\n" +
+		"STRING : '\"' ~'\"'* '\"' ;\n" +
+		"COMMENT : '/*' .*? '*/' -> channel(HIDDEN) ;\n" +
+		"WS : [ \\t\\n]+ -> skip ;\n";
+
+	public static final String[] STATEMENT_PIECES = {
+		"a = 1;", "print b * (c + 2);", "x = \"s\";", "{", "}", ";", "(", ")", "+", "*",
+		"x", "1", " ", "\n", "/*", "*/", "\"", "=", "print", "#"
+	};
+
+	@Test
+	public void testEditsFromLog() {
+		checkRandomEdits(new PreviewInterpreterCache(null, lexerGrammar()), true, 1);
+	}
+
+	@Test
+	public void testEditsFoundByComparing() {
+		checkRandomEdits(new PreviewInterpreterCache(null, lexerGrammar()), false, 2);
+	}
+
+	@Test
+	public void testTokensAroundEditAreReused() {
+		PreviewInterpreterCache cache = new PreviewInterpreterCache(null, lexerGrammar());
+		StringBuilder buf = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			buf.append("a").append(i).append(" = (b + \"s\\\"\") * 3; /* c */\n");
+		}
+		String text = buf.toString();
+		IncrementalTokenSource.Snapshot old = lex(cache, text, 0, null, null).getSnapshot();
+
+		InputEditLog edits = new InputEditLog();
+		int offset = text.indexOf("a500 ");
+		edits.edited(offset + 1, 3, 1); // a500 -> a0
+		String edited = text.substring(0, offset + 1) + "0" + text.substring(offset + 4);
+		IncrementalTokenSource tokens = lex(cache, edited, edits.getVersion(), edits, old);
+		IncrementalTokenSource.Snapshot snapshot = tokens.getSnapshot();
+		assertEquals(describe(lex(cache, edited, -1, null, null).getSnapshot()), describe(snapshot));
+
+		IncrementalTokenSource.Shift shift = tokens.getShift();
+		assertNotNull(shift);
+		int reused = tokens.getReusedTokenCount();
+		assertTrue("relexed " + (shift.oldTokenStart - reused) + " tokens", shift.oldTokenStart - reused < 5);
+		for (int i = 0; i < reused; i++) {
+			assertSame(old.tokens.get(i), snapshot.tokens.get(i));
+		}
+		assertEquals(-2, shift.delta);
+		assertEquals(0, shift.lineDelta);
+		assertEquals(old.tokens.size() - snapshot.tokens.size(), -shift.tokenDelta);
+	}
+
+	@Test
+	public void testEditLogMergesEdits() {
+		InputEditLog edits = new InputEditLog();
+		long v0 = edits.getVersion();
+		edits.edited(10, 2, 5);	// old [10,12) is now [10,15)
+		edits.edited(20, 0, 3);	// and old [17,17) [20,23)
+		edits.edited(4, 1, 0);	// and old [4,5) [4,4)
+		InputEditLog.Edit e = edits.getEdit(v0, edits.getVersion());
+		assertEquals(4, e.offset);
+		assertEquals(13, e.oldLength);
+		assertEquals(18, e.newLength);
+
+		edits.reset();
+		assertEquals(null, edits.getEdit(v0, edits.getVersion()));
+	}
+
+	@Test
+	public void testEditsReparseLikeFreshParse() {
+		checkRandomParses(1, true);
+		checkRandomParses(2, false);
+	}
+
+	@Test
+	public void testChildrenAroundEditAreReused() {
+		PreviewInterpreterCache cache = new PreviewInterpreterCache(parserGrammar(), parserGrammar());
+		StringBuilder buf = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			buf.append("a = (b + ").append(i).append(") * 3; /* c */\n");
+		}
+		String text = buf.toString();
+		InputEditLog edits = new InputEditLog();
+		CountingParser old = parse(cache, text, edits.getVersion(), edits);
+		ParserRuleContext oldTree = old.tree;
+		List<String> oldDescription = describe(oldTree, old);
+		assertEquals(0, old.errors.size());
+		assertTrue(old.matched>5000);
+
+		int offset = text.indexOf("a = (b + 500)");
+		edits.edited(offset + 2, 1, 2); // a = -> a +=
+		String edited = text.substring(0, offset + 2) + "+=" + text.substring(offset + 3);
+		CountingParser parser = parse(cache, edited, edits.getVersion(), edits);
+		assertTrue("matched " + parser.matched, parser.matched<30);
+		assertEquals(1, parser.errors.size()); // no viable alternative at '+'
+		CountingParser fresh = parseFresh(cache, edited);
+		assertEquals(describe(fresh.tree, fresh), describe(parser.tree, parser));
+		assertEquals(oldDescription, describe(oldTree, old));
+
+		// and back
+		edits.edited(offset + 2, 2, 1);
+		parser = parse(cache, text, edits.getVersion(), edits);
+		assertTrue("matched " + parser.matched, parser.matched<30);
+		assertEquals(0, parser.errors.size());
+		assertEquals(oldDescription, describe(parser.tree, parser));
+	}
+
+	/** Make random edits, reparse incrementally after each and compare with
+	 *  parsing from scratch. The previous tree must come through unchanged.
+	 */
+	public static void checkRandomParses(long seed, boolean useLog) {
+		PreviewInterpreterCache cache = new PreviewInterpreterCache(parserGrammar(), parserGrammar());
+		Random random = new Random(seed);
+		InputEditLog edits = new InputEditLog();
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			text.append(STATEMENT_PIECES[random.nextInt(STATEMENT_PIECES.length)]);
+		}
+		CountingParser old = parse(cache, text.toString(), edits.getVersion(), edits);
+		for (int i = 0; i < 300; i++) {
+			int n = 1 + random.nextInt(3);
+			for (int j = 0; j < n; j++) {
+				int offset = random.nextInt(text.length() + 1);
+				int oldLength = Math.min(random.nextInt(4), text.length() - offset);
+				String inserted = random.nextInt(3)==0 ? "" : STATEMENT_PIECES[random.nextInt(STATEMENT_PIECES.length)];
+				text.replace(offset, offset + oldLength, inserted);
+				edits.edited(offset, oldLength, inserted.length());
+			}
+			String s = text.toString();
+			List<String> oldDescription = describe(old.tree, old);
+			CountingParser parser = useLog ? parse(cache, s, edits.getVersion(), edits) : parse(cache, s, -1, null);
+			CountingParser fresh = parseFresh(cache, s);
+			assertEquals("edit " + i + " of:\n" + s, describe(fresh.tree, fresh), describe(parser.tree, parser));
+			assertEquals("edit " + i + " of:\n" + s, describeErrors(fresh.errors), describeErrors(parser.errors));
+			assertEquals("edit " + i + " changed the old tree", oldDescription, describe(old.tree, old));
+			old = parser;
+		}
+	}
+
+	/** Counts the tokens it matches, so we can tell what it didn't reparse */
+	public static class CountingParser extends PreviewParser {
+		public int matched = 0;
+		public ParserRuleContext tree;
+		public List<SyntaxError> errors;
+
+		public CountingParser(PreviewInterpreterCache cache, ParseSnapshot.LookaheadTrackingTokenStream input) {
+			super(cache, input);
+		}
+
+		@Override
+		public Token match(int ttype) throws RecognitionException {
+			matched++;
+			return super.match(ttype);
+		}
+	}
+
+	/** Lex and parse text as the preview does, from cache's snapshots of the
+	 *  last such parse, and leave snapshots for the next. edits may be null.
+	 */
+	public static CountingParser parse(PreviewInterpreterCache cache, String text, long version, InputEditLog edits) {
+		IncrementalTokenSource.LookaheadTrackingInputStream input =
+			new IncrementalTokenSource.LookaheadTrackingInputStream(text);
+		SyntaxErrorListener listener = new SyntaxErrorListener();
+		LexerInterpreter lexer = cache.createLexerInterpreter(input, false);
+		lexer.removeErrorListeners();
+		lexer.addErrorListener(listener);
+		IncrementalTokenSource tokenSource =
+			new IncrementalTokenSource(lexer, input, text, version, edits, cache.lexerSnapshot, listener);
+		ParseSnapshot.LookaheadTrackingTokenStream tokens = new ParseSnapshot.LookaheadTrackingTokenStream(tokenSource);
+		CountingParser parser = new CountingParser(cache, tokens);
+		parser.removeErrorListeners();
+		parser.addErrorListener(listener);
+
+		int startRuleIndex = cache.g.getRule("prog").index;
+		parser.tree = (ParserRuleContext)ParsingUtils.parse(cache, parser, tokens, tokenSource, edits,
+															startRuleIndex, false, false, listener);
+		parser.errors = listener.getSyntaxErrors();
+		return parser;
+	}
+
+	public static CountingParser parseFresh(PreviewInterpreterCache cache, String text) {
+		PreviewInterpreterCache freshCache = new PreviewInterpreterCache(cache.g, cache.lg);
+		return parse(freshCache, text, -1, null);
+	}
+
+	/** Each node with its depth, rule and alt or token, and token positions.
+	 *  Checks that parents are right and that tokens are parser's.
+	 */
+	public static List<String> describe(ParserRuleContext tree, PreviewParser parser) {
+		BufferedTokenStream tokens = (BufferedTokenStream)parser.getTokenStream();
+		List<String> nodes = new ArrayList<String>();
+		ArrayDeque<ParseTree> work = new ArrayDeque<ParseTree>();
+		ArrayDeque<Integer> depths = new ArrayDeque<Integer>();
+		work.push(tree);
+		depths.push(0);
+		while ( !work.isEmpty() ) {
+			ParseTree t = work.pop();
+			int depth = depths.pop();
+			if ( t instanceof TerminalNode ) {
+				Token token = ((TerminalNode)t).getSymbol();
+				checkToken(tokens, token);
+				nodes.add(depth + (t instanceof ErrorNode ? " error " : " ") + describe(token) +
+						  " state " + parser.inputTokenToStateMap.get(token));
+				continue;
+			}
+			ParserRuleContext ctx = (ParserRuleContext)t;
+			checkToken(tokens, ctx.start);
+			checkToken(tokens, ctx.stop);
+			nodes.add(depth + " " + ctx.getRuleIndex() + "/" + ((PreviewInterpreterRuleContext)ctx).outerAltNum +
+					  " " + describe(ctx.start) + " .. " + describe(ctx.stop) +
+					  (ctx.exception!=null ? " exception" : ""));
+			for (int i = ctx.getChildCount()-1; i>=0; i--) {
+				assertSame(ctx, ctx.getChild(i).getParent());
+				work.push(ctx.getChild(i));
+				depths.push(depth + 1);
+			}
+		}
+		return nodes;
+	}
+
+	public static void checkToken(BufferedTokenStream tokens, Token token) {
+		if ( token!=null && token.getTokenIndex()>=0 ) {
+			assertSame(tokens.get(token.getTokenIndex()), token);
+		}
+	}
+
+	public static String describe(Token t) {
+		if ( t==null ) {
+			return "null";
+		}
+		return t.getTokenIndex() + ":" + t.getType() + ":" + t.getStartIndex() + "-" + t.getStopIndex() +
+			   "@" + t.getLine() + ":" + t.getCharPositionInLine() + " " + t.getText();
+	}
+
+	/** Lexer errors come before parser errors once tokens are buffered; order doesn't matter */
+	public static List<String> describeErrors(List<SyntaxError> errors) {
+		List<String> described = new ArrayList<String>();
+		for (SyntaxError se : errors) {
+			Token t = se.getOffendingSymbol() instanceof Token ? (Token)se.getOffendingSymbol() : null;
+			described.add(se.getLine() + ":" + se.getCharPositionInLine() + " " + se.getMessage() +
+						  (t!=null ? " at " + t.getStartIndex() + "-" + t.getStopIndex() : ""));
+		}
+		Collections.sort(described);
+		return described;
+	}
+
+	/** Make random edits, relex incrementally after each and compare with lexing from scratch */
+	public static void checkRandomEdits(PreviewInterpreterCache cache, boolean useLog, long seed) {
+		Random random = new Random(seed);
+		InputEditLog edits = new InputEditLog();
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 300; i++) {
+			text.append(PIECES[random.nextInt(PIECES.length)]);
+		}
+		IncrementalTokenSource.Snapshot old = lex(cache, text.toString(), edits.getVersion(), edits, null).getSnapshot();
+		for (int i = 0; i < 500; i++) {
+			// a few edits between parses, as when typing fast
+			int n = 1 + random.nextInt(3);
+			for (int j = 0; j < n; j++) {
+				int offset = random.nextInt(text.length() + 1);
+				int oldLength = Math.min(random.nextInt(4), text.length() - offset);
+				String inserted = random.nextInt(3)==0 ? "" : PIECES[random.nextInt(PIECES.length)];
+				text.replace(offset, offset + oldLength, inserted);
+				edits.edited(offset, oldLength, inserted.length());
+			}
+			String s = text.toString();
+			IncrementalTokenSource incremental =
+				useLog ? lex(cache, s, edits.getVersion(), edits, old) : lex(cache, s, -1, null, old);
+			IncrementalTokenSource.Snapshot fresh = lex(cache, s, -1, null, null).getSnapshot();
+			assertEquals("edit " + i + " of:\n" + s, describe(fresh), describe(incremental.getSnapshot()));
+			assertEquals("edit " + i + " of:\n" + s, describeErrors(fresh), describeErrors(incremental.getSnapshot()));
+			old = incremental.getSnapshot();
+		}
+	}
+
+	public static IncrementalTokenSource lex(PreviewInterpreterCache cache, String text,
+											 long version, InputEditLog edits,
+											 IncrementalTokenSource.Snapshot old)
+	{
+		IncrementalTokenSource.LookaheadTrackingInputStream input =
+			new IncrementalTokenSource.LookaheadTrackingInputStream(text);
+		SyntaxErrorListener listener = new SyntaxErrorListener();
+		LexerInterpreter lexer = cache.createLexerInterpreter(input, false);
+		lexer.removeErrorListeners();
+		lexer.addErrorListener(listener);
+		IncrementalTokenSource tokens = new IncrementalTokenSource(lexer, input, text, version, edits, old, listener);
+		while ( tokens.nextToken().getType()!=Token.EOF ) {
+		}
+		return tokens;
+	}
+
+	public static List<String> describe(IncrementalTokenSource.Snapshot snapshot) {
+		List<String> tokens = new ArrayList<String>();
+		for (Token t : snapshot.tokens) {
+			tokens.add(t.getType() + ":" + t.getStartIndex() + "-" + t.getStopIndex() + "/" + t.getChannel() +
+					   "@" + t.getLine() + ":" + t.getCharPositionInLine() + " " + t.getText());
+		}
+		return tokens;
+	}
+
+	public static List<String> describeErrors(IncrementalTokenSource.Snapshot snapshot) {
+		List<String> errors = new ArrayList<String>();
+		for (IncrementalTokenSource.Entry e : snapshot.entries) {
+			for (SyntaxError se : e.errors) {
+				errors.add(se.getLine() + ":" + se.getCharPositionInLine() + " " + se.getMessage());
+			}
+		}
+		return errors;
+	}
+
+	public static LexerGrammar lexerGrammar() {
+		try {
+			return new LexerGrammar(LEXER);
+		}
+		catch (org.antlr.runtime.RecognitionException re) {
+			throw new IllegalArgumentException(re);
+		}
+	}
+
+	public static Grammar parserGrammar() {
+		try {
+			return new Grammar(PARSER);
+		}
+		catch (org.antlr.runtime.RecognitionException re) {
+			throw new IllegalArgumentException(re);
+		}
+	}
+}